@@ -0,0 +1,662 @@
+//-----------------------------------------------------
+// Title: Benchmark Harness
+// Author: Ege Yavuz
+// ID: 14872032366
+// Section: 1
+// Assignment: 3
+// Description: Measures BinarySearchTree and HospitalDatabase operations.
+// Every workload is run for a number of untimed warmup rounds and then a
+// timed round, in which each operation is timed individually. The report
+// shows throughput, latency percentiles and bytes allocated per operation.
+//
+// Usage: java Benchmark [tree|database|memory|commands|sharded|feed|cache|all] [size ...]
+// Sizes default to 10000 100000 1000000; for the commands suite a size
+// is the number of commands in the file. Set -Dwarmups=N to change the
+// number of warmup rounds (default 2), and give the JVM enough heap for
+// the largest size (about 1 GB per 10M tree elements).
+//-----------------------------------------------------
+
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.function.IntConsumer;
+
+public class Benchmark {
+
+    private static final int WARMUPS = Integer.getInteger("warmups", 2);
+    private static final long SEED = 42;
+    private static final int FEED_CAPACITY = 1 << 16;
+    private static final long REPORT_CACHE_CHARS = 64L << 20;
+
+    // Interface for one benchmark round
+    //--------------------------------------------------------
+    // Summary: Builds fresh state for a round and returns the operation
+    // to time. The operation receives the index of the call.
+    //--------------------------------------------------------
+    private interface Trial {
+        IntConsumer prepare();
+    }
+
+    private static final PrintStream REPORT = System.out;
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    // Method: Runs the requested suites
+    //--------------------------------------------------------
+    // Summary: Parses the arguments and runs the tree and/or database
+    // suites for every size.
+    // Precondition: None.
+    // Postcondition: A report line is printed for every workload.
+    //--------------------------------------------------------
+
+    public static void main(String[] args) {
+        String suite = (args.length > 0) ? args[0] : "all";
+        int[] sizes = (args.length > 1)
+                ? Arrays.stream(args, 1, args.length).mapToInt(Integer::parseInt).toArray()
+                : new int[] {10_000, 100_000, 1_000_000};
+
+        // The database reports every mutation on stdout; keep that out of the timings
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        REPORT.printf("%-34s %10s %13s %9s %9s %9s %10s %10s%n",
+                "workload", "size", "ops/s", "p50 ns", "p99 ns", "p99.9 ns", "max ns", "B/op");
+        for (int size : sizes) {
+            if (suite.equals("tree") || suite.equals("all")) {
+                treeSuite(size);
+            }
+            if (suite.equals("database") || suite.equals("all")) {
+                databaseSuite(size);
+            }
+            if (suite.equals("memory") || suite.equals("all")) {
+                memorySuite(size);
+            }
+            if (suite.equals("commands") || suite.equals("all")) {
+                commandSuite(size);
+            }
+            if (suite.equals("sharded") || suite.equals("all")) {
+                shardedSuite(size);
+            }
+            if (suite.equals("feed") || suite.equals("all")) {
+                feedSuite(size);
+            }
+            if (suite.equals("cache") || suite.equals("all")) {
+                cacheSuite(size);
+            }
+        }
+    }
+
+    // Method: Benchmarks BinarySearchTree
+    //--------------------------------------------------------
+    // Summary: Times insert, contains, remove and in-order traversal with
+    // both random and sorted keys.
+    // Precondition: size is positive.
+    // Postcondition: The results are printed.
+    //--------------------------------------------------------
+
+    private static void treeSuite(int size) {
+        for (boolean sorted : new boolean[] {false, true}) {
+            String keys = sorted ? "sorted" : "random";
+            Integer[] data = keys(size, sorted);
+
+            run("tree.insert (" + keys + ")", size, size, new Trial() {
+                @Override
+                public IntConsumer prepare() {
+                    BinarySearchTree<Integer> tree = new BinarySearchTree<>();
+                    return i -> tree.insert(data[i]);
+                }
+            });
+
+            BinarySearchTree<Integer> full = build(data);
+            Integer[] probes = shuffled(data, SEED + 1);
+            run("tree.contains (" + keys + ")", size, size, new Trial() {
+                @Override
+                public IntConsumer prepare() {
+                    return i -> {
+                        if (!full.contains(probes[i])) {
+                            throw new IllegalStateException("missing key");
+                        }
+                    };
+                }
+            });
+
+            run("tree.remove (" + keys + ")", size, size, new Trial() {
+                @Override
+                public IntConsumer prepare() {
+                    BinarySearchTree<Integer> tree = build(data);
+                    return i -> tree.remove(probes[i]);
+                }
+            });
+
+            // One operation is one visited element
+            long[] sink = new long[1];
+            run("tree.inOrderTraversal (" + keys + ")", size, 1, new Trial() {
+                @Override
+                public IntConsumer prepare() {
+                    return i -> full.inOrderTraversal(value -> sink[0] += value);
+                }
+            }, size);
+        }
+    }
+
+    // Method: Benchmarks HospitalDatabase
+    //--------------------------------------------------------
+    // Summary: Times a burst of addPatient calls, then point and range
+    // queries against a database of the given size, then addMember and
+    // removeMember against one very large care team.
+    // Precondition: size is positive.
+    // Postcondition: The results are printed.
+    //--------------------------------------------------------
+
+    private static void databaseSuite(int size) {
+        String[] names = patientNames(size);
+        Random random = new Random(SEED);
+        String[] doctors = new String[Math.max(1, size / 1000)];
+        for (int i = 0; i < doctors.length; i++) {
+            doctors[i] = "Doctor " + i;
+        }
+        int[] doctorOf = new int[size];
+        int[] dates = new int[size];
+        for (int i = 0; i < size; i++) {
+            doctorOf[i] = random.nextInt(doctors.length);
+            dates[i] = random.nextInt(28 * 12 * 25);
+        }
+
+        run("db.addPatient", size, size, new Trial() {
+            @Override
+            public IntConsumer prepare() {
+                HospitalDatabase database = new HospitalDatabase();
+                return i -> database.addPatient(names[i], doctors[doctorOf[i]],
+                        1 + dates[i] % 28, 1 + dates[i] / 28 % 12, 2000 + dates[i] / (28 * 12));
+            }
+        });
+
+        HospitalDatabase database = new HospitalDatabase();
+        for (int i = 0; i < size; i++) {
+            database.addPatient(names[i], doctors[doctorOf[i]],
+                    1 + dates[i] % 28, 1 + dates[i] / 28 % 12, 2000 + dates[i] / (28 * 12));
+        }
+        StringBuilder out = new StringBuilder(1 << 16);
+        int queries = Math.min(size, 100_000);
+        String[] probes = shuffled(names, SEED + 2);
+
+        run("db.showPatient", size, queries, new Trial() {
+            @Override
+            public IntConsumer prepare() {
+                return i -> {
+                    out.setLength(0);
+                    database.showPatient(probes[i], out);
+                };
+            }
+        });
+
+        run("db.showDoctorPatients", size, Math.min(queries, 10_000), new Trial() {
+            @Override
+            public IntConsumer prepare() {
+                return i -> {
+                    out.setLength(0);
+                    database.showDoctorPatients(doctors[i % doctors.length], out);
+                };
+            }
+        });
+
+        run("db.showPatients(year)", size, Math.min(queries, 1_000), new Trial() {
+            @Override
+            public IntConsumer prepare() {
+                return i -> {
+                    out.setLength(0);
+                    database.showPatients(2000 + i % 25, out);
+                };
+            }
+        });
+
+        run("db.showAllPatients(page of 50)", size, queries, new Trial() {
+            @Override
+            public IntConsumer prepare() {
+                return i -> {
+                    out.setLength(0);
+                    database.showAllPatients(Math.floorMod(probes[i].hashCode(), size), 50, out);
+                };
+            }
+        });
+
+        // One patient with a care team as large as the database
+        String[] members = shuffled(patientNames(size), SEED + 3);
+        run("db.addMember (one team)", size, size, new Trial() {
+            @Override
+            public IntConsumer prepare() {
+                database.removePatient(names[0]);
+                database.addPatient(names[0], doctors[0], 1, 1, 2020);
+                return i -> database.addMember(names[0], members[i], "Nurse");
+            }
+        });
+
+        run("db.removeMember (one team)", size, size, new Trial() {
+            @Override
+            public IntConsumer prepare() {
+                database.removePatient(names[0]);
+                database.addPatient(names[0], doctors[0], 1, 1, 2020);
+                for (String member : members) {
+                    database.addMember(names[0], member, "Nurse");
+                }
+                return i -> database.removeMember(names[0], members[i]);
+            }
+        });
+    }
+
+    // Method: Measures the heap footprint of HospitalDatabase
+    //--------------------------------------------------------
+    // Summary: Fills a database with patients, half of whom get a
+    // one-member care team, and reports the retained heap per patient,
+    // including the patients' name strings. Doctor names are shared, as
+    // they would be when read from a feed, one per 1000 patients. Then
+    // readmits every patient three times and reports the throughput and
+    // the retained heap per added visit.
+    // Precondition: size is positive.
+    // Postcondition: The results are printed in the B/op column.
+    //--------------------------------------------------------
+
+    private static void memorySuite(int size) {
+        String[] doctors = new String[Math.max(1, size / 1000)];
+        for (int i = 0; i < doctors.length; i++) {
+            doctors[i] = "Doctor " + i;
+        }
+        Random random = new Random(SEED);
+
+        long before = usedHeap();
+        HospitalDatabase database = new HospitalDatabase();
+        for (int i = 0; i < size; i++) {
+            // Fresh strings per row, as a parser would produce them
+            String name = "Patient " + i;
+            String doctor = new String(doctors[random.nextInt(doctors.length)]);
+            int date = random.nextInt(28 * 12 * 25);
+            database.addPatient(name, doctor, 1 + date % 28, 1 + date / 28 % 12, 2000 + date / (28 * 12));
+            if (i % 2 == 0) {
+                database.addMember(name, "Staff " + (i % 5000), "Nurse");
+            }
+        }
+        long retained = usedHeap() - before;
+
+        REPORT.printf("%-34s %10d %13s %9s %9s %9s %10s %10.1f%n", "db.heapPerPatient", size,
+                "-", "-", "-", "-", "-", (double) retained / size);
+
+        int readmissions = 3;
+        long start = System.nanoTime();
+        for (int visit = 1; visit <= readmissions; visit++) {
+            for (int i = 0; i < size; i++) {
+                int date = random.nextInt(28 * 12);
+                database.addPatient("Patient " + i, new String(doctors[random.nextInt(doctors.length)]),
+                        1 + date % 28, 1 + date / 28, 2024 + visit);
+            }
+        }
+        reportThroughput("db.readmitPatient", readmissions * size, System.nanoTime() - start);
+        long withVisits = usedHeap() - before;
+        REPORT.printf("%-34s %10d %13s %9s %9s %9s %10s %10.1f%n", "db.heapPerVisit", size,
+                "-", "-", "-", "-", "-", (double) (withVisits - retained) / (readmissions * (long) size));
+        if (database.getPatient("Patient 0") == null) {
+            throw new IllegalStateException("database was collected");
+        }
+    }
+
+    // Method: Benchmarks command file execution
+    //--------------------------------------------------------
+    // Summary: Writes a command file of the given length, then executes
+    // it twice into output files: once line by line through the
+    // one-call-per-command API printing to an auto-flushing stream, as
+    // Main does, and once with CommandRunner. Reports commands per second
+    // for both and checks that their output is identical. The mix is 55%
+    // ADD_PATIENT (a third of them readmitting), 10% REMOVE_PATIENT, 20%
+    // ADD_MEMBER, 13% REMOVE_MEMBER and 2% SHOW_PATIENT.
+    // Precondition: size is positive and the temp directory has room
+    // for about 50 bytes per command, twice.
+    // Postcondition: The results are printed and the files deleted.
+    //--------------------------------------------------------
+
+    private static void commandSuite(int size) {
+        Path commands = null;
+        Path expected = null;
+        Path actual = null;
+        try {
+            commands = Files.createTempFile("hospital-commands", ".txt");
+            expected = Files.createTempFile("hospital-expected", ".txt");
+            actual = Files.createTempFile("hospital-actual", ".txt");
+            writeCommandFile(commands, size);
+
+            PrintStream original = System.out;
+            long start = System.nanoTime();
+            try (BufferedReader input = Files.newBufferedReader(commands, StandardCharsets.UTF_8);
+                 PrintStream out = new PrintStream(new BufferedOutputStream(new FileOutputStream(expected.toFile())),
+                         true, StandardCharsets.UTF_8)) {
+                System.setOut(out);
+                executeOneByOne(input, new HospitalDatabase());
+            } finally {
+                System.setOut(original);
+            }
+            reportThroughput("commands.oneByOne", size, System.nanoTime() - start);
+
+            System.gc();
+            start = System.nanoTime();
+            try (BufferedReader input = Files.newBufferedReader(commands, StandardCharsets.UTF_8);
+                 Writer out = new BufferedWriter(Files.newBufferedWriter(actual, StandardCharsets.UTF_8), 1 << 16)) {
+                new CommandRunner(new HospitalDatabase(), out).run(input);
+            }
+            reportThroughput("commands.runner", size, System.nanoTime() - start);
+
+            if (Files.mismatch(expected, actual) != -1) {
+                throw new IllegalStateException("CommandRunner output differs from one-by-one execution");
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            for (Path file : new Path[] {commands, expected, actual}) {
+                try {
+                    if (file != null) {
+                        Files.deleteIfExists(file);
+                    }
+                } catch (IOException e) {
+                    // Left behind in the temp directory
+                }
+            }
+        }
+    }
+
+    // Method: Benchmarks ShardedHospitalDatabase
+    //--------------------------------------------------------
+    // Summary: Adds size patients from one thread, without waiting for
+    // each answer, then waits for the shards to finish. Shard counts go
+    // from 1 to twice the number of cores; the plain database's addPatient
+    // is the baseline.
+    // Precondition: size is positive.
+    // Postcondition: The results are printed.
+    //--------------------------------------------------------
+
+    private static void shardedSuite(int size) {
+        String[] names = patientNames(size);
+        Random random = new Random(SEED);
+        int[] dates = new int[size];
+        for (int i = 0; i < size; i++) {
+            dates[i] = random.nextInt(28 * 12 * 25);
+        }
+
+        HospitalDatabase plain = new HospitalDatabase();
+        long start = System.nanoTime();
+        for (int i = 0; i < size; i++) {
+            plain.addPatient(names[i], "Doctor " + (i % 100), 1 + dates[i] % 28, 1 + dates[i] / 28 % 12,
+                    2000 + dates[i] / (28 * 12));
+        }
+        reportThroughput("db.addPatient", size, System.nanoTime() - start);
+        plain = null;
+
+        int cores = Runtime.getRuntime().availableProcessors();
+        for (int shards = 1; shards <= 2 * cores; shards *= 2) {
+            System.gc();
+            try (ShardedHospitalDatabase sharded = new ShardedHospitalDatabase(shards)) {
+                start = System.nanoTime();
+                for (int i = 0; i < size; i++) {
+                    sharded.addPatient(names[i], "Doctor " + (i % 100), 1 + dates[i] % 28, 1 + dates[i] / 28 % 12,
+                            2000 + dates[i] / (28 * 12));
+                }
+                sharded.awaitQuiescence();
+                reportThroughput("sharded.addPatient (" + shards + " shards)", size, System.nanoTime() - start);
+            }
+        }
+    }
+
+    // Method: Benchmarks the change feed
+    //--------------------------------------------------------
+    // Summary: Adds size patients with the feed off, with the feed on
+    // but nobody subscribed, and with a ReplicaApplier subscribed, which
+    // shows what publishing costs the writer. Then reports how far behind
+    // the replica ran under that sustained load.
+    // Precondition: size is positive.
+    // Postcondition: The results are printed.
+    //--------------------------------------------------------
+
+    private static void feedSuite(int size) {
+        String[] names = patientNames(size);
+        Random random = new Random(SEED);
+        int[] dates = new int[size];
+        for (int i = 0; i < size; i++) {
+            dates[i] = random.nextInt(28 * 12 * 25);
+        }
+
+        for (int mode = 0; mode < 3; mode++) {
+            System.gc();
+            HospitalDatabase primary = new HospitalDatabase();
+            ChangeFeed feed = (mode > 0) ? primary.enableChangeFeed(FEED_CAPACITY) : null;
+            ReplicaApplier applier = (mode == 2) ? new ReplicaApplier(new HospitalDatabase()) : null;
+            ChangeFeed.Subscription subscription = (applier != null) ? primary.subscribeChanges(applier) : null;
+
+            long start = System.nanoTime();
+            for (int i = 0; i < size; i++) {
+                primary.addPatient(names[i], "Doctor " + (i % 100), 1 + dates[i] % 28, 1 + dates[i] / 28 % 12,
+                        2000 + dates[i] / (28 * 12));
+            }
+            long elapsed = System.nanoTime() - start;
+            reportThroughput((mode == 0) ? "feed.addPatient (off)"
+                    : (mode == 1) ? "feed.addPatient (no subscriber)" : "feed.addPatient (replica)", size, elapsed);
+
+            if (subscription != null) {
+                while (applier.getAppliedSequence() < feed.getPublishedSequence()) {
+                    Thread.onSpinWait();
+                }
+                reportThroughput("feed.replicaCaughtUp", size, System.nanoTime() - start);
+                REPORT.printf("%-34s %10d   mean lag %.1f us, max lag %.1f us%n", "feed.replicaLag", size,
+                        applier.getMeanLagNanos() / 1e3, applier.getMaxLagNanos() / 1e3);
+                subscription.close();
+            }
+        }
+    }
+
+    // Method: Benchmarks the report cache
+    //--------------------------------------------------------
+    // Summary: Polls like a dashboard over size patients: each round asks
+    // for one year report and one doctor listing, and every tenth round
+    // also adds a patient, which invalidates the reports it appears in.
+    // Runs once without and once with the cache.
+    // Precondition: size is positive.
+    // Postcondition: The results are printed.
+    //--------------------------------------------------------
+
+    private static void cacheSuite(int size) {
+        String[] names = patientNames(size);
+        Random random = new Random(SEED);
+        HospitalDatabase database = new HospitalDatabase();
+        for (int i = 0; i < size; i++) {
+            int date = random.nextInt(28 * 12 * 25);
+            database.addPatient(names[i], "Doctor " + (i % 100), 1 + date % 28, 1 + date / 28 % 12,
+                    2000 + date / (28 * 12));
+        }
+
+        int rounds = 2000;
+        for (int pass = 0; pass < 2; pass++) {
+            if (pass == 1) {
+                database.enableReportCache(REPORT_CACHE_CHARS);
+            }
+            Writer discard = Writer.nullWriter();
+            random = new Random(SEED);
+            long start = System.nanoTime();
+            for (int round = 0; round < rounds; round++) {
+                database.showPatients(2000 + random.nextInt(25), discard);
+                database.showDoctorPatients("Doctor " + random.nextInt(100), discard);
+                if (round % 10 == 0) {
+                    int date = random.nextInt(28 * 12 * 25);
+                    database.addPatient(names[random.nextInt(size)], "Doctor " + random.nextInt(100),
+                            1 + date % 28, 1 + date / 28 % 12, 2000 + date / (28 * 12));
+                }
+            }
+            // Scaled so the ops/s column shows rounds per second
+            reportThroughput((pass == 0) ? "cache.dashboardRound (off)" : "cache.dashboardRound (on)", size,
+                    (System.nanoTime() - start) * size / rounds);
+            if (pass == 1) {
+                REPORT.printf("%-34s %10d   %s%n", "cache.stats", size, database.getReportCacheStats());
+            }
+        }
+    }
+
+    // Helper Method: Generates the command file for commandSuite
+    private static void writeCommandFile(Path file, int size) throws IOException {
+        Random random = new Random(SEED);
+        int patients = Math.max(1, size / 3);
+        int doctors = Math.max(1, size / 10_000);
+        try (Writer out = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            for (int i = 0; i < size; i++) {
+                int dice = random.nextInt(100);
+                String patient = "Patient " + random.nextInt(patients);
+                if (dice < 55) {
+                    int date = random.nextInt(28 * 12 * 25);
+                    out.write("ADD_PATIENT," + patient + ",Doctor " + random.nextInt(doctors) + "," + (1 + date % 28)
+                            + "," + (1 + date / 28 % 12) + "," + (2000 + date / (28 * 12)) + "\n");
+                } else if (dice < 65) {
+                    out.write("REMOVE_PATIENT," + patient + "\n");
+                } else if (dice < 85) {
+                    out.write("ADD_MEMBER," + patient + ",Staff " + random.nextInt(50) + ",Nurse\n");
+                } else if (dice < 98) {
+                    out.write("REMOVE_MEMBER," + patient + ",Staff " + random.nextInt(50) + "\n");
+                } else {
+                    out.write("SHOW_PATIENT," + patient + "\n");
+                }
+            }
+        }
+    }
+
+    // Helper Method: Executes a command file one call per command
+    private static void executeOneByOne(BufferedReader input, HospitalDatabase database) throws IOException {
+        String line;
+        while ((line = input.readLine()) != null) {
+            String[] f = line.split(",", -1);
+            switch (f[0]) {
+                case "ADD_PATIENT":
+                    database.addPatient(f[1], f[2], Integer.parseInt(f[3]), Integer.parseInt(f[4]),
+                            Integer.parseInt(f[5]));
+                    break;
+                case "REMOVE_PATIENT":
+                    database.removePatient(f[1]);
+                    break;
+                case "ADD_MEMBER":
+                    database.addMember(f[1], f[2], f[3]);
+                    break;
+                case "REMOVE_MEMBER":
+                    database.removeMember(f[1], f[2]);
+                    break;
+                default:
+                    database.showPatient(f[1]);
+                    break;
+            }
+        }
+    }
+
+    private static void reportThroughput(String name, int size, long elapsedNanos) {
+        REPORT.printf("%-34s %10d %13.0f %9s %9s %9s %10s %10s%n", name, size, size / (elapsedNanos / 1e9),
+                "-", "-", "-", "-", "-");
+    }
+
+    // Helper Method: Returns the live heap after a full collection
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static void run(String name, int size, int operations, Trial trial) {
+        run(name, size, operations, trial, 1);
+    }
+
+    // Helper Method: Warms up, times and reports one workload
+    //--------------------------------------------------------
+    // Summary: Runs the trial WARMUPS times untimed, then once more
+    // timing every call. elementsPerCall scales the results when one call
+    // stands for many operations, as with a traversal.
+    // Precondition: operations and elementsPerCall are positive.
+    // Postcondition: A report line is printed.
+    //--------------------------------------------------------
+
+    private static void run(String name, int size, int operations, Trial trial, int elementsPerCall) {
+        for (int round = 0; round < WARMUPS; round++) {
+            IntConsumer op = trial.prepare();
+            for (int i = 0; i < operations; i++) {
+                op.accept(i);
+            }
+        }
+
+        IntConsumer op = trial.prepare();
+        long[] latencies = new long[operations];
+        System.gc();
+
+        long allocatedBefore = THREADS.getCurrentThreadAllocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < operations; i++) {
+            long begin = System.nanoTime();
+            op.accept(i);
+            latencies[i] = System.nanoTime() - begin;
+        }
+        long elapsed = System.nanoTime() - start;
+        long allocated = THREADS.getCurrentThreadAllocatedBytes() - allocatedBefore;
+
+        Arrays.sort(latencies);
+        double total = (double) operations * elementsPerCall;
+        REPORT.printf("%-34s %10d %13.0f %9d %9d %9d %10d %10.1f%n", name, size,
+                total / (elapsed / 1e9),
+                percentile(latencies, 0.50) / elementsPerCall,
+                percentile(latencies, 0.99) / elementsPerCall,
+                percentile(latencies, 0.999) / elementsPerCall,
+                latencies[operations - 1] / elementsPerCall,
+                allocated / total);
+    }
+
+    private static long percentile(long[] sorted, double fraction) {
+        return sorted[Math.min(sorted.length - 1, (int) (sorted.length * fraction))];
+    }
+
+    // Helper Method: Builds the key set for a tree workload
+    private static Integer[] keys(int size, boolean sorted) {
+        Integer[] keys = new Integer[size];
+        for (int i = 0; i < size; i++) {
+            keys[i] = i * 2; // Even keys, so odd probes would miss
+        }
+        return sorted ? keys : shuffled(keys, SEED);
+    }
+
+    private static BinarySearchTree<Integer> build(Integer[] keys) {
+        BinarySearchTree<Integer> tree = new BinarySearchTree<>();
+        for (Integer key : keys) {
+            tree.insert(key);
+        }
+        return tree;
+    }
+
+    // Helper Method: Generates distinct patient names in random order
+    private static String[] patientNames(int size) {
+        String[] names = new String[size];
+        for (int i = 0; i < size; i++) {
+            names[i] = "Patient " + i;
+        }
+        return shuffled(names, SEED);
+    }
+
+    private static <E> E[] shuffled(E[] values, long seed) {
+        E[] copy = values.clone();
+        Random random = new Random(seed);
+        for (int i = copy.length - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            E swap = copy[i];
+            copy[i] = copy[j];
+            copy[j] = swap;
+        }
+        return copy;
+    }
+}
@@ -6,87 +6,138 @@
 // Assignment: 3
 // Description: Implements a generic binary search tree with
 // functionality for insertion, removal, and in-order traversal.
+// Every node counts the elements in its subtree, so the tree can
+// also find an element's rank, or the element at a rank, in O(log n).
+// The tree is kept balanced using red-black colouring, so insert,
+// remove and contains run in O(log n) regardless of insertion order,
+// and every operation is iterative so deep trees cannot overflow
+// the call stack. Nodes are not separate objects: they live in
+// parallel arrays indexed by slot number, which keeps a node's links
+// next to each other in memory and halves the heap used per element.
+// Besides callbacks, the tree offers iterators that can stop at any
+// point, iterators starting from a key, and a spliterator so streams
+// over large trees can run in parallel.
 //-----------------------------------------------------
 
 
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
 import java.util.function.Consumer;
+import java.util.function.ToIntBiFunction;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
-public class BinarySearchTree<T extends Comparable<T>> {
+public class BinarySearchTree<T extends Comparable<T>> implements Iterable<T> {
 
-    // Inner Class: Represents a single node in the binary search tree
-    //--------------------------------------------------------
-    // Summary: Stores the data and pointers to the left and right child
-    // nodes of the binary search tree.
-    //--------------------------------------------------------
-
-    private static class Node<T> {
-        T data;
-        Node<T> left;
-        Node<T> right;
+    // Node layout: slot n holds its element in elements[n] and its links
+    // in links[4n] (left), links[4n + 1] (right) and links[4n + 2]
+    // (parent), followed by the size of its subtree in links[4n + 3].
+    // Slot 0 is never used, so 0 doubles as the null link and reads of
+    // it yield no children, no parent, black and an empty subtree. A
+    // node is red when the sign bit of its parent link is set.
+    private static final int NIL = 0;
+    private static final int RED_BIT = 0x80000000;
+    private static final boolean RED = false;
+    private static final boolean BLACK = true;
 
-        Node(T data) {
-            this.data = data;
-            this.left = null;
-            this.right = null;
-        }
-    }
+    private static final Object[] NO_ELEMENTS = {};
+    private static final int[] NO_LINKS = {};
+    private static final int MAX_CAPACITY = Integer.MAX_VALUE / 4;
 
-    private Node<T> root;
+    private Object[] elements = NO_ELEMENTS;
+    private int[] links = NO_LINKS;
+    private int root = NIL;
+    private int size;
+    private int used;          // Slots handed out so far, including slot 0
+    private int free = NIL;    // Released slots, chained through their left link
+    private final ToIntBiFunction<T, T> order;
 
     // Constructor: Initializes an empty binary search tree
     //--------------------------------------------------------
-    // Summary: Creates an empty binary search tree with a null root.
+    // Summary: Creates an empty binary search tree with a null root,
+    // ordered by the elements' natural order. No storage is allocated
+    // until the first element arrives.
     // Precondition: None.
     // Postcondition: The tree is initialized and ready for use.
     //--------------------------------------------------------
 
     public BinarySearchTree() {
-        this.root = null;
+        this.order = BinarySearchTree::naturalOrder;
+    }
+
+    // Constructor: Initializes an empty tree with a custom ordering
+    //--------------------------------------------------------
+    // Summary: Creates an empty binary search tree whose elements are
+    // ordered, and considered equal, according to the comparator. This
+    // lets the same elements be indexed by several different keys.
+    // Precondition: The comparator must not be null.
+    // Postcondition: The tree is initialized and ready for use.
+    //--------------------------------------------------------
+
+    public BinarySearchTree(Comparator<? super T> comparator) {
+        this.order = comparator::compare;
     }
 
     // Method: Inserts a new element into the binary search tree
     //--------------------------------------------------------
     // Summary: Adds a new node containing the specified data. If the
-    // element already exists, its data is overwritten.
+    // element already exists, its data is overwritten. The tree is
+    // rebalanced after the insertion.
     // Precondition: The data must implement Comparable.
     // Postcondition: The tree contains the new element in the correct
-    // position according to its natural order.
+    // position according to the tree's ordering.
     //--------------------------------------------------------
 
     public void insert(T data) {
-        root = insertRec(root, data);
+        put(data);
     }
 
-    private Node<T> insertRec(Node<T> root, T data) {
-        if (root == null) {
-            return new Node<>(data);
-        }
-        if (data.compareTo(root.data) < 0) {
-            root.left = insertRec(root.left, data);
-        } else if (data.compareTo(root.data) > 0) {
-            root.right = insertRec(root.right, data);
-        } else {
-            // Overwrite existing node if the data is equal
-            root.data = data;
-        }
-        return root;
-    }
-
-    // Method: Performs an in-order traversal of the tree
+    // Method: Inserts or replaces an element in a single descent
     //--------------------------------------------------------
-    // Summary: Traverses the tree in-order and prints each node's data
-    // in ascending order.
-    // Precondition: The tree may be empty or contain elements.
-    // Postcondition: The elements are printed in ascending order.
+    // Summary: Works like insert, but reports the element that was
+    // replaced so callers do not need a separate contains call.
+    // Precondition: The data must implement Comparable.
+    // Postcondition: The tree contains the new element. Returns the
+    // overwritten element, or null if the element was not present.
     //--------------------------------------------------------
 
+    public T put(T data) {
+        if (root == NIL) {
+            root = newNode(data, NIL);
+            return null;
+        }
 
-    private void inOrderRec(Node<T> root) {
-        if (root != null) {
-            inOrderRec(root.left);
-            System.out.println(root.data);
-            inOrderRec(root.right);
+        int current = root;
+        int parent;
+        int cmp;
+        do {
+            parent = current;
+            cmp = order.applyAsInt(data, elementAt(current));
+            if (cmp < 0) {
+                current = leftOf(current);
+            } else if (cmp > 0) {
+                current = rightOf(current);
+            } else {
+                // Overwrite existing node if the data is equal
+                T previous = elementAt(current);
+                elements[current] = data;
+                return previous;
+            }
+        } while (current != NIL);
+
+        int node = newNode(data, parent);
+        if (cmp < 0) {
+            setLeft(parent, node);
+        } else {
+            setRight(parent, node);
         }
+        adjustWeights(parent, 1);
+        fixAfterInsertion(node);
+        return null;
     }
 
     // Method: Performs an in-order traversal with a callback
@@ -97,18 +148,476 @@ public class BinarySearchTree<T extends Comparable<T>> {
     // Postcondition: The action is applied to all elements in ascending order.
     //--------------------------------------------------------
 
-    public void inOrderTraversal(Consumer<T> action) {
-        inOrderRec(root, action);
+    public void inOrderTraversal(Consumer<? super T> action) {
+        for (int node = firstNode(root); node != NIL; node = successor(node)) {
+            action.accept(elementAt(node)); // Execute the action for the current node
+        }
+    }
+
+    // Method: Returns an iterator over the elements in ascending order
+    //--------------------------------------------------------
+    // Summary: Walks the tree one element at a time through the parent
+    // links, so the caller can stop as soon as it has what it needs and
+    // pays only for the elements it visits.
+    // Precondition: The tree must not be modified while iterating.
+    // Postcondition: Returns an iterator positioned before the smallest
+    // element.
+    //--------------------------------------------------------
+
+    @Override
+    public Iterator<T> iterator() {
+        return new TreeIterator(firstNode(root), true);
+    }
+
+    // Method: Returns an iterator over the elements in descending order
+    //--------------------------------------------------------
+    // Summary: Mirror image of iterator.
+    // Precondition: The tree must not be modified while iterating.
+    // Postcondition: Returns an iterator positioned before the largest
+    // element.
+    //--------------------------------------------------------
+
+    public Iterator<T> descendingIterator() {
+        return new TreeIterator(lastNode(root), false);
+    }
+
+    // Method: Returns an ascending iterator starting from a key
+    //--------------------------------------------------------
+    // Summary: Starts at the first element not below the key (its
+    // ceiling), found in one O(log n) descent, and runs to the end of the
+    // tree or until the caller stops.
+    // Precondition: keyOrder must be consistent with the tree's ordering,
+    // and the tree must not be modified while iterating.
+    // Postcondition: Returns an iterator positioned before the ceiling.
+    //--------------------------------------------------------
+
+    public <K> Iterator<T> iteratorFrom(K key, ToIntBiFunction<? super K, ? super T> keyOrder) {
+        return new TreeIterator(ceilingNode(key, keyOrder), true);
+    }
+
+    // Method: Returns an ascending iterator starting from a position
+    //--------------------------------------------------------
+    // Summary: Jumps straight to the element with the given index with
+    // select, so reading a page of k elements at any offset costs
+    // O(log n + k).
+    // Precondition: 0 <= index <= size(), and the tree must not be
+    // modified while iterating.
+    // Postcondition: Returns an iterator positioned before the element
+    // at the index, or an exhausted iterator if index is size().
+    //--------------------------------------------------------
+
+    public Iterator<T> iteratorAt(int index) {
+        if (index < 0 || index > size) {
+            throw new IndexOutOfBoundsException("Index " + index + " out of bounds for size " + size);
+        }
+        return new TreeIterator((index == size) ? NIL : nodeAt(index), true);
+    }
+
+    // Method: Returns a descending iterator starting from a key
+    //--------------------------------------------------------
+    // Summary: Starts at the last element not above the key (its floor)
+    // and runs towards the smallest element.
+    // Precondition: keyOrder must be consistent with the tree's ordering,
+    // and the tree must not be modified while iterating.
+    // Postcondition: Returns an iterator positioned before the floor.
+    //--------------------------------------------------------
+
+    public <K> Iterator<T> descendingIteratorFrom(K key, ToIntBiFunction<? super K, ? super T> keyOrder) {
+        return new TreeIterator(floorNode(key, keyOrder), false);
+    }
+
+    // Method: Returns a spliterator over the elements
+    //--------------------------------------------------------
+    // Summary: The spliterator splits along subtrees: the first split
+    // hands off everything left of the root, later splits hand off the
+    // part left of the next subtree root, so parallel streams divide the
+    // tree into halves without walking it first. Subtree sizes make the
+    // size of every part exact.
+    // Precondition: The tree must not be modified while it is in use.
+    // Postcondition: Returns an ordered spliterator over every element.
+    //--------------------------------------------------------
+
+    @Override
+    public Spliterator<T> spliterator() {
+        return new TreeSpliterator(firstNode(root), NIL, 0, size);
     }
 
-    private void inOrderRec(Node<T> root, Consumer<T> action) {
-        if (root != null) {
-            inOrderRec(root.left, action);
-            action.accept(root.data); // Execute the action for the current node
-            inOrderRec(root.right, action);
+    // Method: Returns a stream over the elements in ascending order
+    //--------------------------------------------------------
+    // Summary: Sequential stream backed by spliterator; call parallel()
+    // on it to spread the work over the fork-join pool.
+    // Precondition: The tree must not be modified while it is in use.
+    // Postcondition: Returns a stream over every element.
+    //--------------------------------------------------------
+
+    public Stream<T> stream() {
+        return StreamSupport.stream(spliterator(), false);
+    }
+
+    // Inner Class: Iterates the tree in either direction
+    //--------------------------------------------------------
+    // Summary: Holds the next slot to return and steps with successor or
+    // predecessor, so each step costs amortized O(1).
+    //--------------------------------------------------------
+
+    private final class TreeIterator implements Iterator<T> {
+        private int next;
+        private final boolean ascending;
+
+        TreeIterator(int first, boolean ascending) {
+            this.next = first;
+            this.ascending = ascending;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != NIL;
+        }
+
+        @Override
+        public T next() {
+            if (next == NIL) {
+                throw new NoSuchElementException();
+            }
+            T element = elementAt(next);
+            next = ascending ? successor(next) : predecessor(next);
+            return element;
         }
     }
 
+    // Inner Class: Splits the tree for parallel traversal
+    //--------------------------------------------------------
+    // Summary: Covers the slots from current up to, but excluding, fence
+    // (NIL meaning the end of the tree). side records where the covered
+    // range came from: 0 for the whole tree, 1 for a right part, -1 for
+    // a part handed off on the left, as in java.util.TreeMap. The sizes
+    // of both parts are computed from node positions when splitting.
+    //--------------------------------------------------------
+
+    private final class TreeSpliterator implements Spliterator<T> {
+        private int current;
+        private final int fence;
+        private int side;
+        private int remaining;
+
+        TreeSpliterator(int origin, int fence, int side, int remaining) {
+            this.current = origin;
+            this.fence = fence;
+            this.side = side;
+            this.remaining = remaining;
+        }
+
+        @Override
+        public Spliterator<T> trySplit() {
+            int origin = current;
+            int split;
+            if (origin == NIL || origin == fence) {
+                split = NIL;
+            } else if (side == 0) {
+                split = root;
+            } else if (side > 0) {
+                split = rightOf(origin);
+            } else if (fence != NIL) {
+                split = leftOf(fence);
+            } else {
+                split = NIL;
+            }
+            if (split == NIL || split == origin || split == fence
+                    || order.applyAsInt(elementAt(origin), elementAt(split)) >= 0) {
+                return null;
+            }
+            int handedOff = indexOf(split) - indexOf(origin);
+            side = 1;
+            current = split;
+            remaining -= handedOff;
+            return new TreeSpliterator(origin, split, -1, handedOff);
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super T> action) {
+            if (current == NIL || current == fence) {
+                return false;
+            }
+            T element = elementAt(current);
+            current = successor(current);
+            remaining--;
+            action.accept(element);
+            return true;
+        }
+
+        @Override
+        public void forEachRemaining(Consumer<? super T> action) {
+            int node = current;
+            current = fence;
+            remaining = 0;
+            for (; node != NIL && node != fence; node = successor(node)) {
+                action.accept(elementAt(node));
+            }
+        }
+
+        @Override
+        public long estimateSize() {
+            return remaining;
+        }
+
+        @Override
+        public int characteristics() {
+            return Spliterator.SIZED | Spliterator.SUBSIZED | Spliterator.ORDERED | Spliterator.DISTINCT
+                    | Spliterator.NONNULL;
+        }
+    }
+
+    // Method: Traverses the elements whose keys fall within a range
+    //--------------------------------------------------------
+    // Summary: Applies the action to every element between the from and
+    // to keys (both inclusive), in ascending or descending order. The
+    // walk starts at the first element in range and stops at the last,
+    // so it costs O(log n + k) for k matching elements.
+    // Precondition: keyOrder must be consistent with the tree's ordering
+    // and from must not be greater than to.
+    // Postcondition: The action is applied to every element in range.
+    //--------------------------------------------------------
+
+    public <K> void rangeTraversal(K from, K to, ToIntBiFunction<? super K, ? super T> keyOrder,
+                                   boolean ascending, Consumer<? super T> action) {
+        if (ascending) {
+            int node = ceilingNode(from, keyOrder);
+            while (node != NIL && keyOrder.applyAsInt(to, elementAt(node)) >= 0) {
+                action.accept(elementAt(node));
+                node = successor(node);
+            }
+        } else {
+            int node = floorNode(to, keyOrder);
+            while (node != NIL && keyOrder.applyAsInt(from, elementAt(node)) <= 0) {
+                action.accept(elementAt(node));
+                node = predecessor(node);
+            }
+        }
+    }
+
+    // Method: Replaces the contents with a sorted sequence
+    //--------------------------------------------------------
+    // Summary: Builds a perfectly balanced tree from the elements in
+    // linear time, without any comparisons or rotations. Every level is
+    // full except possibly the deepest one, whose nodes are coloured red
+    // so the red-black rules hold. Storage is sized exactly to fit.
+    // Precondition: The iterator yields exactly size elements in strictly
+    // ascending order according to the tree's ordering.
+    // Postcondition: The tree holds exactly the given elements.
+    //--------------------------------------------------------
+
+    public void loadSorted(Iterator<? extends T> elements, int size) {
+        if (size > MAX_CAPACITY - 1) {
+            throw new IllegalArgumentException("Too many elements: " + size);
+        }
+        release();
+        if (size > 0) {
+            allocate(size + 1);
+            root = buildFromSorted(0, 0, size - 1, computeRedLevel(size), elements);
+        }
+    }
+
+    // Helper Method: Builds a balanced subtree from a sorted iterator
+    //--------------------------------------------------------
+    // Summary: Builds the left half, takes the middle element from the
+    // iterator, then builds the right half. Recursion depth is bounded
+    // by the height of the result, which is O(log n).
+    // Precondition: The iterator yields at least hi - lo + 1 elements.
+    // Postcondition: Returns the root of the subtree.
+    //--------------------------------------------------------
+
+    private int buildFromSorted(int level, int lo, int hi, int redLevel, Iterator<? extends T> elements) {
+        int mid = (lo + hi) >>> 1;
+
+        int left = NIL;
+        if (lo < mid) {
+            left = buildFromSorted(level + 1, lo, mid - 1, redLevel, elements);
+        }
+
+        int middle = newNode(elements.next(), NIL);
+        setWeight(middle, hi - lo + 1);
+        if (level == redLevel) {
+            setColor(middle, RED);
+        }
+        if (left != NIL) {
+            setLeft(middle, left);
+            setParent(left, middle);
+        }
+
+        if (mid < hi) {
+            int right = buildFromSorted(level + 1, mid + 1, hi, redLevel, elements);
+            setRight(middle, right);
+            setParent(right, middle);
+        }
+        return middle;
+    }
+
+    // Helper Method: Finds the level whose nodes must be red
+    //--------------------------------------------------------
+    // Summary: In a tree built from sorted input only the deepest level
+    // may be incomplete; colouring it red keeps black heights equal.
+    // Precondition: size is positive.
+    // Postcondition: Returns the depth of the deepest level, or a depth
+    // past the last level when the tree comes out perfect.
+    //--------------------------------------------------------
+
+    private static int computeRedLevel(int size) {
+        return 31 - Integer.numberOfLeadingZeros(size + 1);
+    }
+
+    // Method: Checks whether the tree holds any elements
+    //--------------------------------------------------------
+    // Summary: Reports if the tree is empty.
+    // Precondition: None.
+    // Postcondition: Returns true if the tree has no elements.
+    //--------------------------------------------------------
+
+    public boolean isEmpty() {
+        return root == NIL;
+    }
+
+    // Method: Counts the elements in the tree
+    //--------------------------------------------------------
+    // Summary: Returns the number of elements, kept up to date by every
+    // insertion and removal, in O(1).
+    // Precondition: None.
+    // Postcondition: Returns the element count.
+    //--------------------------------------------------------
+
+    public int size() {
+        return size;
+    }
+
+    // Method: Measures the height of the tree
+    //--------------------------------------------------------
+    // Summary: Walks every node, so it costs O(n); meant for monitoring,
+    // not for hot paths.
+    // Precondition: None.
+    // Postcondition: Returns the number of nodes on the longest path from
+    // the root to a leaf, or 0 for an empty tree.
+    //--------------------------------------------------------
+
+    public int height() {
+        return (int) measureDepths(true);
+    }
+
+    // Method: Measures the cost of a successful lookup
+    //--------------------------------------------------------
+    // Summary: A lookup compares the key with every node on the path to
+    // its element, so the average is the mean node depth, counting the
+    // root as depth one. Walks every node in O(n).
+    // Precondition: None.
+    // Postcondition: Returns the average, or 0 for an empty tree.
+    //--------------------------------------------------------
+
+    public double averageComparisons() {
+        return (size == 0) ? 0 : (double) measureDepths(false) / size;
+    }
+
+    // Helper Method: Walks every node, tracking its depth
+    //--------------------------------------------------------
+    // Summary: Depth-first walk with explicit stacks. A red-black tree of
+    // up to 2^31 elements is at most 62 levels deep, and the walk keeps
+    // at most one pending node per level plus one.
+    // Precondition: None.
+    // Postcondition: Returns the greatest depth, or the sum of all depths.
+    //--------------------------------------------------------
+
+    private long measureDepths(boolean greatest) {
+        if (root == NIL) {
+            return 0;
+        }
+        int[] nodes = new int[128];
+        int[] depths = new int[128];
+        nodes[0] = root;
+        depths[0] = 1;
+        int top = 1;
+        long result = 0;
+        while (top > 0) {
+            top--;
+            int node = nodes[top];
+            int depth = depths[top];
+            result = greatest ? Math.max(result, depth) : result + depth;
+            if (rightOf(node) != NIL) {
+                nodes[top] = rightOf(node);
+                depths[top++] = depth + 1;
+            }
+            if (leftOf(node) != NIL) {
+                nodes[top] = leftOf(node);
+                depths[top++] = depth + 1;
+            }
+        }
+        return result;
+    }
+
+    // Method: Counts the elements below a key
+    //--------------------------------------------------------
+    // Summary: Descends once, adding up the sizes of the subtrees left
+    // behind on the way down, so it runs in O(log n).
+    // Precondition: keyOrder must be consistent with the tree's ordering.
+    // Postcondition: Returns the number of elements less than the key,
+    // which is the index of the key if it is present.
+    //--------------------------------------------------------
+
+    public <K> int rank(K key, ToIntBiFunction<? super K, ? super T> keyOrder) {
+        int rank = 0;
+        int current = root;
+        while (current != NIL) {
+            if (keyOrder.applyAsInt(key, elementAt(current)) <= 0) {
+                current = leftOf(current);
+            } else {
+                rank += weightOf(leftOf(current)) + 1;
+                current = rightOf(current);
+            }
+        }
+        return rank;
+    }
+
+    // Method: Returns the element at a position in sorted order
+    //--------------------------------------------------------
+    // Summary: Steers by subtree sizes from the root to the element with
+    // the given index, in O(log n).
+    // Precondition: 0 <= index < size().
+    // Postcondition: Returns the element that has index smaller elements.
+    //--------------------------------------------------------
+
+    public T select(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index " + index + " out of bounds for size " + size);
+        }
+        return elementAt(nodeAt(index));
+    }
+
+    // Helper Method: Finds the node at a position in sorted order
+    private int nodeAt(int index) {
+        int current = root;
+        while (true) {
+            int leftWeight = weightOf(leftOf(current));
+            if (index < leftWeight) {
+                current = leftOf(current);
+            } else if (index == leftWeight) {
+                return current;
+            } else {
+                index -= leftWeight + 1;
+                current = rightOf(current);
+            }
+        }
+    }
+
+    // Helper Method: Finds the position of a node in sorted order
+    private int indexOf(int node) {
+        if (node == NIL) {
+            return size; // The end of the tree
+        }
+        int index = weightOf(leftOf(node));
+        for (int parent = parentOf(node); parent != NIL; node = parent, parent = parentOf(parent)) {
+            if (node == rightOf(parent)) {
+                index += weightOf(leftOf(parent)) + 1;
+            }
+        }
+        return index;
+    }
+
     // Method: Checks if the tree contains a specific element
     //--------------------------------------------------------
     // Summary: Searches for the specified data in the binary search tree.
@@ -117,79 +626,634 @@ public class BinarySearchTree<T extends Comparable<T>> {
     //--------------------------------------------------------
 
     public boolean contains(T data) {
-        return containsRec(root, data);
+        return findNode(data, order) != NIL;
     }
 
-    private boolean containsRec(Node<T> root, T data) {
-        if (root == null) {
-            return false;
-        }
-        if (data.compareTo(root.data) == 0) {
-            return true;
+    // Method: Looks up an element by key
+    //--------------------------------------------------------
+    // Summary: Searches the tree using only a key, so callers do not
+    // have to build a whole element to probe with. keyOrder compares the
+    // key with an element and must agree with the tree's ordering.
+    // Precondition: keyOrder must be consistent with the tree's ordering.
+    // Postcondition: Returns the matching element, or null if none exists.
+    //--------------------------------------------------------
+
+    public <K> T get(K key, ToIntBiFunction<? super K, ? super T> keyOrder) {
+        int node = findNode(key, keyOrder);
+        return (node == NIL) ? null : elementAt(node);
+    }
+
+    // Method: Looks up an element while a writer may be changing the tree
+    //--------------------------------------------------------
+    // Summary: Works like get, for readers holding no lock who validate
+    // what they read afterwards. A writer's rotations and reused slots
+    // may show such a reader a cycle of links, so the descent stops after
+    // as many steps as a red-black tree of this size can be deep.
+    // Precondition: keyOrder must be consistent with the tree's ordering,
+    // and the result must be discarded if a write overlapped the call.
+    // Postcondition: Returns the matching element, or null if none
+    // exists. Throws ConcurrentModificationException if the descent ran
+    // past the tree's greatest possible depth.
+    //--------------------------------------------------------
+
+    public <K> T getOptimistic(K key, ToIntBiFunction<? super K, ? super T> keyOrder) {
+        int current = root;
+        for (int steps = maxDepth(size); current != NIL; steps--) {
+            if (steps == 0) {
+                throw new ConcurrentModificationException("Tree changed during lookup");
+            }
+            int cmp = keyOrder.applyAsInt(key, elementAt(current));
+            if (cmp < 0) {
+                current = leftOf(current);
+            } else if (cmp > 0) {
+                current = rightOf(current);
+            } else {
+                return elementAt(current);
+            }
         }
-        if (data.compareTo(root.data) < 0) {
-            return containsRec(root.left, data);
-        } else {
-            return containsRec(root.right, data);
+        return null;
+    }
+
+    // Method: Traverses the tree while a writer may be changing it
+    //--------------------------------------------------------
+    // Summary: Works like inOrderTraversal, for readers holding no lock
+    // who validate what they read afterwards. Walks with an explicit stack
+    // no deeper than the tree can be, and visits no more nodes than the
+    // tree held when the walk started, so torn links cannot keep it going.
+    // Precondition: The action must be a valid Consumer function, and
+    // what it received must be discarded if a write overlapped the call.
+    // Postcondition: The action is applied to all elements in ascending
+    // order. Throws ConcurrentModificationException if the walk ran past
+    // either bound.
+    //--------------------------------------------------------
+
+    public void inOrderTraversalOptimistic(Consumer<? super T> action) {
+        int remaining = size;
+        int[] path = new int[maxDepth(remaining)];
+        int top = 0;
+        int node = root;
+        while (node != NIL || top > 0) {
+            for (; node != NIL; node = leftOf(node)) {
+                if (top == path.length) {
+                    throw new ConcurrentModificationException("Tree changed during traversal");
+                }
+                path[top++] = node;
+            }
+            node = path[--top];
+            if (remaining-- == 0) {
+                throw new ConcurrentModificationException("Tree changed during traversal");
+            }
+            action.accept(elementAt(node));
+            node = rightOf(node);
         }
     }
 
+    // Helper Method: Bounds the depth of a red-black tree
+    //--------------------------------------------------------
+    // Summary: A red-black tree of n elements is at most 2 log2(n + 1)
+    // levels deep.
+    // Precondition: size is not negative.
+    // Postcondition: Returns a depth no red-black tree of that size
+    // exceeds.
+    //--------------------------------------------------------
+
+    private static int maxDepth(int size) {
+        return 2 * (Integer.SIZE - Integer.numberOfLeadingZeros(size)) + 2;
+    }
+
     // Method: Removes an element from the binary search tree
     //--------------------------------------------------------
     // Summary: Deletes the specified node from the tree while maintaining
-    // the binary search tree structure.
+    // the binary search tree structure and its balance.
     // Precondition: The element must exist in the tree for successful removal.
-    // Postcondition: The specified element is removed if it exists.
+    // Postcondition: The specified element is removed if it exists. Returns
+    // the removed element, or null if it was not present.
     //--------------------------------------------------------
 
-    public void remove(T data) {
-        root = removeRec(root, data);
+    public T remove(T data) {
+        return remove(data, order);
+    }
 
+    // Method: Removes an element by key
+    //--------------------------------------------------------
+    // Summary: Deletes the element matching the key in a single descent.
+    // Precondition: keyOrder must be consistent with the tree's ordering.
+    // Postcondition: The matching element is removed if it exists. Returns
+    // the removed element, or null if none matched.
+    //--------------------------------------------------------
+
+    public <K> T remove(K key, ToIntBiFunction<? super K, ? super T> keyOrder) {
+        int node = findNode(key, keyOrder);
+        if (node == NIL) {
+            return null;
+        }
+        T removed = elementAt(node);
+        deleteNode(node);
+        return removed;
     }
 
-    private Node<T> removeRec(Node<T> root, T data) {
-        if (root == null) {
-            return null; // Element not found
+    // Helper Method: Finds the node matching a key
+    //--------------------------------------------------------
+    // Summary: Walks down from the root comparing the key against each node.
+    // Precondition: keyOrder must be consistent with the tree's ordering.
+    // Postcondition: Returns the matching node, or NIL if none exists.
+    //--------------------------------------------------------
+
+    private <K> int findNode(K key, ToIntBiFunction<? super K, ? super T> keyOrder) {
+        int current = root;
+        while (current != NIL) {
+            int cmp = keyOrder.applyAsInt(key, elementAt(current));
+            if (cmp < 0) {
+                current = leftOf(current);
+            } else if (cmp > 0) {
+                current = rightOf(current);
+            } else {
+                return current;
+            }
         }
+        return NIL;
+    }
 
-        //System.out.println("Visiting: " + root.data); // Debug output
+    // Helper Method: Finds the first node not below a key
+    //--------------------------------------------------------
+    // Summary: Descends once, remembering the last node whose element
+    // is greater than or equal to the key.
+    // Precondition: keyOrder must be consistent with the tree's ordering.
+    // Postcondition: Returns the smallest such node, or NIL if none exists.
+    //--------------------------------------------------------
+
+    private <K> int ceilingNode(K key, ToIntBiFunction<? super K, ? super T> keyOrder) {
+        int current = root;
+        int best = NIL;
+        while (current != NIL) {
+            if (keyOrder.applyAsInt(key, elementAt(current)) <= 0) {
+                best = current;
+                current = leftOf(current);
+            } else {
+                current = rightOf(current);
+            }
+        }
+        return best;
+    }
+
+    // Helper Method: Finds the last node not above a key
+    //--------------------------------------------------------
+    // Summary: Mirror image of ceilingNode.
+    // Precondition: keyOrder must be consistent with the tree's ordering.
+    // Postcondition: Returns the largest such node, or NIL if none exists.
+    //--------------------------------------------------------
+
+    private <K> int floorNode(K key, ToIntBiFunction<? super K, ? super T> keyOrder) {
+        int current = root;
+        int best = NIL;
+        while (current != NIL) {
+            if (keyOrder.applyAsInt(key, elementAt(current)) >= 0) {
+                best = current;
+                current = rightOf(current);
+            } else {
+                current = leftOf(current);
+            }
+        }
+        return best;
+    }
+
+    // Helper Method: Key order used when the element is its own key
+    private static <T extends Comparable<T>> int naturalOrder(T key, T element) {
+        return key.compareTo(element);
+    }
+
+    // Helper Method: Unlinks a node from the tree
+    //--------------------------------------------------------
+    // Summary: Removes the given node. A node with two children first
+    // takes over the data of its in-order successor, which is then
+    // unlinked instead. Colours are repaired afterwards and the unlinked
+    // slot is released for reuse.
+    // Precondition: The node must belong to this tree.
+    // Postcondition: The node's element is no longer in the tree.
+    //--------------------------------------------------------
+
+    private void deleteNode(int node) {
+        // Node with two children: Replace with inorder successor
+        if (leftOf(node) != NIL && rightOf(node) != NIL) {
+            int next = firstNode(rightOf(node));
+            elements[node] = elements[next];
+            node = next;
+        }
+
+        int replacement = (leftOf(node) != NIL) ? leftOf(node) : rightOf(node);
+        int parent = parentOf(node);
 
-        if (data.compareTo(root.data) < 0) {
-            root.left = removeRec(root.left, data);
-        } else if (data.compareTo(root.data) > 0) {
-            root.right = removeRec(root.right, data);
+        if (replacement != NIL) {
+            setParent(replacement, parent);
+            if (parent == NIL) {
+                root = replacement;
+            } else if (node == leftOf(parent)) {
+                setLeft(parent, replacement);
+            } else {
+                setRight(parent, replacement);
+            }
+            adjustWeights(parent, -1);
+
+            if (colorOf(node) == BLACK) {
+                fixAfterDeletion(replacement);
+            }
+        } else if (parent == NIL) {
+            root = NIL; // Removing the only node
         } else {
-            // Element found: handle removal
-            //System.out.println("Removing: " + root.data); // Debug output
+            // Leaf: use itself as the phantom replacement, then unlink.
+            // It already counts as empty so rotations keep sizes right.
+            setWeight(node, 0);
+            adjustWeights(parent, -1);
+            if (colorOf(node) == BLACK) {
+                fixAfterDeletion(node);
+            }
+            parent = parentOf(node);
+            if (parent != NIL) {
+                if (node == leftOf(parent)) {
+                    setLeft(parent, NIL);
+                } else if (node == rightOf(parent)) {
+                    setRight(parent, NIL);
+                }
+            }
+        }
+        releaseNode(node);
+    }
 
-            if (root.left == null) {
-                return root.right; // Replace with right child
-            } else if (root.right == null) {
-                return root.left; // Replace with left child
+    // Helper Method: Finds the smallest node in a subtree
+    //--------------------------------------------------------
+    // Summary: Locates and returns the leftmost node in the subtree
+    // rooted at the specified node.
+    // Precondition: None.
+    // Postcondition: Returns the smallest node, or NIL for an empty subtree.
+    //--------------------------------------------------------
+
+    private int firstNode(int root) {
+        if (root != NIL) {
+            while (leftOf(root) != NIL) {
+                root = leftOf(root);
             }
+        }
+        return root;
+    }
 
-            // Node with two children: Replace with inorder successor
-            root.data = findMin(root.right);
-            root.right = removeRec(root.right, root.data);
+    // Helper Method: Finds the largest node in a subtree
+    private int lastNode(int root) {
+        if (root != NIL) {
+            while (rightOf(root) != NIL) {
+                root = rightOf(root);
+            }
         }
         return root;
     }
 
+    // Helper Method: Finds the in-order successor of a node
+    //--------------------------------------------------------
+    // Summary: Returns the next node in ascending order, using the
+    // parent links instead of a stack.
+    // Precondition: The node must not be NIL.
+    // Postcondition: Returns the successor, or NIL for the largest node.
+    //--------------------------------------------------------
+
+    private int successor(int node) {
+        if (rightOf(node) != NIL) {
+            return firstNode(rightOf(node));
+        }
+        int parent = parentOf(node);
+        while (parent != NIL && node == rightOf(parent)) {
+            node = parent;
+            parent = parentOf(parent);
+        }
+        return parent;
+    }
+
+    // Helper Method: Finds the in-order predecessor of a node
+    //--------------------------------------------------------
+    // Summary: Mirror image of successor.
+    // Precondition: The node must not be NIL.
+    // Postcondition: Returns the predecessor, or NIL for the smallest node.
+    //--------------------------------------------------------
 
-    // Helper Method: Finds the smallest element in a subtree
+    private int predecessor(int node) {
+        if (leftOf(node) != NIL) {
+            node = leftOf(node);
+            while (rightOf(node) != NIL) {
+                node = rightOf(node);
+            }
+            return node;
+        }
+        int parent = parentOf(node);
+        while (parent != NIL && node == leftOf(parent)) {
+            node = parent;
+            parent = parentOf(parent);
+        }
+        return parent;
+    }
+
+    // Helper Method: Hands out a slot for a new black node
     //--------------------------------------------------------
-    // Summary: Locates and returns the smallest value in the subtree
-    // rooted at the specified node.
-    // Precondition: The root node must not be null.
-    // Postcondition: Returns the smallest value in the subtree.
+    // Summary: Reuses a released slot when there is one, otherwise takes
+    // the next unused slot, growing the arrays when they are full.
+    // Precondition: None.
+    // Postcondition: Returns a slot holding the data and the parent link
+    // with no children.
+    //--------------------------------------------------------
+
+    private int newNode(T data, int parent) {
+        int node;
+        if (free != NIL) {
+            node = free;
+            free = leftOf(node);
+        } else {
+            if (used == elements.length) {
+                grow();
+            }
+            node = used++;
+        }
+        size++;
+        elements[node] = data;
+        links[4 * node] = NIL;
+        links[4 * node + 1] = NIL;
+        links[4 * node + 2] = parent;
+        links[4 * node + 3] = 1;
+        return node;
+    }
+
+    // Helper Method: Returns an unlinked slot to the free chain
+    private void releaseNode(int node) {
+        size--;
+        elements[node] = null;
+        if (root == NIL) {
+            release(); // Drop the storage of a drained tree
+            return;
+        }
+        links[4 * node] = free;
+        links[4 * node + 1] = NIL;
+        links[4 * node + 2] = NIL;
+        links[4 * node + 3] = 0;
+        free = node;
+    }
+
+    // Helper Method: Enlarges the node arrays
+    //--------------------------------------------------------
+    // Summary: Small trees double, larger ones grow by half, so the many
+    // tiny trees of a database (care teams) stay small while large
+    // indexes waste at most a third of their slots.
+    // Precondition: Every slot is in use.
+    // Postcondition: At least one unused slot is available.
     //--------------------------------------------------------
 
-    private T findMin(Node<T> root) {
-        T minValue = root.data;
-        while (root.left != null) {
-            root = root.left;
-            minValue = root.data;
+    private void grow() {
+        int capacity = elements.length;
+        if (capacity == MAX_CAPACITY) {
+            throw new IllegalStateException("Tree is full");
+        }
+        int grown = (capacity == 0) ? 2 : (capacity < 64) ? capacity * 2 : capacity + (capacity >> 1);
+        capacity = Math.min(grown, MAX_CAPACITY);
+        elements = Arrays.copyOf(elements, capacity);
+        links = Arrays.copyOf(links, 4 * capacity);
+        if (used == 0) {
+            used = 1; // Reserve slot 0 as the null link
+        }
+    }
+
+    // Helper Method: Allocates arrays for an exact number of slots
+    private void allocate(int capacity) {
+        elements = new Object[capacity];
+        links = new int[4 * capacity];
+        used = 1;
+    }
+
+    // Helper Method: Drops all nodes and their storage
+    private void release() {
+        elements = NO_ELEMENTS;
+        links = NO_LINKS;
+        root = NIL;
+        size = 0;
+        used = 0;
+        free = NIL;
+    }
+
+    @SuppressWarnings("unchecked")
+    private T elementAt(int node) {
+        return (T) elements[node];
+    }
+
+    // Balancing helpers. The NIL slot counts as a black leaf: reading it
+    // yields no links, and writes to it are skipped.
+
+    private boolean colorOf(int node) {
+        return (node == NIL || links[4 * node + 2] >= 0) ? BLACK : RED;
+    }
+
+    private int parentOf(int node) {
+        return (node == NIL) ? NIL : links[4 * node + 2] & ~RED_BIT;
+    }
+
+    private void setColor(int node, boolean color) {
+        if (node != NIL) {
+            int link = links[4 * node + 2];
+            links[4 * node + 2] = (color == RED) ? link | RED_BIT : link & ~RED_BIT;
+        }
+    }
+
+    private int leftOf(int node) {
+        return (node == NIL) ? NIL : links[4 * node];
+    }
+
+    private int rightOf(int node) {
+        return (node == NIL) ? NIL : links[4 * node + 1];
+    }
+
+    private void setLeft(int node, int child) {
+        links[4 * node] = child;
+    }
+
+    private void setRight(int node, int child) {
+        links[4 * node + 1] = child;
+    }
+
+    private void setParent(int node, int parent) {
+        links[4 * node + 2] = (links[4 * node + 2] & RED_BIT) | parent;
+    }
+
+    private int weightOf(int node) {
+        return (node == NIL) ? 0 : links[4 * node + 3];
+    }
+
+    private void setWeight(int node, int weight) {
+        links[4 * node + 3] = weight;
+    }
+
+    // Adds delta to the subtree size of the node and of every ancestor
+    private void adjustWeights(int node, int delta) {
+        for (; node != NIL; node = parentOf(node)) {
+            links[4 * node + 3] += delta;
+        }
+    }
+
+    private void rotateLeft(int node) {
+        if (node == NIL) {
+            return;
+        }
+        int pivot = rightOf(node);
+        int parent = parentOf(node);
+        int weight = weightOf(node);
+        setRight(node, leftOf(pivot));
+        if (leftOf(pivot) != NIL) {
+            setParent(leftOf(pivot), node);
+        }
+        setParent(pivot, parent);
+        if (parent == NIL) {
+            root = pivot;
+        } else if (leftOf(parent) == node) {
+            setLeft(parent, pivot);
+        } else {
+            setRight(parent, pivot);
+        }
+        setLeft(pivot, node);
+        setParent(node, pivot);
+        setWeight(pivot, weight);
+        setWeight(node, weightOf(leftOf(node)) + weightOf(rightOf(node)) + 1);
+    }
+
+    private void rotateRight(int node) {
+        if (node == NIL) {
+            return;
+        }
+        int pivot = leftOf(node);
+        int parent = parentOf(node);
+        int weight = weightOf(node);
+        setLeft(node, rightOf(pivot));
+        if (rightOf(pivot) != NIL) {
+            setParent(rightOf(pivot), node);
+        }
+        setParent(pivot, parent);
+        if (parent == NIL) {
+            root = pivot;
+        } else if (rightOf(parent) == node) {
+            setRight(parent, pivot);
+        } else {
+            setLeft(parent, pivot);
+        }
+        setRight(pivot, node);
+        setParent(node, pivot);
+        setWeight(pivot, weight);
+        setWeight(node, weightOf(leftOf(node)) + weightOf(rightOf(node)) + 1);
+    }
+
+    // Helper Method: Restores the red-black rules after an insertion
+    //--------------------------------------------------------
+    // Summary: Recolours and rotates upwards from a freshly linked node
+    // until no red node has a red parent.
+    // Precondition: The node has just been linked into the tree.
+    // Postcondition: The tree is balanced and the root is black.
+    //--------------------------------------------------------
+
+    private void fixAfterInsertion(int node) {
+        setColor(node, RED);
+
+        while (node != NIL && node != root && colorOf(parentOf(node)) == RED) {
+            if (parentOf(node) == leftOf(parentOf(parentOf(node)))) {
+                int uncle = rightOf(parentOf(parentOf(node)));
+                if (colorOf(uncle) == RED) {
+                    setColor(parentOf(node), BLACK);
+                    setColor(uncle, BLACK);
+                    setColor(parentOf(parentOf(node)), RED);
+                    node = parentOf(parentOf(node));
+                } else {
+                    if (node == rightOf(parentOf(node))) {
+                        node = parentOf(node);
+                        rotateLeft(node);
+                    }
+                    setColor(parentOf(node), BLACK);
+                    setColor(parentOf(parentOf(node)), RED);
+                    rotateRight(parentOf(parentOf(node)));
+                }
+            } else {
+                int uncle = leftOf(parentOf(parentOf(node)));
+                if (colorOf(uncle) == RED) {
+                    setColor(parentOf(node), BLACK);
+                    setColor(uncle, BLACK);
+                    setColor(parentOf(parentOf(node)), RED);
+                    node = parentOf(parentOf(node));
+                } else {
+                    if (node == leftOf(parentOf(node))) {
+                        node = parentOf(node);
+                        rotateRight(node);
+                    }
+                    setColor(parentOf(node), BLACK);
+                    setColor(parentOf(parentOf(node)), RED);
+                    rotateLeft(parentOf(parentOf(node)));
+                }
+            }
+        }
+        setColor(root, BLACK);
+    }
+
+    // Helper Method: Restores the red-black rules after a deletion
+    //--------------------------------------------------------
+    // Summary: Pushes the missing black height up the tree, recolouring
+    // and rotating siblings until every path has the same black count.
+    // Precondition: A black node has just been unlinked above the node.
+    // Postcondition: The tree is balanced.
+    //--------------------------------------------------------
+
+    private void fixAfterDeletion(int node) {
+        while (node != root && colorOf(node) == BLACK) {
+            if (node == leftOf(parentOf(node))) {
+                int sibling = rightOf(parentOf(node));
+
+                if (colorOf(sibling) == RED) {
+                    setColor(sibling, BLACK);
+                    setColor(parentOf(node), RED);
+                    rotateLeft(parentOf(node));
+                    sibling = rightOf(parentOf(node));
+                }
+
+                if (colorOf(leftOf(sibling)) == BLACK && colorOf(rightOf(sibling)) == BLACK) {
+                    setColor(sibling, RED);
+                    node = parentOf(node);
+                } else {
+                    if (colorOf(rightOf(sibling)) == BLACK) {
+                        setColor(leftOf(sibling), BLACK);
+                        setColor(sibling, RED);
+                        rotateRight(sibling);
+                        sibling = rightOf(parentOf(node));
+                    }
+                    setColor(sibling, colorOf(parentOf(node)));
+                    setColor(parentOf(node), BLACK);
+                    setColor(rightOf(sibling), BLACK);
+                    rotateLeft(parentOf(node));
+                    node = root;
+                }
+            } else {
+                int sibling = leftOf(parentOf(node));
+
+                if (colorOf(sibling) == RED) {
+                    setColor(sibling, BLACK);
+                    setColor(parentOf(node), RED);
+                    rotateRight(parentOf(node));
+                    sibling = leftOf(parentOf(node));
+                }
+
+                if (colorOf(rightOf(sibling)) == BLACK && colorOf(leftOf(sibling)) == BLACK) {
+                    setColor(sibling, RED);
+                    node = parentOf(node);
+                } else {
+                    if (colorOf(leftOf(sibling)) == BLACK) {
+                        setColor(rightOf(sibling), BLACK);
+                        setColor(sibling, RED);
+                        rotateLeft(sibling);
+                        sibling = leftOf(parentOf(node));
+                    }
+                    setColor(sibling, colorOf(parentOf(node)));
+                    setColor(parentOf(node), BLACK);
+                    setColor(leftOf(sibling), BLACK);
+                    rotateRight(parentOf(node));
+                    node = root;
+                }
+            }
         }
-        return minValue;
+        setColor(node, BLACK);
     }
 }
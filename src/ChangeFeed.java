@@ -0,0 +1,339 @@
+//-----------------------------------------------------
+// Title: Change Feed
+// Author: Ege Yavuz
+// ID: 14872032366
+// Section: 1
+// Assignment: 3
+// Description: Streams the mutations of a HospitalDatabase to
+// subscribers, e.g. a ReplicaApplier keeping a read-only copy current.
+// Every change becomes a sequenced event in a bounded ring buffer. The
+// database publishes under its write lock, so there is a single
+// producer, and neither it nor the subscribers take a lock: the producer
+// writes a slot and then advances a volatile sequence, and each
+// subscriber advances its own volatile cursor after handling a batch.
+// When the slowest subscriber is a whole ring behind, the producer waits
+// for it instead of overwriting events it has not seen, so a subscriber
+// that stalls eventually stalls writers; close it to let them go.
+//-----------------------------------------------------
+
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+
+public final class ChangeFeed {
+
+    // The kinds of change
+    public enum Type {
+        ADD_PATIENT,
+        REMOVE_PATIENT,
+        ADD_MEMBER,
+        REMOVE_MEMBER,
+        RESET // Everything was replaced; the current contents follow as additions
+    }
+
+    // Interface for consuming events
+    //--------------------------------------------------------
+    // Summary: Receives events in sequence order, in batches of whatever
+    // has been published since the previous call. The batch list is
+    // reused, so copy what must be kept.
+    //--------------------------------------------------------
+    public interface Handler {
+        void onEvents(List<Event> batch);
+    }
+
+    // Inner class to represent one change
+    //--------------------------------------------------------
+    // Summary: Immutable. Which fields are set depends on the type:
+    // ADD_PATIENT carries the recorded visit, ADD_MEMBER the stored member
+    // and REMOVE_MEMBER the member's name. Overwrite marks the readmission
+    // of an existing patient, or a member that replaced an existing one.
+    //--------------------------------------------------------
+    public static final class Event {
+        private final long sequence;
+        private final long publishNanos;
+        private final Type type;
+        private final boolean overwrite;
+        private final String patientName;
+        private final HospitalDatabase.Patient patient;
+        private final HospitalDatabase.StaffMember member;
+        private final String memberName;
+
+        Event(long sequence, Type type, boolean overwrite, String patientName, HospitalDatabase.Patient patient,
+              HospitalDatabase.StaffMember member, String memberName) {
+            this.sequence = sequence;
+            this.publishNanos = System.nanoTime();
+            this.type = type;
+            this.overwrite = overwrite;
+            this.patientName = patientName;
+            this.patient = patient;
+            this.member = member;
+            this.memberName = memberName;
+        }
+
+        public long getSequence() {
+            return sequence;
+        }
+
+        // System.nanoTime() when the event was published
+        public long getPublishNanos() {
+            return publishNanos;
+        }
+
+        public Type getType() {
+            return type;
+        }
+
+        public boolean isOverwrite() {
+            return overwrite;
+        }
+
+        public String getPatientName() {
+            return patientName;
+        }
+
+        public HospitalDatabase.Patient getPatient() {
+            return patient;
+        }
+
+        public HospitalDatabase.StaffMember getMember() {
+            return member;
+        }
+
+        public String getMemberName() {
+            return memberName;
+        }
+
+        @Override
+        public String toString() {
+            return sequence + " " + type + (overwrite ? " (overwrite) " : " ") + patientName
+                    + ((patient != null) ? ", " + patient.getDoctorName() : "")
+                    + ((member != null) ? ", " + member : "") + ((memberName != null) ? ", " + memberName : "");
+        }
+    }
+
+    // Inner class to represent one subscriber
+    //--------------------------------------------------------
+    // Summary: Owns a daemon thread that hands published events to the
+    // handler in batches. The thread parks when it has caught up and the
+    // producer unparks it on the next publish.
+    //--------------------------------------------------------
+    public final class Subscription implements Closeable {
+        private final Handler handler;
+        private final Thread thread;
+        private volatile long cursor; // Last sequence handled
+        private volatile boolean sleeping;
+        private volatile boolean closed;
+
+        private Subscription(Handler handler, long cursor, String threadName) {
+            this.handler = handler;
+            this.cursor = cursor;
+            this.thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    consume();
+                }
+            }, threadName);
+            this.thread.setDaemon(true);
+        }
+
+        // Method: Returns how many published events are not handled yet
+        public long getLag() {
+            return published - cursor;
+        }
+
+        // Helper Method: The subscriber thread's loop
+        //--------------------------------------------------------
+        // Summary: Takes everything published past the cursor, up to
+        // maxBatch events, hands it to the handler and advances the
+        // cursor, which frees the slots for the producer.
+        // Precondition: Runs on the subscription's thread.
+        // Postcondition: Returns once the subscription is closed.
+        //--------------------------------------------------------
+
+        private void consume() {
+            List<Event> batch = new ArrayList<>(maxBatch);
+            while (!closed) {
+                long next = cursor + 1;
+                long available = published;
+                if (available < next) {
+                    sleeping = true;
+                    if (published < next && !closed) {
+                        LockSupport.park(this);
+                    }
+                    sleeping = false;
+                    continue;
+                }
+                long last = Math.min(available, next + maxBatch - 1);
+                batch.clear();
+                for (long sequence = next; sequence <= last; sequence++) {
+                    batch.add(ring[(int) sequence & mask]);
+                }
+                try {
+                    handler.onEvents(batch);
+                } catch (RuntimeException e) {
+                    System.err.println("ERROR: Change subscriber failed and was closed: " + e);
+                    unsubscribe(this);
+                    return;
+                }
+                cursor = last;
+            }
+        }
+
+        // Method: Stops the subscription
+        //--------------------------------------------------------
+        // Summary: Stops the thread after its current batch and stops
+        // holding back the producer.
+        // Precondition: Not called from the handler.
+        // Postcondition: The handler receives no further events.
+        //--------------------------------------------------------
+
+        @Override
+        public void close() {
+            closed = true;
+            unsubscribe(this);
+            LockSupport.unpark(thread);
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private final Event[] ring;
+    private final int mask;
+    private final int maxBatch;
+    private volatile long published = -1; // Last sequence published
+    private volatile Subscription[] subscribers = new Subscription[0];
+    private long gatingCursor = -1; // Producer's cached view of the slowest cursor
+    private int subscriberCount; // Names subscriber threads; guarded by this
+
+    // Constructor: Creates an empty feed
+    //--------------------------------------------------------
+    // Summary: The capacity is rounded up to a power of two, so a
+    // sequence maps to its slot with a mask.
+    // Precondition: capacity is between 1 and 2^30.
+    // Postcondition: Nothing has been published.
+    //--------------------------------------------------------
+
+    ChangeFeed(int capacity) {
+        if (capacity <= 0 || capacity > (1 << 30)) {
+            throw new IllegalArgumentException("Invalid capacity: " + capacity);
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        ring = new Event[size];
+        mask = size - 1;
+        maxBatch = Math.max(1, Math.min(1024, size / 2));
+    }
+
+    // Method: Returns the ring's capacity
+    public int getCapacity() {
+        return ring.length;
+    }
+
+    // Method: Returns the sequence of the last published event, or -1
+    public long getPublishedSequence() {
+        return published;
+    }
+
+    // Helper Method: Publishes one event
+    //--------------------------------------------------------
+    // Summary: Waits while the slot still holds an event the slowest
+    // subscriber has not handled, stores the event, advances the
+    // published sequence and wakes subscribers that are parked.
+    // Precondition: Only one thread publishes at a time; the database
+    // calls this under its write lock.
+    // Postcondition: Returns the published event.
+    //--------------------------------------------------------
+
+    Event publish(Type type, boolean overwrite, String patientName, HospitalDatabase.Patient patient,
+                  HospitalDatabase.StaffMember member, String memberName) {
+        long sequence = published + 1;
+        long wrapPoint = sequence - ring.length;
+        if (wrapPoint > gatingCursor) {
+            awaitRoom(wrapPoint);
+        }
+        Event event = new Event(sequence, type, overwrite, patientName, patient, member, memberName);
+        ring[(int) sequence & mask] = event;
+        published = sequence;
+        for (Subscription subscriber : subscribers) {
+            if (subscriber.sleeping) {
+                LockSupport.unpark(subscriber.thread);
+            }
+        }
+        return event;
+    }
+
+    // Helper Method: Waits until every subscriber is past a sequence
+    //--------------------------------------------------------
+    // Summary: Spins briefly, then yields, then parks for growing
+    // intervals, so a short wait stays cheap and a long one does not
+    // burn a core.
+    // Precondition: Called by the producer.
+    // Postcondition: No subscriber still needs the slot of wrapPoint.
+    //--------------------------------------------------------
+
+    private void awaitRoom(long wrapPoint) {
+        int attempts = 0;
+        while (true) {
+            long slowest = published;
+            for (Subscription subscriber : subscribers) {
+                slowest = Math.min(slowest, subscriber.cursor);
+            }
+            if (slowest >= wrapPoint) {
+                gatingCursor = slowest;
+                return;
+            }
+            for (Subscription subscriber : subscribers) {
+                if (subscriber.sleeping) {
+                    LockSupport.unpark(subscriber.thread);
+                }
+            }
+            attempts++;
+            if (attempts < 100) {
+                Thread.onSpinWait();
+            } else if (attempts < 200) {
+                Thread.yield();
+            } else {
+                LockSupport.parkNanos(Math.min(1_000_000L, 1000L << Math.min(10, (attempts - 200) / 10)));
+            }
+        }
+    }
+
+    // Helper Method: Adds a subscriber starting after the last published event
+    //--------------------------------------------------------
+    // Summary: The subscription is registered but its thread is not
+    // started, so the caller can first hand it the current contents.
+    // Precondition: No event is published concurrently; the database
+    // holds its write lock.
+    // Postcondition: Returns the subscription; call start to run it.
+    //--------------------------------------------------------
+
+    synchronized Subscription subscribe(Handler handler) {
+        Subscription subscription = new Subscription(handler, published,
+                "hospital-change-subscriber-" + subscriberCount++);
+        Subscription[] grown = Arrays.copyOf(subscribers, subscribers.length + 1);
+        grown[grown.length - 1] = subscription;
+        subscribers = grown;
+        return subscription;
+    }
+
+    // Helper Method: Starts a subscription's thread
+    static void start(Subscription subscription) {
+        subscription.thread.start();
+    }
+
+    // Helper Method: Removes a subscriber so it no longer holds back the producer
+    private synchronized void unsubscribe(Subscription subscription) {
+        List<Subscription> remaining = new ArrayList<>(Arrays.asList(subscribers));
+        if (remaining.remove(subscription)) {
+            subscribers = remaining.toArray(new Subscription[0]);
+        }
+    }
+}
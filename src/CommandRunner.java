@@ -0,0 +1,391 @@
+//-----------------------------------------------------
+// Title: Command Runner
+// Author: Ege Yavuz
+// ID: 14872032366
+// Section: 1
+// Assignment: 3
+// Description: Executes a command file against a HospitalDatabase. Each
+// line holds one command with comma-separated arguments:
+//     ADD_PATIENT,<name>,<doctor>,<day>,<month>,<year>
+//     REMOVE_PATIENT,<name>
+//     ADD_MEMBER,<patient>,<member>,<role>
+//     REMOVE_MEMBER,<patient>,<member>
+//     SHOW_PATIENT,<name>
+//     SHOW_ALL_PATIENTS[,<offset>,<limit>]
+//     SHOW_DOCTOR_PATIENTS,<doctor>
+//     SHOW_PATIENTS,<year>
+//     SHOW_PATIENTS_BETWEEN,<day>,<month>,<year>,<day>,<month>,<year>
+//     SHOW_STAFF_PATIENTS,<member>
+// Blank lines and lines starting with '#' are ignored. Lines are parsed
+// on a separate thread and handed over in blocks, runs of consecutive
+// mutations are applied as one batch under a single write lock, and all
+// output goes through one buffered writer. The output is the same as
+// making the calls one by one.
+//
+// Usage: java CommandRunner [commandFile|- [databaseDirectory]]
+// Commands are read from stdin when no file or "-" is given. With a
+// directory the database is opened there, otherwise it is in memory.
+//-----------------------------------------------------
+
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+public class CommandRunner {
+
+    // Commands handed from the parser to the executor at a time
+    private static final int BLOCK_SIZE = 1024;
+    // Blocks the parser may run ahead of the executor
+    private static final int QUEUE_CAPACITY = 16;
+    // Most mutations applied under one write lock acquisition
+    private static final int MAX_BATCH_SIZE = 4096;
+    private static final int OUTPUT_BUFFER_SIZE = 1 << 16;
+
+    // The queries a command file can make
+    private enum QueryKind {
+        SHOW_PATIENT,
+        SHOW_ALL_PATIENTS,
+        SHOW_PATIENT_PAGE,
+        SHOW_DOCTOR_PATIENTS,
+        SHOW_PATIENTS,
+        SHOW_PATIENTS_BETWEEN,
+        SHOW_STAFF_PATIENTS,
+        MALFORMED
+    }
+
+    // Inner class to represent a parsed query
+    //--------------------------------------------------------
+    // Summary: A query and its arguments. A malformed line becomes a
+    // query whose name is the line number, so the error appears in order
+    // with the rest of the output.
+    //--------------------------------------------------------
+    private static final class Query {
+        private final QueryKind kind;
+        private final String name;
+        private final int[] numbers;
+
+        Query(QueryKind kind, String name, int[] numbers) {
+            this.kind = kind;
+            this.name = name;
+            this.numbers = numbers;
+        }
+    }
+
+    // Inner class to carry parsed commands between threads
+    //--------------------------------------------------------
+    // Summary: Holds up to BLOCK_SIZE commands, each either a
+    // HospitalDatabase.Mutation or a Query. The last block of the input
+    // is marked, and carries the exception if reading failed.
+    //--------------------------------------------------------
+    private static final class Block {
+        private final Object[] commands;
+        private int size;
+        private boolean last;
+        private IOException failure;
+
+        Block(int capacity) {
+            this.commands = new Object[capacity];
+        }
+    }
+
+    private final HospitalDatabase database;
+    private final Writer out;
+    private final List<HospitalDatabase.Mutation> pending = new ArrayList<>(MAX_BATCH_SIZE);
+
+    // Constructor: Initializes a runner
+    //--------------------------------------------------------
+    // Summary: Commands will be executed against the database, and all
+    // their output written to out, which should be buffered.
+    // Precondition: Neither argument is null.
+    // Postcondition: The runner is ready to run command files.
+    //--------------------------------------------------------
+
+    public CommandRunner(HospitalDatabase database, Writer out) {
+        this.database = database;
+        this.out = out;
+    }
+
+    // Method: Runs a command file or stdin
+    //--------------------------------------------------------
+    // Summary: Executes the commands in the file, or on stdin, against an
+    // in-memory database or one opened on the directory, writing the
+    // output to stdout.
+    // Precondition: The file must be readable UTF-8 text.
+    // Postcondition: Every command has been executed.
+    //--------------------------------------------------------
+
+    public static void main(String[] args) throws IOException {
+        // Bypasses System.out, which flushes on every line
+        Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(FileDescriptor.out),
+                StandardCharsets.UTF_8), OUTPUT_BUFFER_SIZE);
+        try (HospitalDatabase database = (args.length > 1)
+                     ? HospitalDatabase.open(Paths.get(args[1])) : new HospitalDatabase();
+             BufferedReader input = (args.length == 0 || args[0].equals("-"))
+                     ? new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8), OUTPUT_BUFFER_SIZE)
+                     : Files.newBufferedReader(Paths.get(args[0]), StandardCharsets.UTF_8)) {
+            new CommandRunner(database, out).run(input);
+        } finally {
+            out.flush();
+        }
+    }
+
+    // Method: Executes every command read from the input
+    //--------------------------------------------------------
+    // Summary: Starts a parser thread that reads and parses the input
+    // while this thread executes the commands. Consecutive mutations are
+    // collected and applied together with HospitalDatabase.applyBatch,
+    // until a query needs to see them, the batch is full or no more
+    // input is available yet. The writer is flushed whenever the
+    // executor catches up with the input, so interactive use on stdin
+    // sees each answer as soon as it is ready.
+    // Precondition: The input is not read by anyone else.
+    // Postcondition: Returns the number of commands executed, including
+    // malformed ones; the input is exhausted and the writer flushed.
+    //--------------------------------------------------------
+
+    public long run(BufferedReader input) throws IOException {
+        BlockingQueue<Block> blocks = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        Thread parser = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                parse(input, blocks);
+            }
+        }, "hospital-command-parser");
+        parser.setDaemon(true);
+        parser.start();
+
+        long executed = 0;
+        try {
+            while (true) {
+                Block block = blocks.take();
+                for (int i = 0; i < block.size; i++) {
+                    Object command = block.commands[i];
+                    if (command instanceof HospitalDatabase.Mutation) {
+                        pending.add((HospitalDatabase.Mutation) command);
+                        if (pending.size() == MAX_BATCH_SIZE) {
+                            applyPending();
+                        }
+                    } else {
+                        applyPending();
+                        execute(database, command, out);
+                    }
+                }
+                executed += block.size;
+                if (block.last) {
+                    applyPending();
+                    out.flush();
+                    if (block.failure != null) {
+                        throw block.failure;
+                    }
+                    return executed;
+                }
+                if (blocks.isEmpty()) {
+                    applyPending();
+                    out.flush();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while running commands", e);
+        } finally {
+            parser.interrupt(); // Stops a parser still waiting for room
+        }
+    }
+
+    // Helper Method: Reads and parses the input on the parser thread
+    //--------------------------------------------------------
+    // Summary: Fills blocks with parsed commands and queues them. A block
+    // is handed over early when the input has nothing more to read right
+    // now, so commands typed on stdin are not held back.
+    // Precondition: Runs on the parser thread.
+    // Postcondition: The last block queued is marked last.
+    //--------------------------------------------------------
+
+    private static void parse(BufferedReader input, BlockingQueue<Block> blocks) {
+        Block block = new Block(BLOCK_SIZE);
+        try {
+            String line;
+            long lineNumber = 0;
+            while ((line = input.readLine()) != null) {
+                lineNumber++;
+                if (line.isBlank() || line.startsWith("#")) {
+                    continue;
+                }
+                block.commands[block.size++] = parseCommand(line, lineNumber);
+                if (block.size == BLOCK_SIZE || !input.ready()) {
+                    blocks.put(block);
+                    block = new Block(BLOCK_SIZE);
+                }
+            }
+        } catch (IOException e) {
+            block.failure = e;
+        } catch (RuntimeException e) {
+            block.failure = new IOException("Command parser failed", e);
+        } catch (InterruptedException e) {
+            return; // The executor has given up
+        }
+        block.last = true;
+        try {
+            blocks.put(block);
+        } catch (InterruptedException e) {
+            // The executor has given up
+        }
+    }
+
+    // Helper Method: Parses one command line
+    //--------------------------------------------------------
+    // Summary: Splits the line on commas, trims the arguments and builds
+    // the mutation or query it describes. Also used by HospitalServer.
+    // Precondition: The line is not blank.
+    // Postcondition: Returns a HospitalDatabase.Mutation or a Query; a
+    // malformed line, including one with an invalid visit date, yields a
+    // MALFORMED query.
+    //--------------------------------------------------------
+
+    static Object parseCommand(String line, long lineNumber) {
+        String[] fields = line.split(",", -1);
+        for (int i = 0; i < fields.length; i++) {
+            fields[i] = fields[i].trim();
+        }
+        try {
+            switch (fields[0]) {
+                case "ADD_PATIENT":
+                    if (fields.length == 6) {
+                        return HospitalDatabase.Mutation.addPatient(fields[1], fields[2], Integer.parseInt(fields[3]),
+                                Integer.parseInt(fields[4]), Integer.parseInt(fields[5]));
+                    }
+                    break;
+                case "REMOVE_PATIENT":
+                    if (fields.length == 2) {
+                        return HospitalDatabase.Mutation.removePatient(fields[1]);
+                    }
+                    break;
+                case "ADD_MEMBER":
+                    if (fields.length == 4) {
+                        return HospitalDatabase.Mutation.addMember(fields[1], fields[2], fields[3]);
+                    }
+                    break;
+                case "REMOVE_MEMBER":
+                    if (fields.length == 3) {
+                        return HospitalDatabase.Mutation.removeMember(fields[1], fields[2]);
+                    }
+                    break;
+                case "SHOW_PATIENT":
+                    if (fields.length == 2) {
+                        return new Query(QueryKind.SHOW_PATIENT, fields[1], null);
+                    }
+                    break;
+                case "SHOW_ALL_PATIENTS":
+                    if (fields.length == 1) {
+                        return new Query(QueryKind.SHOW_ALL_PATIENTS, null, null);
+                    }
+                    if (fields.length == 3) {
+                        int offset = Integer.parseInt(fields[1]);
+                        int limit = Integer.parseInt(fields[2]);
+                        if (offset >= 0 && limit >= 0) {
+                            return new Query(QueryKind.SHOW_PATIENT_PAGE, null, new int[] {offset, limit});
+                        }
+                    }
+                    break;
+                case "SHOW_DOCTOR_PATIENTS":
+                    if (fields.length == 2) {
+                        return new Query(QueryKind.SHOW_DOCTOR_PATIENTS, fields[1], null);
+                    }
+                    break;
+                case "SHOW_PATIENTS":
+                    if (fields.length == 2) {
+                        return new Query(QueryKind.SHOW_PATIENTS, null, new int[] {Integer.parseInt(fields[1])});
+                    }
+                    break;
+                case "SHOW_PATIENTS_BETWEEN":
+                    if (fields.length == 7) {
+                        int[] dates = new int[6];
+                        for (int i = 0; i < dates.length; i++) {
+                            dates[i] = Integer.parseInt(fields[i + 1]);
+                        }
+                        if (HospitalDatabase.isValidDate(dates[0], dates[1], dates[2])
+                                && HospitalDatabase.isValidDate(dates[3], dates[4], dates[5])) {
+                            return new Query(QueryKind.SHOW_PATIENTS_BETWEEN, null, dates);
+                        }
+                    }
+                    break;
+                case "SHOW_STAFF_PATIENTS":
+                    if (fields.length == 2) {
+                        return new Query(QueryKind.SHOW_STAFF_PATIENTS, fields[1], null);
+                    }
+                    break;
+                default:
+                    break;
+            }
+        } catch (IllegalArgumentException e) {
+            // A bad number or visit date; reported as malformed below
+        }
+        return new Query(QueryKind.MALFORMED, Long.toString(lineNumber), null);
+    }
+
+    // Helper Method: Applies the collected mutations as one batch
+    private void applyPending() {
+        if (!pending.isEmpty()) {
+            database.applyBatch(pending, out);
+            pending.clear();
+        }
+    }
+
+    // Helper Method: Runs one parsed command against the database
+    //--------------------------------------------------------
+    // Summary: Applies a mutation as a batch of one, or calls the show
+    // method matching a query. Also used by HospitalServer.
+    // Precondition: command was returned by parseCommand, and no earlier
+    // mutations are still pending.
+    // Postcondition: The command's output has been written to out.
+    //--------------------------------------------------------
+
+    static void execute(HospitalDatabase database, Object command, Appendable out) throws IOException {
+        if (command instanceof HospitalDatabase.Mutation) {
+            database.applyBatch(Collections.singletonList((HospitalDatabase.Mutation) command), out);
+            return;
+        }
+        Query query = (Query) command;
+        int[] n = query.numbers;
+        switch (query.kind) {
+            case SHOW_PATIENT:
+                database.showPatient(query.name, out);
+                break;
+            case SHOW_ALL_PATIENTS:
+                database.showAllPatients(out);
+                break;
+            case SHOW_PATIENT_PAGE:
+                database.showAllPatients(n[0], n[1], out);
+                break;
+            case SHOW_DOCTOR_PATIENTS:
+                database.showDoctorPatients(query.name, out);
+                break;
+            case SHOW_PATIENTS:
+                database.showPatients(n[0], out);
+                break;
+            case SHOW_PATIENTS_BETWEEN:
+                database.showPatientsBetween(n[0], n[1], n[2], n[3], n[4], n[5], out);
+                break;
+            case SHOW_STAFF_PATIENTS:
+                database.showStaffPatients(query.name, out);
+                break;
+            case MALFORMED:
+                out.append("ERROR: Line ").append(query.name).append(" is malformed").append(System.lineSeparator());
+                break;
+        }
+    }
+}
@@ -6,326 +6,2986 @@
 // Assignment: 3
 // Using binary search trees, this class allows for the insertion, deletion,
 // and querying of patients and their care teams in a hospital database.
+// The database is thread-safe: queries run concurrently with each other
+// under a shared read lock, and mutations are serialized by a write lock.
+// Patient lookups first try an optimistic read that takes no lock at all,
+// and cached patient listings are served without the lock, so these
+// never wait for a writer unless one overlaps them. Every other listing
+// takes the read lock: listings never wait for each other, but they do
+// wait for a write in progress, and a writer waits for them to finish.
+// Reports are rendered into a buffer and handed to the caller's sink
+// only after the lock is released, so a slow sink blocks no one else.
+// A database opened on a directory is persisted through HospitalStore.
+// Records are laid out compactly: visit dates are packed into one int,
+// doctor names are dictionary-encoded, and care teams only exist for
+// patients that have members. Readmitting a patient appends a visit to
+// their history instead of replacing them; the history is a packed
+// array allocated on the first readmission. Patient counts per doctor
+// and visit counts per year and month are kept up to date as patients
+// come and go. Operations can be counted
+// and timed through HospitalMetrics, which is also published over JMX,
+// and mutations can be streamed to replicas through a ChangeFeed. The
+// patient listings can be kept in a ReportCache between mutations.
 //-----------------------------------------------------
 
 
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.*;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.locks.StampedLock;
 import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
 
-public class HospitalDatabase {
+public class HospitalDatabase implements Closeable {
 
     // Inner class to represent a patient
     //--------------------------------------------------------
-    // Summary: Represents a patient in the hospital database.
-    // Contains details like name, doctor's name, and visit date.
+    // Summary: Represents a patient in the hospital database, as of one
+    // visit: their name, that visit's doctor and date. The record stored
+    // under the patient's name is their latest visit; each earlier visit
+    // keeps its own record in the past-visit index. The doctor is a
+    // shared dictionary entry and the date is packed into one int, so a
+    // record takes 32 bytes besides the name. The name, doctor and date
+    // are immutable, so query results can be handed to callers directly.
     //--------------------------------------------------------
-    private static class Patient implements Comparable<Patient> {
-        private String name;
-        private String doctorName;
-        private int visitDay, visitMonth, visitYear;
+    public static final class Patient implements Comparable<Patient> {
+        private final String name;
+        private final Doctor doctor;
+        private final int visitDate;
+        // Every visit of a readmitted patient; only meaningful on the
+        // latest record, and null while the patient has a single visit.
+        // Guarded by the database's lock.
+        private VisitHistory history;
 
-        public Patient(String name, String doctorName, int visitDay, int visitMonth, int visitYear) {
+        private Patient(String name, Doctor doctor, int visitDate) {
             this.name = name;
+            this.doctor = doctor;
+            this.visitDate = visitDate;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getDoctorName() {
+            return doctor.name;
+        }
+
+        public int getVisitDay() {
+            return visitDate & 31;
+        }
+
+        public int getVisitMonth() {
+            return (visitDate >> 5) & 15;
+        }
+
+        public int getVisitYear() {
+            return visitDate >> 9;
+        }
+
+        // Visit date packed as year:month:day bits, so comparing two packed
+        // dates compares them chronologically
+        int visitDate() {
+            return visitDate;
+        }
+
+        // The doctor's position in the database's doctor dictionary
+        int doctorId() {
+            return doctor.id;
+        }
+
+        // The visit packed as date:doctor id, as kept in a visit history
+        long visitKey() {
+            return VisitHistory.pack(visitDate, doctor.id);
+        }
+
+        // The number of visits, as stored in snapshots; call on the latest
+        // record under the database's lock
+        int visitCount() {
+            return (history == null) ? 1 : history.size();
+        }
+
+        // The visit at a position, oldest first, packed as by visitKey
+        long visitKey(int index) {
+            return (history == null) ? visitKey() : history.get(index);
+        }
+
+        int visitDate(int index) {
+            return VisitHistory.dateOf(visitKey(index));
+        }
+
+        int doctorId(int index) {
+            return VisitHistory.doctorIdOf(visitKey(index));
+        }
+
+        // Key order for looking patients up by name without a probe object
+        static int compareName(String name, Patient patient) {
+            return name.compareTo(patient.name);
+        }
+
+        // Key order for range queries on the visit-date index
+        static int compareVisitDate(Integer visitDate, Patient patient) {
+            return Integer.compare(visitDate, patient.visitDate);
+        }
+
+        // Ordering of the visit-date indices: by date, then by name, then
+        // by doctor, which tells apart two visits of a patient on one day
+        static final Comparator<Patient> BY_VISIT_DATE = new Comparator<Patient>() {
+            @Override
+            public int compare(Patient p1, Patient p2) {
+                int cmp = Integer.compare(p1.visitDate, p2.visitDate);
+                if (cmp == 0) {
+                    cmp = p1.name.compareTo(p2.name);
+                }
+                return (cmp != 0 || p1.doctor == p2.doctor) ? cmp : p1.doctor.name.compareTo(p2.doctor.name);
+            }
+        };
+
+        private static final Comparator<Patient> BY_VISIT_DATE_DESCENDING = BY_VISIT_DATE.reversed();
+
+        // Ordering of the year reports: latest date first, and visits of
+        // one day in name order, as before the visit-date index
+        static final Comparator<Patient> BY_VISIT_DATE_LATEST_FIRST = new Comparator<Patient>() {
+            @Override
+            public int compare(Patient p1, Patient p2) {
+                int cmp = Integer.compare(p2.visitDate, p1.visitDate);
+                return (cmp != 0) ? cmp : BY_VISIT_DATE.compare(p1, p2);
+            }
+        };
+
+        // Ordering of bulk-loaded visits: by name, then as in a history
+        static final Comparator<Patient> BY_NAME_AND_VISIT = new Comparator<Patient>() {
+            @Override
+            public int compare(Patient p1, Patient p2) {
+                int cmp = p1.name.compareTo(p2.name);
+                return (cmp != 0) ? cmp : BY_VISIT_DATE.compare(p1, p2);
+            }
+        };
+
+        @Override
+        public int compareTo(Patient other) {
+            return this.name.compareTo(other.name); // Compare by name only
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) return true;
+            if (obj == null || getClass() != obj.getClass()) return false;
+            Patient patient = (Patient) obj;
+            return this.name.equals(patient.name); // Match patients by name only
+        }
+
+        @Override
+        public int hashCode() {
+            return name.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return name + ", " + getVisitYear() + ", " + doctor.name;
+        }
+    }
+
+    // Inner class to represent a doctor
+    //--------------------------------------------------------
+    // Summary: One entry of the doctor dictionary. All of a doctor's
+    // patients share the entry, so the name is stored once, and the
+    // entry carries the doctor's caseload so indexing a patient needs
+    // no hash lookup. The id is the entry's position in the dictionary.
+    //--------------------------------------------------------
+    private static final class Doctor {
+        private final int id;
+        private final String name;
+        private final BinarySearchTree<Patient> caseload = new BinarySearchTree<>();
+
+        Doctor(int id, String name) {
+            this.id = id;
+            this.name = name;
+        }
+    }
+
+    // Inner class to dictionary-encode doctor names
+    //--------------------------------------------------------
+    // Summary: Maps each distinct doctor name to a Doctor with a small
+    // dense id, in order of first appearance. Entries are kept while
+    // their caseload is empty, so ids stay stable until the next rebuild.
+    //--------------------------------------------------------
+    private static final class DoctorDictionary {
+        private final HashMap<String, Doctor> byName = new HashMap<>();
+        private final ArrayList<Doctor> byId = new ArrayList<>();
+
+        Doctor intern(String name) {
+            Doctor doctor = byName.get(name);
+            if (doctor == null) {
+                doctor = new Doctor(byId.size(), name);
+                byName.put(name, doctor);
+                byId.add(doctor);
+            }
+            return doctor;
+        }
+
+        Doctor get(String name) {
+            return byName.get(name);
+        }
+
+        Doctor get(int id) {
+            return byId.get(id);
+        }
+
+        int size() {
+            return byId.size();
+        }
+
+        // The names in id order, as stored in snapshots
+        List<String> names() {
+            List<String> names = new ArrayList<>(byId.size());
+            for (Doctor doctor : byId) {
+                names.add(doctor.name);
+            }
+            return names;
+        }
+    }
+
+    // Inner class to hold a readmitted patient's visits
+    //--------------------------------------------------------
+    // Summary: An append-only time series of visits, each packed into a
+    // long as date:doctor id, kept in date order so a date range is
+    // found by binary search and the latest visit is the last entry.
+    // Visits on the same day are ordered by doctor name rather than id,
+    // so every copy of the database agrees on the order. Visits normally
+    // arrive in date order and are appended in O(1) amortized; a
+    // late-reported earlier visit is shifted into place.
+    //--------------------------------------------------------
+    private static final class VisitHistory {
+        private long[] visits;
+        private int size;
+
+        VisitHistory(int capacity) {
+            visits = new long[Math.max(2, capacity)];
+        }
+
+        static long pack(int visitDate, int doctorId) {
+            return ((long) visitDate << 32) | doctorId;
+        }
+
+        static int dateOf(long visit) {
+            return (int) (visit >>> 32);
+        }
+
+        static int doctorIdOf(long visit) {
+            return (int) visit;
+        }
+
+        int size() {
+            return size;
+        }
+
+        long get(int index) {
+            return visits[index];
+        }
+
+        // Adds a visit, returning false if it is already recorded
+        boolean add(long visit, DoctorDictionary doctors) {
+            int position = size;
+            if (size > 0 && compare(visits[size - 1], visit, doctors) >= 0) {
+                position = lowerBound(dateOf(visit));
+                while (compare(visits[position], visit, doctors) < 0) {
+                    position++;
+                }
+                if (visits[position] == visit) {
+                    return false;
+                }
+            }
+            if (size == visits.length) {
+                visits = Arrays.copyOf(visits, size + (size >> 1) + 1);
+            }
+            System.arraycopy(visits, position, visits, position + 1, size - position);
+            visits[position] = visit;
+            size++;
+            return true;
+        }
+
+        // Position of the first visit not before the date
+        int lowerBound(int visitDate) {
+            int lo = 0;
+            int hi = size;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (dateOf(visits[mid]) < visitDate) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            return lo;
+        }
+
+        private static int compare(long v1, long v2, DoctorDictionary doctors) {
+            int cmp = Integer.compare(dateOf(v1), dateOf(v2));
+            if (cmp != 0 || v1 == v2) {
+                return cmp;
+            }
+            return doctors.get(doctorIdOf(v1)).name.compareTo(doctors.get(doctorIdOf(v2)).name);
+        }
+    }
+
+    // Inner class to represent a care team member
+    //--------------------------------------------------------
+    // Summary: Represents a medical staff member assigned to a patient.
+    // Members of a care team are keyed by name; the role is a field.
+    //--------------------------------------------------------
+    public static final class StaffMember implements Comparable<StaffMember> {
+        private final String name;
+        private final String role;
+
+        public StaffMember(String name, String role) {
+            this.name = name;
+            this.role = role;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getRole() {
+            return role;
+        }
+
+        // Key order for looking members up by name without a probe object
+        static int compareName(String name, StaffMember member) {
+            return name.compareTo(member.name);
+        }
+
+        @Override
+        public int compareTo(StaffMember other) {
+            return this.name.compareTo(other.name); // Compare by name only
+        }
+
+        @Override
+        public String toString() {
+            return name + ", " + role;
+        }
+    }
+
+    // Inner class to file a patient under their case-folded name
+    //--------------------------------------------------------
+    // Summary: Entry of the optional case-insensitive name index. The
+    // folded key is computed once, so comparisons need not fold names
+    // again. Entries are ordered by key, then by the exact name, as
+    // names differing only in case belong to different patients.
+    //--------------------------------------------------------
+    private static final class FoldedName implements Comparable<FoldedName> {
+        private final String key;
+        private final Patient patient;
+
+        FoldedName(Patient patient) {
+            this.key = fold(patient.name);
+            this.patient = patient;
+        }
+
+        // Key order for prefix scans on the folded key alone
+        static int compareKey(String key, FoldedName entry) {
+            return key.compareTo(entry.key);
+        }
+
+        static final Comparator<FoldedName> BY_KEY_AND_NAME = new Comparator<FoldedName>() {
+            @Override
+            public int compare(FoldedName f1, FoldedName f2) {
+                int cmp = f1.key.compareTo(f2.key);
+                return (cmp != 0) ? cmp : f1.patient.name.compareTo(f2.patient.name);
+            }
+        };
+
+        @Override
+        public int compareTo(FoldedName other) {
+            return BY_KEY_AND_NAME.compare(this, other);
+        }
+    }
+
+    // Inner class to represent a pending care team assignment
+    //--------------------------------------------------------
+    // Summary: Pairs a staff member with the patient they are assigned
+    // to while a bulk load sorts and groups the assignments.
+    //--------------------------------------------------------
+    private static final class CareAssignment {
+        private final String patientName;
+        private final StaffMember member;
+
+        CareAssignment(String patientName, StaffMember member) {
+            this.patientName = patientName;
+            this.member = member;
+        }
+
+        // Ordering used to group assignments: by patient, then by member
+        static final Comparator<CareAssignment> BY_PATIENT_AND_MEMBER = new Comparator<CareAssignment>() {
+            @Override
+            public int compare(CareAssignment a1, CareAssignment a2) {
+                int cmp = a1.patientName.compareTo(a2.patientName);
+                return (cmp != 0) ? cmp : a1.member.name.compareTo(a2.member.name);
+            }
+        };
+    }
+
+    // Inner class to represent a queued mutation
+    //--------------------------------------------------------
+    // Summary: One addPatient, removePatient, addMember or removeMember
+    // call, built ahead of time so that a batch of them can be applied
+    // with applyBatch. The visit date is packed and the staff member
+    // created up front, so little is left to do under the write lock.
+    //--------------------------------------------------------
+    public static final class Mutation {
+        private enum Kind { ADD_PATIENT, REMOVE_PATIENT, ADD_MEMBER, REMOVE_MEMBER }
+
+        private final Kind kind;
+        private final String patientName;
+        private final String doctorName;  // Only for ADD_PATIENT
+        private final int visitDate;      // Only for ADD_PATIENT
+        private final StaffMember member; // Only for ADD_MEMBER
+        private final String memberName;  // Only for REMOVE_MEMBER
+
+        private Mutation(Kind kind, String patientName, String doctorName, int visitDate, StaffMember member,
+                         String memberName) {
+            this.kind = kind;
+            this.patientName = patientName;
             this.doctorName = doctorName;
-            this.visitDay = visitDay;
-            this.visitMonth = visitMonth;
-            this.visitYear = visitYear;
+            this.visitDate = visitDate;
+            this.member = member;
+            this.memberName = memberName;
+        }
+
+        // Throws IllegalArgumentException if the visit date is invalid
+        public static Mutation addPatient(String patientName, String doctorName, int visitDay, int visitMonth,
+                                          int visitYear) {
+            return new Mutation(Kind.ADD_PATIENT, patientName, doctorName, packDate(visitDay, visitMonth, visitYear),
+                    null, null);
+        }
+
+        public static Mutation removePatient(String patientName) {
+            return new Mutation(Kind.REMOVE_PATIENT, patientName, null, 0, null, null);
+        }
+
+        public static Mutation addMember(String patientName, String memberName, String memberRole) {
+            return new Mutation(Kind.ADD_MEMBER, patientName, null, 0, new StaffMember(memberName, memberRole), null);
+        }
+
+        public static Mutation removeMember(String patientName, String memberName) {
+            return new Mutation(Kind.REMOVE_MEMBER, patientName, null, 0, null, memberName);
+        }
+    }
+
+    // Inner class to buffer report output
+    //--------------------------------------------------------
+    // Summary: Collects report lines in a local buffer and hands them to
+    // the caller's sink only when flushed, so a report costs one sink
+    // call instead of one synchronized call per line. Reports are
+    // flushed after the lock is released, so a slow sink, such as a
+    // client socket, never holds up writers or the readers queued
+    // behind them.
+    //--------------------------------------------------------
+    private static final class ReportWriter {
+        private static final String NEWLINE = System.lineSeparator();
+
+        private final StringBuilder buffer = new StringBuilder(256);
+        private final Appendable out;
+
+        ReportWriter(Appendable out) {
+            this.out = out;
+        }
+
+        ReportWriter append(String text) {
+            buffer.append(text);
+            return this;
+        }
+
+        ReportWriter append(int value) {
+            buffer.append(value);
+            return this;
+        }
+
+        ReportWriter append(char c) {
+            buffer.append(c);
+            return this;
+        }
+
+        void endLine() {
+            buffer.append(NEWLINE);
+        }
+
+        // Drops everything appended since the last flush
+        void discard() {
+            buffer.setLength(0);
+        }
+
+        void flush() {
+            if (buffer.length() == 0) {
+                return;
+            }
+            try {
+                out.append(buffer);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            buffer.setLength(0);
+        }
+    }
+
+    // Inner class for the database lock
+    //--------------------------------------------------------
+    // Summary: A read-write lock whose write lock also holds a StampedLock
+    // for as long as the outermost write lasts. A reader that takes no
+    // lock at all gets an optimistic stamp first and validates it after
+    // reading, which tells it whether any write overlapped the read. Only
+    // lock and unlock of the write lock are used by the database.
+    //--------------------------------------------------------
+    private static final class DatabaseLock extends ReentrantReadWriteLock {
+        private static final long serialVersionUID = 1L;
+
+        private final StampedLock writes = new StampedLock();
+        private final WriteLock writeLock = new WriteLock(this) {
+            private long stamp; // Only touched by the writer
+
+            @Override
+            public void lock() {
+                super.lock();
+                if (getHoldCount() == 1) {
+                    stamp = writes.writeLock();
+                }
+            }
+
+            @Override
+            public void unlock() {
+                if (getHoldCount() == 1) {
+                    writes.unlockWrite(stamp);
+                }
+                super.unlock();
+            }
+        };
+
+        @Override
+        public WriteLock writeLock() {
+            return writeLock;
+        }
+
+        // Returns a stamp to validate after reading, or 0 while a write runs
+        long tryOptimisticRead() {
+            return writes.tryOptimisticRead();
+        }
+
+        // Returns whether no write has started since the stamp was taken
+        boolean validate(long stamp) {
+            return writes.validate(stamp);
+        }
+    }
+
+    private BinarySearchTree<Patient> patientTree;
+    // Only non-empty teams; concurrent for optimistic readers
+    private ConcurrentHashMap<String, BinarySearchTree<StaffMember>> careTeams;
+    private HashMap<String, BinarySearchTree<String>> staffAssignments;
+    private DoctorDictionary doctors;
+    private BinarySearchTree<Patient> visitDateIndex; // Latest visits
+    private BinarySearchTree<Patient> pastVisitIndex; // Every earlier visit
+    private BinarySearchTree<FoldedName> foldedNameIndex; // Null unless enabled
+    // Visit year -> {visits that year, visits per month 0..15}, only for
+    // years with visits
+    private HashMap<Integer, int[]> visitCounts;
+
+    // Guards every structure above: queries share the read lock and run in
+    // parallel, mutations take the write lock. The structures are only read
+    // without the lock under an optimistic stamp.
+    private final DatabaseLock lock = new DatabaseLock();
+
+    // Durable storage, or null for a purely in-memory database
+    private volatile HospitalStore store;
+
+    // Receives every mutation once enabled; null until then
+    private ChangeFeed changeFeed;
+
+    // Rendered patient listings; null unless enabled. Read without the
+    // lock to serve cached reports.
+    private volatile ReportCache reportCache;
+
+    // Operation counters and latencies, disabled until asked for
+    private final HospitalMetrics metrics = new HospitalMetrics();
+    private ObjectName mbeanName; // Guarded by metrics
+
+    // Largest year whose packed dates still fit an int
+    static final int MAX_YEAR = Integer.MAX_VALUE >> 9;
+
+    private static final long DEFAULT_FLUSH_INTERVAL_MILLIS = 10;
+    private static final long DEFAULT_CHECKPOINT_BYTES = 64L << 20;
+    private static final int DEFAULT_SWEEP_BATCH_SIZE = 1000;
+    private static final long DEFAULT_SWEEP_PAUSE_MILLIS = 1;
+
+    // Constructor: Initializes the hospital database
+    //--------------------------------------------------------
+    // Summary: Creates an empty database with a binary search
+    // tree for storing patients, a hash map for managing
+    // care teams, a hash map from staff members to the patients
+    // they cover, a doctor dictionary holding each doctor's
+    // patients and trees indexing latest and past visits by date.
+    // Precondition: None.
+    // Postcondition: The database is initialized and ready for use.
+    //--------------------------------------------------------
+
+    public HospitalDatabase() {
+        this.patientTree = new BinarySearchTree<>();
+        this.careTeams = new ConcurrentHashMap<>();
+        this.staffAssignments = new HashMap<>();
+        this.doctors = new DoctorDictionary();
+        this.visitDateIndex = new BinarySearchTree<>(Patient.BY_VISIT_DATE);
+        this.pastVisitIndex = new BinarySearchTree<>(Patient.BY_VISIT_DATE);
+        this.visitCounts = new HashMap<>();
+    }
+
+    // Method: Opens a persistent database
+    //--------------------------------------------------------
+    // Summary: Loads the database stored in the directory, creating it if
+    // needed, and logs every later mutation there. The latest snapshot is
+    // memory-mapped and bulk loaded, then only the log written since that
+    // snapshot is replayed. A mutation returns only once its log record
+    // has been fsynced, and writers running at the same time share one
+    // fsync. A background thread also flushes every flush interval and
+    // writes a new snapshot automatically once the log grows large.
+    // Precondition: The directory must be writable and not be in use by
+    // another database. The flush interval must be positive.
+    // Postcondition: Returns the loaded database; close it when done.
+    //--------------------------------------------------------
+
+    public static HospitalDatabase open(Path directory) throws IOException {
+        return open(directory, DEFAULT_FLUSH_INTERVAL_MILLIS, DEFAULT_CHECKPOINT_BYTES);
+    }
+
+    public static HospitalDatabase open(Path directory, long flushIntervalMillis, long checkpointBytes) throws IOException {
+        HospitalDatabase database = new HospitalDatabase();
+        HospitalStore store = new HospitalStore(directory, flushIntervalMillis, checkpointBytes);
+
+        // The snapshot is written in name order, so it can be bulk loaded as is
+        DoctorDictionary dictionary = new DoctorDictionary();
+        List<Patient> visits = new ArrayList<>();
+        List<CareAssignment> assignments = new ArrayList<>();
+        long generation = store.readSnapshot(new HospitalStore.SnapshotReader() {
+            @Override
+            public void doctor(String doctorName) {
+                dictionary.intern(doctorName);
+            }
+
+            @Override
+            public void patient(String patientName, int doctorId, int visitDate) {
+                visits.add(new Patient(patientName, dictionary.get(doctorId), visitDate));
+            }
+
+            @Override
+            public void member(String patientName, StaffMember member) {
+                assignments.add(new CareAssignment(patientName, member));
+            }
+        });
+        database.rebuild(dictionary, visits, assignments);
+
+        database.lock.writeLock().lock();
+        try {
+            store.replayLog(generation, new HospitalStore.LogReplayer() {
+                @Override
+                public void addPatient(String patientName, String doctorName, int visitDate) {
+                    database.applyAddPatient(new Patient(patientName, database.doctors.intern(doctorName), visitDate));
+                }
+
+                @Override
+                public void removePatient(String patientName) {
+                    database.applyRemovePatient(patientName);
+                }
+
+                @Override
+                public void addMember(String patientName, StaffMember member) {
+                    if (database.findPatient(patientName) != null) {
+                        database.applyAddMember(patientName, member);
+                    }
+                }
+
+                @Override
+                public void removeMember(String patientName, String memberName) {
+                    database.applyRemoveMember(patientName, memberName);
+                }
+            });
+            store.startLogging(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        database.checkpoint();
+                    } catch (IOException e) {
+                        System.out.println("ERROR: Checkpoint failed: " + e.getMessage());
+                    }
+                }
+            });
+            database.store = store;
+        } finally {
+            database.lock.writeLock().unlock();
+        }
+        return database;
+    }
+
+    // Method: Writes a snapshot of a persistent database
+    //--------------------------------------------------------
+    // Summary: Saves the whole database as a compact snapshot so the log
+    // written so far no longer has to be replayed on startup. Queries keep
+    // running while the snapshot is written; mutations wait for it.
+    // Precondition: The database was opened with open.
+    // Postcondition: The snapshot reflects the current contents.
+    //--------------------------------------------------------
+
+    public void checkpoint() throws IOException {
+        lock.readLock().lock();
+        try {
+            HospitalStore current = store;
+            if (current != null) {
+                current.writeSnapshot(patientTree, careTeams, doctors.names());
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Method: Makes all mutations so far durable
+    //--------------------------------------------------------
+    // Summary: Flushes and fsyncs the write-ahead log now instead of
+    // waiting for the next batch. Mutations already wait for their own
+    // log records before they return, so this only matters for one still
+    // in progress on another thread.
+    // Precondition: None.
+    // Postcondition: Every completed mutation survives a crash.
+    //--------------------------------------------------------
+
+    public void sync() throws IOException {
+        HospitalStore current = store;
+        if (current != null) {
+            current.sync();
+        }
+    }
+
+    // Helper Method: Waits until the mutations logged so far are durable
+    //--------------------------------------------------------
+    // Summary: Called by every mutation once it has released the write
+    // lock. Writers arriving while another's fsync is in progress queue
+    // up behind it, and the first of them writes all their records with
+    // a single fsync, so concurrent writers share fsyncs (group commit).
+    // Precondition: The caller does not hold the lock.
+    // Postcondition: The caller's log records survive a crash.
+    //--------------------------------------------------------
+
+    private void awaitDurable() {
+        HospitalStore current = store;
+        if (current != null) {
+            try {
+                current.sync();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    // Method: Closes a persistent database
+    //--------------------------------------------------------
+    // Summary: Flushes the log and releases its file. Has no effect on an
+    // in-memory database.
+    // Precondition: No other thread is still using the database.
+    // Postcondition: Every completed mutation is durable.
+    //--------------------------------------------------------
+
+    @Override
+    public void close() throws IOException {
+        HospitalStore closing;
+        lock.writeLock().lock();
+        try {
+            closing = store;
+            store = null;
+        } finally {
+            lock.writeLock().unlock();
+        }
+        // Outside the lock, as the flusher may be waiting for it to checkpoint
+        if (closing != null) {
+            closing.close();
+        }
+        unregisterMBean();
+    }
+
+    // Method: Turns operation metrics on or off
+    //--------------------------------------------------------
+    // Summary: While enabled, every mutation and query is counted and
+    // timed. While disabled, an operation pays for one volatile read and
+    // allocates nothing.
+    // Precondition: None.
+    // Postcondition: Operations from now on are recorded or not.
+    //--------------------------------------------------------
+
+    public void setMetricsEnabled(boolean enabled) {
+        metrics.setEnabled(enabled);
+    }
+
+    // Method: Clears the operation metrics
+    public void resetMetrics() {
+        metrics.reset();
+    }
+
+    // Method: Takes a snapshot of the metrics
+    //--------------------------------------------------------
+    // Summary: Combines the operation counts and latency percentiles with
+    // the sizes and shapes of the trees: patient tree height and average
+    // comparisons per lookup, visit-date index height, the largest
+    // caseload and the largest care team. Measuring the trees walks them,
+    // so this costs O(n) under the read lock.
+    // Precondition: None.
+    // Postcondition: Returns an immutable snapshot.
+    //--------------------------------------------------------
+
+    public HospitalMetrics.Snapshot getMetrics() {
+        List<HospitalMetrics.OperationStats> operations = metrics.operationStats();
+        lock.readLock().lock();
+        try {
+            int largestCaseload = 0;
+            for (Doctor doctor : doctors.byId) {
+                largestCaseload = Math.max(largestCaseload, doctor.caseload.size());
+            }
+            int largestCareTeam = 0;
+            for (BinarySearchTree<StaffMember> careTeam : careTeams.values()) {
+                largestCareTeam = Math.max(largestCareTeam, careTeam.size());
+            }
+            return new HospitalMetrics.Snapshot(operations, patientTree.size(), patientTree.height(),
+                    patientTree.averageComparisons(), visitDateIndex.height(), doctors.size(), largestCaseload,
+                    careTeams.size(), largestCareTeam, staffAssignments.size());
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Method: Publishes the metrics over JMX
+    //--------------------------------------------------------
+    // Summary: Registers a HospitalMetricsMXBean for this database with
+    // the platform MBean server as HospitalDatabase:type=Metrics,name=...
+    // so tools such as jconsole can read snapshots and switch metrics on
+    // and off. close() unregisters it.
+    // Precondition: No other MBean is registered under the name.
+    // Postcondition: Returns the name the MBean was registered under.
+    //--------------------------------------------------------
+
+    public ObjectName registerMBean(String name) throws JMException {
+        HospitalMetricsMXBean view = new HospitalMetricsMXBean() {
+            @Override
+            public boolean isEnabled() {
+                return metrics.isEnabled();
+            }
+
+            @Override
+            public void setEnabled(boolean enabled) {
+                metrics.setEnabled(enabled);
+            }
+
+            @Override
+            public void reset() {
+                metrics.reset();
+            }
+
+            @Override
+            public HospitalMetrics.Snapshot getSnapshot() {
+                return getMetrics();
+            }
+        };
+        ObjectName objectName = new ObjectName("HospitalDatabase:type=Metrics,name=" + ObjectName.quote(name));
+        synchronized (metrics) {
+            unregisterMBean();
+            ManagementFactory.getPlatformMBeanServer().registerMBean(
+                    new StandardMBean(view, HospitalMetricsMXBean.class, true), objectName);
+            mbeanName = objectName;
+        }
+        return objectName;
+    }
+
+    // Helper Method: Removes the MBean registered by registerMBean, if any
+    private void unregisterMBean() {
+        synchronized (metrics) {
+            if (mbeanName != null) {
+                try {
+                    ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbeanName);
+                } catch (JMException e) {
+                    // Already gone, e.g. unregistered by a management tool
+                }
+                mbeanName = null;
+            }
+        }
+    }
+
+    // Helper Method: Checks that a date fits the packed layout
+    //--------------------------------------------------------
+    // Summary: A visit date is stored only in packed form, so a day,
+    // month or year that does not fit its bits would silently turn into
+    // another date. Used by the command parsers to reject such dates.
+    // Precondition: None.
+    // Postcondition: Returns true if day is 1-31, month 1-12 and year
+    // 0-MAX_YEAR.
+    //--------------------------------------------------------
+
+    static boolean isValidDate(int day, int month, int year) {
+        return day >= 1 && day <= 31 && month >= 1 && month <= 12 && year >= 0 && year <= MAX_YEAR;
+    }
+
+    // Helper Method: Packs a date into a single comparable int
+    //--------------------------------------------------------
+    // Summary: Stores the year in the high bits, then 4 bits of month
+    // and 5 bits of day, so packed dates sort chronologically.
+    // Precondition: None.
+    // Postcondition: Returns the packed date. Throws
+    // IllegalArgumentException if the date is invalid.
+    //--------------------------------------------------------
+
+    private static int packDate(int day, int month, int year) {
+        if (!isValidDate(day, month, year)) {
+            throw new IllegalArgumentException("Invalid date: " + day + "/" + month + "/" + year);
+        }
+        return (year << 9) | (month << 5) | day;
+    }
+
+    // Method: Adds a new patient to the database, or readmits one
+    //--------------------------------------------------------
+    // Summary: Inserts a patient into the database. If a patient with
+    // the same name already exists, the visit is appended to their
+    // history and becomes their latest visit unless it is older; the
+    // care team is kept. A visit already recorded, with the same date and
+    // doctor, changes nothing and is reported as an overwrite. An invalid
+    // visit date (day outside 1-31, month outside 1-12, year outside
+    // 0-MAX_YEAR) is reported as an error and changes nothing.
+    // Precondition: None.
+    // Postcondition: The visit is recorded; a new patient's care team
+    // starts out empty.
+    //--------------------------------------------------------
+
+    public void addPatient(String patientName, String doctorName, int visitDay, int visitMonth, int visitYear) {
+        ReportWriter report = new ReportWriter(System.out);
+        if (!isValidDate(visitDay, visitMonth, visitYear)) {
+            report.append("ERROR: Visit date ").append(visitDay).append('/').append(visitMonth).append('/')
+                    .append(visitYear).append(" of patient ").append(patientName).append(" is invalid").endLine();
+            report.flush();
+            return;
+        }
+        long start = metrics.start();
+        lock.writeLock().lock();
+        try {
+            executeAddPatient(patientName, doctorName, packDate(visitDay, visitMonth, visitYear), report);
+        } finally {
+            lock.writeLock().unlock();
+            metrics.record(HospitalMetrics.Operation.ADD_PATIENT, start);
+        }
+        awaitDurable();
+        report.flush();
+    }
+
+    // Helper Method: Adds a patient, reports it and logs it
+    //--------------------------------------------------------
+    // Summary: The body of addPatient, shared with applyBatch.
+    // Precondition: The caller holds the write lock.
+    // Postcondition: The patient is stored and the outcome reported.
+    //--------------------------------------------------------
+
+    private void executeAddPatient(String patientName, String doctorName, int visitDate, ReportWriter report) {
+        Patient visit = new Patient(patientName, doctors.intern(doctorName), visitDate);
+        Admission admission = applyAddPatient(visit);
+        if (admission == Admission.DUPLICATE) {
+            report.append("ERROR: Patient ").append(patientName).append(" overwritten").endLine();
+            return;
+        }
+        if (admission == Admission.READMITTED) {
+            report.append("INFO: Patient ").append(patientName).append(" has been readmitted").endLine();
+        } else {
+            report.append("INFO: Patient ").append(patientName).append(" has been added").endLine();
+        }
+        if (store != null) {
+            store.logAddPatient(visit);
+        }
+        if (changeFeed != null) {
+            changeFeed.publish(ChangeFeed.Type.ADD_PATIENT, admission == Admission.READMITTED, patientName, visit,
+                    null, null);
+        }
+    }
+
+    // The outcomes of recording a visit
+    private enum Admission { ADDED, READMITTED, DUPLICATE }
+
+    // Helper Method: Records a visit and updates the indices
+    //--------------------------------------------------------
+    // Summary: Shared by addPatient and log replay. A new patient is
+    // filed under their name, doctor and visit date. For a readmission
+    // the visit joins the patient's history; if it is the latest, it
+    // takes over the patient's place in the name and visit-date indices
+    // and the previous latest record moves to the past-visit index,
+    // otherwise the visit goes there itself. Each doctor's caseload holds
+    // the patient's most recent visit with that doctor. The care team
+    // itself is only created with its first member.
+    // Precondition: The caller holds the write lock.
+    // Postcondition: Returns whether the patient was added, readmitted,
+    // or already had this visit, in which case nothing changed.
+    //--------------------------------------------------------
+
+    private Admission applyAddPatient(Patient visit) {
+        Patient latest = findPatient(visit.name);
+        if (latest == null) {
+            patientTree.insert(visit);
+            visitDateIndex.insert(visit);
+            if (foldedNameIndex != null) {
+                foldedNameIndex.insert(new FoldedName(visit));
+            }
+            visit.doctor.caseload.insert(visit);
+            noteVisit(visit.doctor, visit.visitDate, 1);
+            return Admission.ADDED;
+        }
+
+        if (visit.name != latest.name) {
+            visit = new Patient(latest.name, visit.doctor, visit.visitDate); // All visits share one name string
+        }
+        VisitHistory history = latest.history;
+        if (history == null) {
+            history = new VisitHistory(2);
+            history.add(latest.visitKey(), doctors);
+        }
+        if (!history.add(visit.visitKey(), doctors)) {
+            return Admission.DUPLICATE;
+        }
+        if (Patient.BY_VISIT_DATE.compare(visit, latest) > 0) {
+            latest.history = null; // Only the latest record carries the history
+            visit.history = history;
+            patientTree.put(visit);
+            visitDateIndex.remove(latest);
+            visitDateIndex.insert(visit);
+            pastVisitIndex.insert(latest);
+            if (foldedNameIndex != null) {
+                foldedNameIndex.put(new FoldedName(visit));
+            }
+        } else {
+            latest.history = history;
+            pastVisitIndex.insert(visit);
+        }
+        Patient filed = visit.doctor.caseload.get(visit.name, Patient::compareName);
+        if (filed == null || filed.visitDate < visit.visitDate) {
+            visit.doctor.caseload.put(visit);
+        }
+        noteVisit(visit.doctor, visit.visitDate, 1);
+        return Admission.READMITTED;
+    }
+
+    // Method: Removes a patient from the database
+    //--------------------------------------------------------
+    // Summary: Deletes a patient and their associated care team
+    // from the database.
+    // Precondition: The patient's name must exist in the database.
+    // Postcondition: The patient is removed from the binary search
+    // tree and their care team is deleted.
+    //--------------------------------------------------------
+
+    public void removePatient(String patientName) {
+        ReportWriter report = new ReportWriter(System.out);
+        long start = metrics.start();
+        lock.writeLock().lock();
+        try {
+            executeRemovePatient(patientName, report);
+        } finally {
+            lock.writeLock().unlock();
+            metrics.record(HospitalMetrics.Operation.REMOVE_PATIENT, start);
+        }
+        awaitDurable();
+        report.flush();
+    }
+
+    // Helper Method: Removes a patient, reports it and logs it
+    //--------------------------------------------------------
+    // Summary: The body of removePatient, shared with applyBatch.
+    // Precondition: The caller holds the write lock.
+    // Postcondition: The patient is gone and the outcome reported.
+    //--------------------------------------------------------
+
+    private void executeRemovePatient(String patientName, ReportWriter report) {
+        if (!applyRemovePatient(patientName)) {
+            report.append("ERROR: Patient ").append(patientName).append(" does not exist").endLine();
+            return;
+        }
+        report.append("INFO: Patient ").append(patientName).append(" has been removed").endLine();
+        if (store != null) {
+            store.logRemovePatient(patientName);
+        }
+        if (changeFeed != null) {
+            changeFeed.publish(ChangeFeed.Type.REMOVE_PATIENT, false, patientName, null, null, null);
+        }
+    }
+
+    // Helper Method: Deletes a patient, their care team and index entries
+    //--------------------------------------------------------
+    // Summary: Shared by removePatient and log replay. Every visit in the
+    // patient's history is dropped from the indices, so the cost grows
+    // with the patient's own visits, not with anyone else's.
+    // Precondition: The caller holds the write lock.
+    // Postcondition: Returns true if the patient existed and was removed.
+    //--------------------------------------------------------
+
+    private boolean applyRemovePatient(String patientName) {
+        Patient removed = patientTree.remove(patientName, Patient::compareName);
+        if (removed == null) {
+            return false;
+        }
+
+        BinarySearchTree<StaffMember> careTeam = careTeams.remove(patientName);
+        if (careTeam != null) {
+            careTeam.inOrderTraversal(new Consumer<StaffMember>() {
+                @Override
+                public void accept(StaffMember member) {
+                    unassignStaff(member.name, patientName);
+                }
+            });
+        }
+
+        visitDateIndex.remove(removed);
+        if (foldedNameIndex != null) {
+            foldedNameIndex.remove(new FoldedName(removed));
+        }
+        long latestKey = removed.visitKey();
+        for (int i = 0; i < removed.visitCount(); i++) {
+            long key = removed.visitKey(i);
+            Doctor doctor = doctors.get(VisitHistory.doctorIdOf(key));
+            int visitDate = VisitHistory.dateOf(key);
+            if (key != latestKey) {
+                pastVisitIndex.remove(new Patient(patientName, doctor, visitDate));
+            }
+            doctor.caseload.remove(patientName, Patient::compareName); // No-op after the first of a doctor's visits
+            noteVisit(doctor, visitDate, -1);
+        }
+        return true;
+    }
+
+    // Method: Removes every patient who last visited before a date
+    //--------------------------------------------------------
+    // Summary: Deletes the patients whose latest visit is strictly before
+    // the cutoff, with their visit history, care teams and index entries.
+    // Victims are taken oldest first from the front of the visit-date
+    // index, so k removals cost O(k log n) without scanning anyone who
+    // stays. Holds the write lock throughout; use startRetentionSweep to
+    // keep queries running.
+    // Precondition: The date is valid, as for addPatient.
+    // Postcondition: No remaining patient last visited before the cutoff.
+    // Returns the number of patients removed.
+    //--------------------------------------------------------
+
+    public int removePatientsVisitedBefore(int day, int month, int year) {
+        int removed = sweep(packDate(day, month, year), Integer.MAX_VALUE);
+        awaitDurable();
+        System.out.println("INFO: Removed " + removed + " patients who last visited before "
+                + day + "/" + month + "/" + year);
+        return removed;
+    }
+
+    // Method: Starts a retention sweep in the background
+    //--------------------------------------------------------
+    // Summary: Works like removePatientsVisitedBefore on a daemon thread,
+    // in batches of at most batchSize removals. The write lock is held
+    // for one batch at a time, and the sweep pauses between batches so
+    // queued queries get the lock, which bounds how long any query waits.
+    // Each batch is fsynced before the pause. Cancelling the returned
+    // future stops the sweep after the current batch. The overload
+    // without tuning uses batches of 1000 and 1 ms pauses.
+    // Precondition: The date is valid, batchSize is positive and
+    // pauseMillis not negative.
+    // Postcondition: Returns a future completing with the number of
+    // patients removed.
+    //--------------------------------------------------------
+
+    public CompletableFuture<Integer> startRetentionSweep(int day, int month, int year) {
+        return startRetentionSweep(day, month, year, DEFAULT_SWEEP_BATCH_SIZE, DEFAULT_SWEEP_PAUSE_MILLIS);
+    }
+
+    public CompletableFuture<Integer> startRetentionSweep(int day, int month, int year, int batchSize, long pauseMillis) {
+        if (batchSize <= 0 || pauseMillis < 0) {
+            throw new IllegalArgumentException("Invalid batch size or pause: " + batchSize + ", " + pauseMillis);
+        }
+        int cutoff = packDate(day, month, year);
+        CompletableFuture<Integer> result = new CompletableFuture<>();
+        Thread sweeper = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                int removed = 0;
+                try {
+                    while (!result.isCancelled()) {
+                        int batch = sweep(cutoff, batchSize);
+                        awaitDurable();
+                        removed += batch;
+                        if (batch < batchSize) {
+                            break;
+                        }
+                        Thread.sleep(pauseMillis);
+                    }
+                    System.out.println("INFO: Removed " + removed + " patients who last visited before "
+                            + day + "/" + month + "/" + year);
+                    result.complete(removed);
+                } catch (InterruptedException e) {
+                    result.complete(removed);
+                } catch (RuntimeException e) {
+                    result.completeExceptionally(e);
+                }
+            }
+        }, "hospital-retention-sweep");
+        sweeper.setDaemon(true);
+        sweeper.start();
+        return result;
+    }
+
+    // Helper Method: Removes a batch of patients from the oldest visit on
+    //--------------------------------------------------------
+    // Summary: Repeatedly takes the first entry of the visit-date index
+    // and removes that patient, until the cutoff or the limit is reached.
+    // Each removal is logged like removePatient.
+    // Precondition: limit is positive.
+    // Postcondition: Returns the number of patients removed.
+    //--------------------------------------------------------
+
+    private int sweep(int cutoff, int limit) {
+        long start = metrics.start();
+        lock.writeLock().lock();
+        try {
+            int removed = 0;
+            while (removed < limit && !visitDateIndex.isEmpty()) {
+                Patient oldest = visitDateIndex.select(0);
+                if (oldest.visitDate >= cutoff) {
+                    break;
+                }
+                applyRemovePatient(oldest.name);
+                if (store != null) {
+                    store.logRemovePatient(oldest.name);
+                }
+                if (changeFeed != null) {
+                    changeFeed.publish(ChangeFeed.Type.REMOVE_PATIENT, false, oldest.name, null, null, null);
+                }
+                removed++;
+            }
+            return removed;
+        } finally {
+            lock.writeLock().unlock();
+            metrics.record(HospitalMetrics.Operation.RETENTION_SWEEP, start);
+        }
+    }
+
+    // Helper Method: Accounts for a visit being added or removed
+    //--------------------------------------------------------
+    // Summary: Updates the year and month counts and drops the cached
+    // reports the visit appears in.
+    // Precondition: The caller holds the write lock; delta is 1 or -1.
+    // Postcondition: The counts and the cache reflect the change.
+    //--------------------------------------------------------
+
+    private void noteVisit(Doctor doctor, int visitDate, int delta) {
+        countVisit(visitCounts, visitDate, delta);
+        if (reportCache != null) {
+            reportCache.invalidateVisit(doctor.name, visitDate >> 9);
+        }
+    }
+
+    // Helper Method: Adjusts the year and month counts for a visit date
+    //--------------------------------------------------------
+    // Summary: One hash lookup updates both the year's and the month's
+    // count. A year is dropped once its count reaches zero.
+    // Precondition: delta is -1 only for a date counted before.
+    // Postcondition: The counts reflect the change.
+    //--------------------------------------------------------
+
+    private static void countVisit(HashMap<Integer, int[]> counts, int visitDate, int delta) {
+        int year = visitDate >> 9;
+        int[] yearCounts = counts.computeIfAbsent(year, k -> new int[17]);
+        yearCounts[0] += delta;
+        yearCounts[1 + ((visitDate >> 5) & 15)] += delta;
+        if (yearCounts[0] == 0) {
+            counts.remove(year);
+        }
+    }
+
+    // Method: Adds a medical staff member to a patient's care team
+    //--------------------------------------------------------
+    // Summary: Adds a new staff member to the specified patient's
+    // care team. If a member with the same name already exists in the
+    // care team, they are not duplicated and their role is updated.
+    // Precondition: The patient must exist in the database.
+    // Postcondition: The staff member is added to the patient's care team.
+    //--------------------------------------------------------
+
+    public void addMember(String patientName, String memberName, String memberRole) {
+        StaffMember member = new StaffMember(memberName, memberRole);
+
+        ReportWriter report = new ReportWriter(System.out);
+        long start = metrics.start();
+        lock.writeLock().lock();
+        try {
+            executeAddMember(patientName, member, report);
+        } finally {
+            lock.writeLock().unlock();
+            metrics.record(HospitalMetrics.Operation.ADD_MEMBER, start);
+        }
+        awaitDurable();
+        report.flush();
+    }
+
+    // Helper Method: Adds a care team member, reports it and logs it
+    //--------------------------------------------------------
+    // Summary: The body of addMember, shared with applyBatch.
+    // Precondition: The caller holds the write lock.
+    // Postcondition: The member is stored if the patient exists, and the
+    // outcome is reported.
+    //--------------------------------------------------------
+
+    private void executeAddMember(String patientName, StaffMember member, ReportWriter report) {
+        if (findPatient(patientName) == null) {
+            report.append("ERROR: Patient ").append(patientName).append(" does not exist").endLine();
+            return;
+        }
+
+        boolean overwrite = applyAddMember(patientName, member) != null;
+        if (overwrite) {
+            report.append("ERROR: Staff member ").append(member.name).append(" already exists in ")
+                    .append(patientName).append("'s care team").endLine();
+        } else {
+            report.append("INFO: ").append(member.name).append(" has been added to the patient ")
+                    .append(patientName).endLine();
+        }
+        if (store != null) {
+            store.logAddMember(patientName, member);
+        }
+        if (changeFeed != null) {
+            changeFeed.publish(ChangeFeed.Type.ADD_MEMBER, overwrite, patientName, null, member, null);
+        }
+    }
+
+    // Helper Method: Stores a care team member and updates the staff index
+    //--------------------------------------------------------
+    // Summary: Shared by addMember and log replay. Creates the patient's
+    // care team with its first member.
+    // Precondition: The caller holds the write lock and the patient exists.
+    // Postcondition: Returns the replaced member, or null if new.
+    //--------------------------------------------------------
+
+    private StaffMember applyAddMember(String patientName, StaffMember member) {
+        StaffMember previous = careTeams.computeIfAbsent(patientName, k -> new BinarySearchTree<>()).put(member);
+        if (previous == null) {
+            staffAssignments.computeIfAbsent(member.name, k -> new BinarySearchTree<>()).insert(patientName);
+        }
+        return previous;
+    }
+
+    // Method: Removes a medical staff member from a patient's care team
+    //--------------------------------------------------------
+    // Summary: Removes a staff member from the specified patient's
+    // care team by name in O(log n). If the staff member does not exist
+    // in the care team, an error message is displayed.
+    // Precondition: The patient must exist in the database, and the staff
+    // member must exist in the patient's care team.
+    // Postcondition: The staff member is removed from the care team.
+    //--------------------------------------------------------
+
+
+    public void removeMember(String patientName, String memberName) {
+        ReportWriter report = new ReportWriter(System.out);
+        long start = metrics.start();
+        lock.writeLock().lock();
+        try {
+            executeRemoveMember(patientName, memberName, report);
+        } finally {
+            lock.writeLock().unlock();
+            metrics.record(HospitalMetrics.Operation.REMOVE_MEMBER, start);
+        }
+        awaitDurable();
+        report.flush();
+    }
+
+    // Helper Method: Removes a care team member, reports it and logs it
+    //--------------------------------------------------------
+    // Summary: The body of removeMember, shared with applyBatch.
+    // Precondition: The caller holds the write lock.
+    // Postcondition: The member is gone and the outcome reported.
+    //--------------------------------------------------------
+
+    private void executeRemoveMember(String patientName, String memberName, ReportWriter report) {
+        if (findPatient(patientName) == null) {
+            report.append("ERROR: Patient ").append(patientName).append(" does not exist").endLine();
+            return;
+        }
+
+        if (applyRemoveMember(patientName, memberName)) {
+            report.append("INFO: ").append(memberName).append(" has been removed from the patient ")
+                    .append(patientName).endLine();
+            if (store != null) {
+                store.logRemoveMember(patientName, memberName);
+            }
+            if (changeFeed != null) {
+                changeFeed.publish(ChangeFeed.Type.REMOVE_MEMBER, false, patientName, null, null, memberName);
+            }
+        } else {
+            report.append("ERROR: Staff member ").append(memberName).append(" does not exist in ")
+                    .append(patientName).append("'s care team").endLine();
+        }
+    }
+
+    // Method: Applies a batch of mutations
+    //--------------------------------------------------------
+    // Summary: Applies the mutations in order, exactly as the matching
+    // addPatient, removePatient, addMember and removeMember calls would,
+    // but under a single write lock acquisition, and writes their
+    // messages to the caller's sink in one piece once the lock is
+    // released, instead of one synchronized println each. Each mutation
+    // is counted and timed under its own operation, as the single calls
+    // are, and the whole batch under APPLY_BATCH. Queries wait for the
+    // whole batch, so keep batches to a few thousand mutations.
+    // Precondition: None.
+    // Postcondition: Every mutation is applied and its outcome reported.
+    //--------------------------------------------------------
+
+    public void applyBatch(List<Mutation> batch, Appendable out) {
+        ReportWriter report = new ReportWriter(out);
+        long start = metrics.start();
+        lock.writeLock().lock();
+        try {
+            for (Mutation mutation : batch) {
+                long mutationStart = metrics.start();
+                switch (mutation.kind) {
+                    case ADD_PATIENT:
+                        executeAddPatient(mutation.patientName, mutation.doctorName, mutation.visitDate, report);
+                        metrics.record(HospitalMetrics.Operation.ADD_PATIENT, mutationStart);
+                        break;
+                    case REMOVE_PATIENT:
+                        executeRemovePatient(mutation.patientName, report);
+                        metrics.record(HospitalMetrics.Operation.REMOVE_PATIENT, mutationStart);
+                        break;
+                    case ADD_MEMBER:
+                        executeAddMember(mutation.patientName, mutation.member, report);
+                        metrics.record(HospitalMetrics.Operation.ADD_MEMBER, mutationStart);
+                        break;
+                    case REMOVE_MEMBER:
+                        executeRemoveMember(mutation.patientName, mutation.memberName, report);
+                        metrics.record(HospitalMetrics.Operation.REMOVE_MEMBER, mutationStart);
+                        break;
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+            metrics.record(HospitalMetrics.Operation.APPLY_BATCH, start);
+        }
+        awaitDurable();
+        report.flush();
+    }
+
+    // Helper Method: Deletes a care team member and updates the staff index
+    //--------------------------------------------------------
+    // Summary: Shared by removeMember and log replay. Drops the care team
+    // once its last member leaves.
+    // Precondition: The caller holds the write lock.
+    // Postcondition: Returns true if the member existed and was removed.
+    //--------------------------------------------------------
+
+    private boolean applyRemoveMember(String patientName, String memberName) {
+        BinarySearchTree<StaffMember> careTeam = careTeams.get(patientName);
+        if (careTeam == null || careTeam.remove(memberName, StaffMember::compareName) == null) {
+            return false;
+        }
+        if (careTeam.isEmpty()) {
+            careTeams.remove(patientName);
+        }
+        unassignStaff(memberName, patientName);
+        return true;
+    }
+
+    // Helper Method: Removes a patient from a staff member's assignments
+    //--------------------------------------------------------
+    // Summary: Keeps the staff reverse index in step with the care teams,
+    // dropping the member's entry once they cover no patients.
+    // Precondition: The member was removed from the patient's care team.
+    // Postcondition: The patient is no longer listed for the member.
+    //--------------------------------------------------------
+
+    private void unassignStaff(String memberName, String patientName) {
+        BinarySearchTree<String> assignments = staffAssignments.get(memberName);
+        if (assignments != null) {
+            assignments.remove(patientName);
+            if (assignments.isEmpty()) {
+                staffAssignments.remove(memberName);
+            }
+        }
+    }
+
+    // Method: Bulk loads patients and care teams from a CSV file
+    //--------------------------------------------------------
+    // Summary: Replaces the contents of the database with the records in
+    // the file. Each line is either
+    //     PATIENT,<name>,<doctor>,<day>,<month>,<year>
+    //     MEMBER,<patient>,<member>,<role>
+    // Blank lines and lines starting with '#' are ignored, and a line with
+    // a bad number or an invalid visit date is reported as malformed and
+    // skipped. Every PATIENT row is a visit, so a patient with several
+    // rows gets a history, as with repeated addPatient calls; a later
+    // MEMBER row wins over an earlier one for the same member. Records
+    // are sorted and deduplicated once, then every tree and index is
+    // built bottom-up in linear time instead of by repeated insertion.
+    // Precondition: The file must be readable UTF-8 text.
+    // Postcondition: The database holds exactly the loaded records; a
+    // persistent database has written a snapshot of them.
+    //--------------------------------------------------------
+
+    public void loadFromCsv(Path file) throws IOException {
+        DoctorDictionary dictionary = new DoctorDictionary();
+        List<Patient> visits = new ArrayList<>();
+        List<CareAssignment> assignments = new ArrayList<>();
+
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (line.isBlank() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] fields = line.split(",", -1);
+                try {
+                    if (fields[0].equals("PATIENT") && fields.length == 6) {
+                        int visitDate = packDate(Integer.parseInt(fields[3].trim()), Integer.parseInt(fields[4].trim()),
+                                Integer.parseInt(fields[5].trim()));
+                        visits.add(new Patient(fields[1].trim(), dictionary.intern(fields[2].trim()), visitDate));
+                    } else if (fields[0].equals("MEMBER") && fields.length == 4) {
+                        assignments.add(new CareAssignment(fields[1].trim(),
+                                new StaffMember(fields[2].trim(), fields[3].trim())));
+                    } else {
+                        System.out.println("ERROR: Line " + lineNumber + " of " + file + " is malformed");
+                    }
+                } catch (IllegalArgumentException e) { // Also a bad number
+                    System.out.println("ERROR: Line " + lineNumber + " of " + file + " is malformed");
+                }
+            }
+        }
+
+        // Stable sorts keep file order among equal keys, so the last row wins
+        visits.sort(Patient.BY_NAME_AND_VISIT);
+        dedupeKeepLast(visits, Patient.BY_NAME_AND_VISIT);
+        assignments.sort(CareAssignment.BY_PATIENT_AND_MEMBER);
+        dedupeKeepLast(assignments, CareAssignment.BY_PATIENT_AND_MEMBER);
+        int patientCount = 0;
+        for (int i = 0; i < visits.size(); i++) {
+            if (i == 0 || !visits.get(i).name.equals(visits.get(i - 1).name)) {
+                patientCount++;
+            }
+        }
+
+        int skipped = rebuild(dictionary, visits, assignments);
+
+        System.out.println("INFO: Loaded " + patientCount + " patients with " + visits.size() + " visits and "
+                + (assignments.size() - skipped) + " care team members");
+        if (skipped > 0) {
+            System.out.println("ERROR: Skipped " + skipped + " care team members of unknown patients");
+        }
+    }
+
+    // Method: Removes every patient
+    //--------------------------------------------------------
+    // Summary: Empties the database, including the doctor dictionary and
+    // all indices, in O(1) under the write lock.
+    // Precondition: None.
+    // Postcondition: The database is empty; a persistent database has
+    // written an empty snapshot.
+    //--------------------------------------------------------
+
+    public void clear() throws IOException {
+        rebuild(new DoctorDictionary(), new ArrayList<>(), new ArrayList<>());
+    }
+
+    // Helper Method: Removes duplicates from a sorted list
+    //--------------------------------------------------------
+    // Summary: Compacts the list in place, keeping only the last element
+    // of each run of equal elements.
+    // Precondition: The list is sorted by the comparator.
+    // Postcondition: The list is strictly ascending.
+    //--------------------------------------------------------
+
+    private static <E> void dedupeKeepLast(List<E> sorted, Comparator<? super E> comparator) {
+        int kept = 0;
+        for (int i = 0; i < sorted.size(); i++) {
+            if (i + 1 < sorted.size() && comparator.compare(sorted.get(i), sorted.get(i + 1)) == 0) {
+                continue; // A later duplicate replaces this one
+            }
+            sorted.set(kept++, sorted.get(i));
+        }
+        sorted.subList(kept, sorted.size()).clear();
+    }
+
+    // Helper Method: Rebuilds every structure from sorted records
+    //--------------------------------------------------------
+    // Summary: Builds fresh trees and indices bottom-up, then swaps them
+    // in under the write lock, so queries keep running against the old
+    // contents while the new ones are built. A persistent database then
+    // downgrades to the read lock and writes a snapshot, so no mutation
+    // is logged until a snapshot holds the contents it applies to.
+    // Precondition: The visits' doctors come from the fresh dictionary,
+    // which is not yet shared; visits is strictly ascending by name, then
+    // chronologically; assignments is strictly ascending by patient name,
+    // then member name.
+    // Postcondition: The database holds exactly the given records. Returns
+    // the number of assignments dropped because their patient is missing.
+    //--------------------------------------------------------
+
+    private int rebuild(DoctorDictionary dictionary, List<Patient> visits, List<CareAssignment> assignments)
+            throws IOException {
+        // Each patient's last visit is their latest; the others are past
+        // visits. Patients arrive in name order, so each doctor's list is
+        // already sorted; it gets the patient's newest visit with them.
+        List<Patient> patients = new ArrayList<>();
+        List<Patient> pastVisits = new ArrayList<>();
+        List<List<Patient>> caseloads = new ArrayList<>(dictionary.size());
+        int[] lastFiled = new int[dictionary.size()]; // Last patient filed in each caseload
+        for (int id = 0; id < dictionary.size(); id++) {
+            caseloads.add(new ArrayList<>());
+            lastFiled[id] = -1;
+        }
+        for (int first = 0; first < visits.size(); ) {
+            int end = first + 1;
+            while (end < visits.size() && visits.get(end).name.equals(visits.get(first).name)) {
+                end++;
+            }
+            Patient latest = visits.get(end - 1);
+            if (end - first > 1) {
+                latest.history = new VisitHistory(end - first);
+                for (int i = first; i < end; i++) {
+                    latest.history.add(visits.get(i).visitKey(), dictionary);
+                }
+                pastVisits.addAll(visits.subList(first, end - 1));
+            }
+            for (int i = end - 1; i >= first; i--) {
+                Patient visit = visits.get(i);
+                if (lastFiled[visit.doctor.id] != patients.size()) {
+                    lastFiled[visit.doctor.id] = patients.size();
+                    caseloads.get(visit.doctor.id).add(visit);
+                }
+            }
+            patients.add(latest);
+            first = end;
+        }
+
+        BinarySearchTree<Patient> newPatientTree = new BinarySearchTree<>();
+        newPatientTree.loadSorted(patients.iterator(), patients.size());
+        for (int id = 0; id < dictionary.size(); id++) {
+            List<Patient> caseload = caseloads.get(id);
+            dictionary.get(id).caseload.loadSorted(caseload.iterator(), caseload.size());
+        }
+
+        List<Patient> byVisitDate = new ArrayList<>(patients);
+        byVisitDate.sort(Patient.BY_VISIT_DATE);
+        BinarySearchTree<Patient> newVisitDateIndex = new BinarySearchTree<>(Patient.BY_VISIT_DATE);
+        newVisitDateIndex.loadSorted(byVisitDate.iterator(), byVisitDate.size());
+        pastVisits.sort(Patient.BY_VISIT_DATE);
+        BinarySearchTree<Patient> newPastVisitIndex = new BinarySearchTree<>(Patient.BY_VISIT_DATE);
+        newPastVisitIndex.loadSorted(pastVisits.iterator(), pastVisits.size());
+        HashMap<Integer, int[]> newVisitCounts = new HashMap<>();
+        for (Patient visit : visits) {
+            countVisit(newVisitCounts, visit.visitDate, 1);
+        }
+
+        // Merge-walk patients and assignments, both in patient-name order
+        ConcurrentHashMap<String, BinarySearchTree<StaffMember>> newCareTeams = new ConcurrentHashMap<>();
+        HashMap<String, List<String>> coverage = new HashMap<>();
+        List<StaffMember> team = new ArrayList<>();
+        int next = 0;
+        int skipped = 0;
+        for (Patient patient : patients) {
+            while (next < assignments.size() && assignments.get(next).patientName.compareTo(patient.name) < 0) {
+                next++;
+                skipped++;
+            }
+            team.clear();
+            while (next < assignments.size() && assignments.get(next).patientName.equals(patient.name)) {
+                StaffMember member = assignments.get(next++).member;
+                team.add(member);
+                coverage.computeIfAbsent(member.name, k -> new ArrayList<>()).add(patient.name);
+            }
+            if (!team.isEmpty()) {
+                BinarySearchTree<StaffMember> careTeam = new BinarySearchTree<>();
+                careTeam.loadSorted(team.iterator(), team.size());
+                newCareTeams.put(patient.name, careTeam);
+            }
+        }
+        skipped += assignments.size() - next;
+
+        HashMap<String, BinarySearchTree<String>> newStaffAssignments = new HashMap<>();
+        for (Map.Entry<String, List<String>> entry : coverage.entrySet()) {
+            BinarySearchTree<String> covered = new BinarySearchTree<>();
+            covered.loadSorted(entry.getValue().iterator(), entry.getValue().size());
+            newStaffAssignments.put(entry.getKey(), covered);
+        }
+
+        HospitalStore current;
+        lock.writeLock().lock();
+        try {
+            patientTree = newPatientTree;
+            careTeams = newCareTeams;
+            staffAssignments = newStaffAssignments;
+            doctors = dictionary;
+            visitDateIndex = newVisitDateIndex;
+            pastVisitIndex = newPastVisitIndex;
+            visitCounts = newVisitCounts;
+            if (foldedNameIndex != null) {
+                foldedNameIndex = buildFoldedNameIndex(patients);
+            }
+            if (reportCache != null) {
+                reportCache.clear();
+            }
+            if (changeFeed != null) {
+                changeFeed.publish(ChangeFeed.Type.RESET, false, null, null, null, null);
+                describeContents(new ContentSink() {
+                    @Override
+                    public void patient(Patient patient) {
+                        changeFeed.publish(ChangeFeed.Type.ADD_PATIENT, false, patient.name, patient, null, null);
+                    }
+
+                    @Override
+                    public void member(String patientName, StaffMember member) {
+                        changeFeed.publish(ChangeFeed.Type.ADD_MEMBER, false, patientName, null, member, null);
+                    }
+                });
+            }
+            current = store;
+            if (current != null) {
+                lock.readLock().lock(); // Downgrade: queries resume, mutations wait for the snapshot
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        // The log cannot describe a rebuild, so snapshot it before any
+        // mutation is logged on top of it
+        if (current != null) {
+            try {
+                current.writeSnapshot(patientTree, careTeams, doctors.names());
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+        return skipped;
+    }
+
+    // Method: Looks up a patient by name
+    //--------------------------------------------------------
+    // Summary: Returns the stored record for the patient in O(log n),
+    // which holds their latest visit, so no history is read. The lookup
+    // is first tried without the lock, and only repeated under the read
+    // lock if a write overlapped it, so it does not wait for writers.
+    // Precondition: None.
+    // Postcondition: Returns the patient, or null if they do not exist.
+    //--------------------------------------------------------
+
+    public Patient getPatient(String patientName) {
+        long start = metrics.start();
+        try {
+            long stamp = lock.tryOptimisticRead();
+            if (stamp != 0) {
+                try {
+                    Patient patient = patientTree.getOptimistic(patientName, Patient::compareName);
+                    if (lock.validate(stamp)) {
+                        return patient;
+                    }
+                } catch (RuntimeException e) {
+                    // Torn by a concurrent write; read again under the lock
+                }
+            }
+            lock.readLock().lock();
+            try {
+                return findPatient(patientName);
+            } finally {
+                lock.readLock().unlock();
+            }
+        } finally {
+            metrics.record(HospitalMetrics.Operation.GET_PATIENT, start);
+        }
+    }
+
+    // Method: Finds every patient matching a predicate
+    //--------------------------------------------------------
+    // Summary: Scans the whole patient tree with a parallel stream, so
+    // ad hoc filters (by year, by doctor, by name pattern) use every core.
+    // The fork-join workers only read the tree, and the calling thread's
+    // read lock keeps writers out until the scan is done.
+    // Precondition: The filter must be thread-safe and must not modify
+    // the database.
+    // Postcondition: Returns the matching patients in name order.
+    //--------------------------------------------------------
+
+    public List<Patient> findPatients(Predicate<? super Patient> filter) {
+        long start = metrics.start();
+        lock.readLock().lock();
+        try {
+            return patientTree.stream().parallel().filter(filter).collect(Collectors.toList());
+        } finally {
+            lock.readLock().unlock();
+            metrics.record(HospitalMetrics.Operation.FIND_PATIENTS, start);
+        }
+    }
+
+    // Method: Lists a patient's care team
+    //--------------------------------------------------------
+    // Summary: Returns the members of the patient's care team in name
+    // order.
+    // Precondition: None.
+    // Postcondition: Returns the members, or null if the patient does not
+    // exist.
+    //--------------------------------------------------------
+
+    public List<StaffMember> getCareTeam(String patientName) {
+        long start = metrics.start();
+        lock.readLock().lock();
+        try {
+            if (findPatient(patientName) == null) {
+                return null;
+            }
+            List<StaffMember> members = new ArrayList<>();
+            BinarySearchTree<StaffMember> careTeam = careTeams.get(patientName);
+            if (careTeam != null) {
+                careTeam.inOrderTraversal(members::add);
+            }
+            return members;
+        } finally {
+            lock.readLock().unlock();
+            metrics.record(HospitalMetrics.Operation.GET_CARE_TEAM, start);
+        }
+    }
+
+    // Method: Streams the patients of a doctor
+    //--------------------------------------------------------
+    // Summary: Passes every patient treated by the doctor to the sink,
+    // in name order. The sink runs under the read lock and must not
+    // modify the database.
+    // Precondition: The sink must not be null.
+    // Postcondition: The sink has received the doctor's patients.
+    //--------------------------------------------------------
+
+    public void forEachDoctorPatient(String doctorName, Consumer<? super Patient> sink) {
+        long start = metrics.start();
+        lock.readLock().lock();
+        try {
+            Doctor doctor = doctors.get(doctorName);
+            if (doctor != null) {
+                doctor.caseload.inOrderTraversal(sink);
+            }
+        } finally {
+            lock.readLock().unlock();
+            metrics.record(HospitalMetrics.Operation.DOCTOR_PATIENTS, start);
+        }
+    }
+
+    // Method: Streams the patients who visited in a year
+    //--------------------------------------------------------
+    // Summary: Passes the year's visits to the sink, most recent first
+    // and visits of one day in name order, each as the patient record of
+    // that visit, so a patient seen twice that year is passed twice. The
+    // sink runs under the read lock and must not modify the database.
+    // Precondition: The sink must not be null.
+    // Postcondition: The sink has received the year's patients.
+    //--------------------------------------------------------
+
+    public void forEachPatientInYear(int visitYear, Consumer<? super Patient> sink) {
+        long start = metrics.start();
+        lock.readLock().lock();
+        try {
+            traverseYear(visitYear, sink);
+        } finally {
+            lock.readLock().unlock();
+            metrics.record(HospitalMetrics.Operation.PATIENTS_IN_YEAR, start);
+        }
+    }
+
+    // Method: Streams the patients who visited within a date range
+    //--------------------------------------------------------
+    // Summary: Passes the visits dated between the two dates (both
+    // inclusive) to the sink, oldest first, each as the patient record of
+    // that visit. The sink runs under the read lock and must not modify
+    // the database.
+    // Precondition: Both dates are valid, as for addPatient, and the from
+    // date is not after the to date.
+    // Postcondition: The sink has received the patients in range.
+    //--------------------------------------------------------
+
+    public void forEachPatientBetween(int fromDay, int fromMonth, int fromYear, int toDay, int toMonth, int toYear,
+                                      Consumer<? super Patient> sink) {
+        long start = metrics.start();
+        lock.readLock().lock();
+        try {
+            traverseVisits(packDate(fromDay, fromMonth, fromYear), packDate(toDay, toMonth, toYear), true, sink);
+        } finally {
+            lock.readLock().unlock();
+            metrics.record(HospitalMetrics.Operation.PATIENTS_BETWEEN, start);
+        }
+    }
+
+    // Method: Streams every patient
+    //--------------------------------------------------------
+    // Summary: Passes all patients to the sink in visit-date order. The
+    // sink runs under the read lock and must not modify the database.
+    // Precondition: The sink must not be null.
+    // Postcondition: The sink has received every patient.
+    //--------------------------------------------------------
+
+    public void forEachPatient(Consumer<? super Patient> sink) {
+        long start = metrics.start();
+        lock.readLock().lock();
+        try {
+            visitDateIndex.inOrderTraversal(sink);
+        } finally {
+            lock.readLock().unlock();
+            metrics.record(HospitalMetrics.Operation.ALL_PATIENTS, start);
+        }
+    }
+
+    // Method: Finds patients whose name starts with a prefix
+    //--------------------------------------------------------
+    // Summary: Jumps to the first name not below the prefix and reads
+    // names in order until one no longer matches, so type-ahead lookups
+    // cost O(log n + k) for the first k matches.
+    // Precondition: limit is not negative.
+    // Postcondition: Returns up to limit matching patients in name order.
+    //--------------------------------------------------------
+
+    public List<Patient> findPatientsByPrefix(String prefix, int limit) {
+        checkLimit(limit);
+        List<Patient> matches = new ArrayList<>();
+        long start = metrics.start();
+        lock.readLock().lock();
+        try {
+            Iterator<Patient> patients = patientTree.iteratorFrom(prefix, Patient::compareName);
+            while (matches.size() < limit && patients.hasNext()) {
+                Patient patient = patients.next();
+                if (!patient.name.startsWith(prefix)) {
+                    break;
+                }
+                matches.add(patient);
+            }
+        } finally {
+            lock.readLock().unlock();
+            metrics.record(HospitalMetrics.Operation.NAME_SEARCH, start);
+        }
+        return matches;
+    }
+
+    // Method: Finds patients whose name lies in a lexicographic range
+    //--------------------------------------------------------
+    // Summary: Returns the patients from fromName (inclusive) up to
+    // toName (exclusive) in name order, stopping after limit matches.
+    // Runs in O(log n + k).
+    // Precondition: limit is not negative.
+    // Postcondition: Returns up to limit patients in the range.
+    //--------------------------------------------------------
+
+    public List<Patient> findPatientsByNameRange(String fromName, String toName, int limit) {
+        checkLimit(limit);
+        List<Patient> matches = new ArrayList<>();
+        long start = metrics.start();
+        lock.readLock().lock();
+        try {
+            Iterator<Patient> patients = patientTree.iteratorFrom(fromName, Patient::compareName);
+            while (matches.size() < limit && patients.hasNext()) {
+                Patient patient = patients.next();
+                if (patient.name.compareTo(toName) >= 0) {
+                    break;
+                }
+                matches.add(patient);
+            }
+        } finally {
+            lock.readLock().unlock();
+            metrics.record(HospitalMetrics.Operation.NAME_SEARCH, start);
+        }
+        return matches;
+    }
+
+    // Interface for receiving the contents of the database
+    private interface ContentSink {
+        void patient(Patient patient);
+
+        void member(String patientName, StaffMember member);
+    }
+
+    // Helper Method: Lists the contents of the database
+    //--------------------------------------------------------
+    // Summary: Passes every patient in name order, as each of their
+    // visits oldest first, followed by their care team members, which is
+    // enough to recreate the database.
+    // Precondition: The caller holds the lock.
+    // Postcondition: The sink has received everything.
+    //--------------------------------------------------------
+
+    private void describeContents(ContentSink sink) {
+        patientTree.inOrderTraversal(new Consumer<Patient>() {
+            @Override
+            public void accept(Patient patient) {
+                for (int i = 0; i < patient.visitCount() - 1; i++) {
+                    long key = patient.visitKey(i);
+                    sink.patient(new Patient(patient.name, doctors.get(VisitHistory.doctorIdOf(key)),
+                            VisitHistory.dateOf(key)));
+                }
+                sink.patient(patient);
+                BinarySearchTree<StaffMember> careTeam = careTeams.get(patient.name);
+                if (careTeam != null) {
+                    careTeam.inOrderTraversal(new Consumer<StaffMember>() {
+                        @Override
+                        public void accept(StaffMember member) {
+                            sink.member(patient.name, member);
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    // Method: Turns on the change feed
+    //--------------------------------------------------------
+    // Summary: From now on every successful addPatient, removePatient,
+    // addMember and removeMember, every patient removed by retention and
+    // every bulk load or clear is published as an event. Failed
+    // operations, which change nothing, are not published. The capacity
+    // bounds how far the slowest subscriber may fall behind before
+    // mutations wait for it.
+    // Precondition: capacity is positive.
+    // Postcondition: Returns the feed; enabling it again returns the same
+    // feed and ignores the capacity.
+    //--------------------------------------------------------
+
+    public ChangeFeed enableChangeFeed(int capacity) {
+        lock.writeLock().lock();
+        try {
+            if (changeFeed == null) {
+                changeFeed = new ChangeFeed(capacity);
+            }
+            return changeFeed;
+        } finally {
+            lock.writeLock().unlock();
         }
+    }
 
-        public String getDoctorName() {
-            return doctorName;
+    // Method: Subscribes to the change feed
+    //--------------------------------------------------------
+    // Summary: First hands the handler the current contents, on the
+    // calling thread, as a RESET event followed by ADD_PATIENT and
+    // ADD_MEMBER events carrying the sequence of the last published event.
+    // Then a subscriber thread delivers every later event. Mutations wait
+    // while the contents are handed over, so nothing is missed or seen
+    // twice.
+    // Precondition: The change feed is enabled.
+    // Postcondition: Returns the running subscription; close it to stop.
+    //--------------------------------------------------------
+
+    public ChangeFeed.Subscription subscribeChanges(ChangeFeed.Handler handler) {
+        lock.writeLock().lock();
+        try {
+            if (changeFeed == null) {
+                throw new IllegalStateException("Change feed is not enabled");
+            }
+            ChangeFeed.Subscription subscription = changeFeed.subscribe(handler);
+            try {
+                handContents(handler, changeFeed.getPublishedSequence());
+            } catch (RuntimeException e) {
+                subscription.close(); // Would otherwise hold back every mutation
+                throw e;
+            }
+            ChangeFeed.start(subscription);
+            return subscription;
+        } finally {
+            lock.writeLock().unlock();
         }
+    }
 
-        @Override
-        public int compareTo(Patient other) {
-            return this.name.compareTo(other.name); // Compare by name only
+    // Helper Method: Hands the current contents to a new subscriber
+    //--------------------------------------------------------
+    // Summary: Sends a RESET event and then the contents as additions,
+    // in batches, all carrying the given sequence.
+    // Precondition: The caller holds the write lock.
+    // Postcondition: The handler has received everything.
+    //--------------------------------------------------------
+
+    private void handContents(ChangeFeed.Handler handler, long sequence) {
+        List<ChangeFeed.Event> batch = new ArrayList<>();
+        batch.add(new ChangeFeed.Event(sequence, ChangeFeed.Type.RESET, false, null, null, null, null));
+        describeContents(new ContentSink() {
+            @Override
+            public void patient(Patient patient) {
+                add(new ChangeFeed.Event(sequence, ChangeFeed.Type.ADD_PATIENT, false, patient.name, patient,
+                        null, null));
+            }
+
+            @Override
+            public void member(String patientName, StaffMember member) {
+                add(new ChangeFeed.Event(sequence, ChangeFeed.Type.ADD_MEMBER, false, patientName, null, member,
+                        null));
+            }
+
+            private void add(ChangeFeed.Event event) {
+                batch.add(event);
+                if (batch.size() == 1024) {
+                    handler.onEvents(batch);
+                    batch.clear();
+                }
+            }
+        });
+        handler.onEvents(batch);
+    }
+
+    // Method: Turns on the report cache
+    //--------------------------------------------------------
+    // Summary: From now on showAllPatients, showPatients and
+    // showDoctorPatients keep their rendered text, up to maxChars
+    // characters in total, and repeat it until a mutation changes the
+    // report. Enabling it again keeps the existing cache and its size.
+    // Precondition: maxChars is positive.
+    // Postcondition: The listings are cached.
+    //--------------------------------------------------------
+
+    public void enableReportCache(long maxChars) {
+        lock.writeLock().lock();
+        try {
+            if (reportCache == null) {
+                reportCache = new ReportCache(maxChars);
+            }
+        } finally {
+            lock.writeLock().unlock();
         }
+    }
 
-        @Override
-        public boolean equals(Object obj) {
-            if (this == obj) return true;
-            if (obj == null || getClass() != obj.getClass()) return false;
-            Patient patient = (Patient) obj;
-            return this.name.equals(patient.name); // Match patients by name only
+    // Method: Returns the report cache's hit and miss statistics
+    //--------------------------------------------------------
+    // Summary: Counts since the cache was enabled or last reset.
+    // Precondition: enableReportCache has been called.
+    // Postcondition: Returns a consistent copy of the statistics.
+    //--------------------------------------------------------
+
+    public ReportCache.Stats getReportCacheStats() {
+        return requireReportCache().getStats();
+    }
+
+    // Method: Zeroes the report cache's statistics
+    public void resetReportCacheStats() {
+        requireReportCache().resetStats();
+    }
+
+    // Helper Method: Returns the report cache, which must be enabled
+    private ReportCache requireReportCache() {
+        lock.readLock().lock();
+        try {
+            if (reportCache == null) {
+                throw new IllegalStateException("Report cache is not enabled");
+            }
+            return reportCache;
+        } finally {
+            lock.readLock().unlock();
         }
+    }
 
-        @Override
-        public String toString() {
-            return name + ", " + visitYear + ", " + doctorName;
+    // Method: Turns on case-insensitive name search
+    //--------------------------------------------------------
+    // Summary: Builds an index of patients by case-folded name and keeps
+    // it up to date from then on. It costs an extra entry and folded
+    // name string per patient, so it is off until asked for.
+    // Precondition: None.
+    // Postcondition: findPatientsByPrefixIgnoreCase may be used.
+    //--------------------------------------------------------
+
+    public void enableCaseInsensitiveSearch() {
+        lock.writeLock().lock();
+        try {
+            if (foldedNameIndex == null) {
+                foldedNameIndex = buildFoldedNameIndex(patientTree);
+            }
+        } finally {
+            lock.writeLock().unlock();
         }
     }
 
-    private BinarySearchTree<Patient> patientTree;
-    private HashMap<String, BinarySearchTree<String>> careTeams;
+    // Method: Finds patients by name prefix, ignoring case
+    //--------------------------------------------------------
+    // Summary: Works like findPatientsByPrefix over the case-folded name
+    // index, so "mas" finds "Mason Moore". Patients come out in folded
+    // name order.
+    // Precondition: enableCaseInsensitiveSearch has been called, and
+    // limit is not negative.
+    // Postcondition: Returns up to limit matching patients.
+    //--------------------------------------------------------
 
-    // Constructor: Initializes the hospital database
+    public List<Patient> findPatientsByPrefixIgnoreCase(String prefix, int limit) {
+        checkLimit(limit);
+        String key = fold(prefix);
+        List<Patient> matches = new ArrayList<>();
+        long start = metrics.start();
+        lock.readLock().lock();
+        try {
+            if (foldedNameIndex == null) {
+                throw new IllegalStateException("Case-insensitive search is not enabled");
+            }
+            Iterator<FoldedName> entries = foldedNameIndex.iteratorFrom(key, FoldedName::compareKey);
+            while (matches.size() < limit && entries.hasNext()) {
+                FoldedName entry = entries.next();
+                if (!entry.key.startsWith(key)) {
+                    break;
+                }
+                matches.add(entry.patient);
+            }
+        } finally {
+            lock.readLock().unlock();
+            metrics.record(HospitalMetrics.Operation.NAME_SEARCH, start);
+        }
+        return matches;
+    }
+
+    // Helper Method: Builds the case-folded name index
     //--------------------------------------------------------
-    // Summary: Creates an empty database with a binary search
-    // tree for storing patients and a hash map for managing
-    // care teams.
+    // Summary: Folds every name once, sorts the entries and loads them
+    // bottom-up.
+    // Precondition: The caller holds the write lock.
+    // Postcondition: Returns an index holding every given patient.
+    //--------------------------------------------------------
+
+    private static BinarySearchTree<FoldedName> buildFoldedNameIndex(Iterable<Patient> patients) {
+        List<FoldedName> entries = new ArrayList<>();
+        for (Patient patient : patients) {
+            entries.add(new FoldedName(patient));
+        }
+        entries.sort(FoldedName.BY_KEY_AND_NAME);
+        BinarySearchTree<FoldedName> index = new BinarySearchTree<>(FoldedName.BY_KEY_AND_NAME);
+        index.loadSorted(entries.iterator(), entries.size());
+        return index;
+    }
+
+    // Helper Method: Case-folds a name for the case-insensitive index
+    private static String fold(String name) {
+        return name.toLowerCase(Locale.ROOT);
+    }
+
+    // Helper Method: Rejects negative result limits
+    private static void checkLimit(int limit) {
+        if (limit < 0) {
+            throw new IllegalArgumentException("Negative limit: " + limit);
+        }
+    }
+
+    // Method: Counts a patient's visits
+    //--------------------------------------------------------
+    // Summary: Returns the length of the patient's history in O(log n).
     // Precondition: None.
-    // Postcondition: The database is initialized and ready for use.
+    // Postcondition: Returns the count, 0 for an unknown patient.
     //--------------------------------------------------------
 
-    public HospitalDatabase() {
-        this.patientTree = new BinarySearchTree<>();
-        this.careTeams = new HashMap<>();
+    public int getVisitCount(String patientName) {
+        lock.readLock().lock();
+        try {
+            Patient latest = findPatient(patientName);
+            return (latest == null) ? 0 : latest.visitCount();
+        } finally {
+            lock.readLock().unlock();
+        }
     }
 
-    // Method: Adds a new patient to the database
+    // Method: Lists a patient's visits
     //--------------------------------------------------------
-    // Summary: Inserts a patient into the database. If a patient
-    // with the same name already exists, their details are overwritten.
-    // Precondition: The patient's name must be unique within the database.
-    // Postcondition: The patient is added to the binary search tree, and
-    // their care team is initialized.
+    // Summary: Returns every visit of the patient, oldest first, each as
+    // the patient record of that visit. The last one is the latest
+    // visit, which getPatient returns on its own without touching the
+    // history.
+    // Precondition: None.
+    // Postcondition: Returns the visits, empty for an unknown patient.
     //--------------------------------------------------------
 
-    public void addPatient(String patientName, String doctorName, int visitDay, int visitMonth, int visitYear) {
-        Patient newPatient = new Patient(patientName, doctorName, visitDay, visitMonth, visitYear);
+    public List<Patient> getVisits(String patientName) {
+        return visitsBetween(patientName, 0, Integer.MAX_VALUE);
+    }
 
-        if (patientTree.contains(newPatient)) {
-            System.out.println("ERROR: Patient " + patientName + " overwritten");
-        } else {
-            System.out.println("INFO: Patient " + patientName + " has been added");
+    // Method: Lists a patient's visits within a date range
+    //--------------------------------------------------------
+    // Summary: Returns the patient's visits dated between the two dates
+    // (both inclusive), oldest first. The history is sorted, so the range
+    // is found by binary search in O(log n + log v + k) for a patient
+    // with v visits, k of them in range.
+    // Precondition: Both dates are valid, as for addPatient, and the from
+    // date is not after the to date.
+    // Postcondition: Returns the visits in range.
+    //--------------------------------------------------------
+
+    public List<Patient> getVisitsBetween(String patientName, int fromDay, int fromMonth, int fromYear, int toDay,
+                                          int toMonth, int toYear) {
+        return visitsBetween(patientName, packDate(fromDay, fromMonth, fromYear), packDate(toDay, toMonth, toYear));
+    }
+
+    // Helper Method: Copies a patient's visits between two packed dates
+    private List<Patient> visitsBetween(String patientName, int from, int to) {
+        List<Patient> visits = new ArrayList<>();
+        long start = metrics.start();
+        lock.readLock().lock();
+        try {
+            Patient latest = findPatient(patientName);
+            if (latest == null) {
+                return visits;
+            }
+            VisitHistory history = latest.history;
+            if (history == null) {
+                if (latest.visitDate >= from && latest.visitDate <= to) {
+                    visits.add(latest);
+                }
+                return visits;
+            }
+            for (int i = history.lowerBound(from); i < history.size(); i++) {
+                long key = history.get(i);
+                int visitDate = VisitHistory.dateOf(key);
+                if (visitDate > to) {
+                    break;
+                }
+                visits.add((key == latest.visitKey()) ? latest
+                        : new Patient(patientName, doctors.get(VisitHistory.doctorIdOf(key)), visitDate));
+            }
+            return visits;
+        } finally {
+            lock.readLock().unlock();
+            metrics.record(HospitalMetrics.Operation.VISIT_HISTORY, start);
         }
-        patientTree.insert(newPatient);
-        careTeams.putIfAbsent(patientName, new BinarySearchTree<>());
     }
 
-    // Method: Removes a patient from the database
+    // Method: Counts the patients in the database
     //--------------------------------------------------------
-    // Summary: Deletes a patient and their associated care team
-    // from the database.
-    // Precondition: The patient's name must exist in the database.
-    // Postcondition: The patient is removed from the binary search
-    // tree and their care team is deleted.
+    // Summary: Returns the number of patients in O(1), for sizing pages.
+    // Precondition: None.
+    // Postcondition: Returns the patient count.
     //--------------------------------------------------------
 
-    public void removePatient(String patientName) {
-        if (!careTeams.containsKey(patientName)) {
-            System.out.println("ERROR: Patient " + patientName + " does not exist");
-            return;
+    public int getPatientCount() {
+        lock.readLock().lock();
+        try {
+            return patientTree.size();
+        } finally {
+            lock.readLock().unlock();
         }
+    }
 
-        careTeams.remove(patientName);
+    // Method: Counts the patients of a doctor
+    //--------------------------------------------------------
+    // Summary: Returns the size of the doctor's caseload in O(1), the
+    // number of lines showDoctorPatients would list. A patient the
+    // doctor saw several times counts once.
+    // Precondition: None.
+    // Postcondition: Returns the count, 0 for an unknown doctor.
+    //--------------------------------------------------------
 
-        // Create a dummy patient with only the name for removal
-        patientTree.remove(new Patient(patientName, "", 0, 0, 0));
-        System.out.println("INFO: Patient " + patientName + " has been removed");
+    public int getDoctorPatientCount(String doctorName) {
+        lock.readLock().lock();
+        try {
+            Doctor doctor = doctors.get(doctorName);
+            return (doctor == null) ? 0 : doctor.caseload.size();
+        } finally {
+            lock.readLock().unlock();
+        }
     }
 
+    // Method: Counts the visits in a year
+    //--------------------------------------------------------
+    // Summary: Reads a counter kept up to date by every mutation, so the
+    // answer takes O(1) instead of a walk over the year's visits. A
+    // patient who visited twice that year counts twice.
+    // Precondition: None.
+    // Postcondition: Returns the number of visits showPatients would list.
+    //--------------------------------------------------------
 
+    public int getPatientCountInYear(int visitYear) {
+        lock.readLock().lock();
+        try {
+            int[] yearCounts = visitCounts.get(visitYear);
+            return (yearCounts == null) ? 0 : yearCounts[0];
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
 
+    // Method: Counts the visits in a month
+    //--------------------------------------------------------
+    // Summary: Like getPatientCountInYear, for one month of the year.
+    // Precondition: None.
+    // Postcondition: Returns the count, 0 for a month out of range.
+    //--------------------------------------------------------
 
+    public int getPatientCountInMonth(int visitYear, int visitMonth) {
+        if (visitMonth < 0 || visitMonth > 15) {
+            return 0; // Cannot be stored in a packed date
+        }
+        lock.readLock().lock();
+        try {
+            int[] yearCounts = visitCounts.get(visitYear);
+            return (yearCounts == null) ? 0 : yearCounts[1 + visitMonth];
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
 
-    // Method: Adds a medical staff member to a patient's care team
+    // Method: Returns the per-year visit counts
     //--------------------------------------------------------
-    // Summary: Adds a new staff member to the specified patient's
-    // care team. If the staff member already exists in the care team,
-    // their details are not duplicated.
-    // Precondition: The patient must exist in the database.
-    // Postcondition: The staff member is added to the patient's care team.
+    // Summary: Copies the year counters, in O(y log y) for y years.
+    // Precondition: None.
+    // Postcondition: Returns a map from every year with visits to its
+    // count, in year order.
     //--------------------------------------------------------
 
-    public void addMember(String patientName, String memberName, String memberRole) {
-        if (!careTeams.containsKey(patientName)) {
-            System.out.println("ERROR: Patient " + patientName + " does not exist");
-            return;
+    public SortedMap<Integer, Integer> getPatientCountsByYear() {
+        lock.readLock().lock();
+        try {
+            SortedMap<Integer, Integer> counts = new TreeMap<>();
+            for (Map.Entry<Integer, int[]> entry : visitCounts.entrySet()) {
+                counts.put(entry.getKey(), entry.getValue()[0]);
+            }
+            return counts;
+        } finally {
+            lock.readLock().unlock();
         }
+    }
 
-        BinarySearchTree<String> careTeam = careTeams.get(patientName);
-        String staffInfo = memberName + ", " + memberRole;
+    // Method: Counts the members of a patient's care team
+    //--------------------------------------------------------
+    // Summary: Returns the care team's size in O(1).
+    // Precondition: None.
+    // Postcondition: Returns the size, 0 if the patient has no team or
+    // does not exist.
+    //--------------------------------------------------------
 
-        if (careTeam.contains(staffInfo)) {
-            System.out.println("ERROR: Staff member " + memberName + " already exists in " + patientName + "'s care team");
-        } else {
-            System.out.println("INFO: " + memberName + " has been added to the patient " + patientName);
+    public int getCareTeamSize(String patientName) {
+        lock.readLock().lock();
+        try {
+            BinarySearchTree<StaffMember> careTeam = careTeams.get(patientName);
+            return (careTeam == null) ? 0 : careTeam.size();
+        } finally {
+            lock.readLock().unlock();
         }
-        careTeam.insert(staffInfo);
     }
 
-    // Method: Removes a medical staff member from a patient's care team
+    // Method: Lists one page of patients in name order
     //--------------------------------------------------------
-    // Summary: Removes a staff member from the specified patient's
-    // care team. If the staff member does not exist in the care team,
-    // an error message is displayed.
-    // Precondition: The patient must exist in the database, and the staff
-    // member must exist in the patient's care team.
-    // Postcondition: The staff member is removed from the care team.
+    // Summary: Returns up to limit patients starting at position offset
+    // of the name order. The trees count their subtrees, so the page is
+    // found in O(log n) and read in O(limit), whatever the offset.
+    // Precondition: offset and limit are not negative.
+    // Postcondition: Returns the page, which is empty past the end.
     //--------------------------------------------------------
 
+    public List<Patient> getPatientsByName(int offset, int limit) {
+        long start = metrics.start();
+        lock.readLock().lock();
+        try {
+            return page(patientTree, offset, limit);
+        } finally {
+            lock.readLock().unlock();
+            metrics.record(HospitalMetrics.Operation.PATIENT_PAGE, start);
+        }
+    }
 
-    public void removeMember(String patientName, String memberName) {
-        if (!careTeams.containsKey(patientName)) {
-            System.out.println("ERROR: Patient " + patientName + " does not exist");
-            return;
+    // Method: Lists one page of patients in visit-date order
+    //--------------------------------------------------------
+    // Summary: Works like getPatientsByName, over the visit-date index
+    // (by visit date, then name), the order used by showAllPatients.
+    // Precondition: offset and limit are not negative.
+    // Postcondition: Returns the page, which is empty past the end.
+    //--------------------------------------------------------
+
+    public List<Patient> getPatientsByVisitDate(int offset, int limit) {
+        long start = metrics.start();
+        lock.readLock().lock();
+        try {
+            return page(visitDateIndex, offset, limit);
+        } finally {
+            lock.readLock().unlock();
+            metrics.record(HospitalMetrics.Operation.PATIENT_PAGE, start);
+        }
+    }
+
+    // Helper Method: Copies a page of a tree into a list
+    //--------------------------------------------------------
+    // Summary: Jumps to the offset with the tree's order statistics and
+    // stops after limit elements.
+    // Precondition: The caller holds the lock.
+    // Postcondition: Returns the page.
+    //--------------------------------------------------------
+
+    private static List<Patient> page(BinarySearchTree<Patient> tree, int offset, int limit) {
+        if (offset < 0 || limit < 0) {
+            throw new IllegalArgumentException("Negative offset or limit: " + offset + ", " + limit);
+        }
+        List<Patient> page = new ArrayList<>(Math.min(limit, 1024));
+        if (offset >= tree.size()) {
+            return page;
+        }
+        Iterator<Patient> patients = tree.iteratorAt(offset);
+        while (page.size() < limit && patients.hasNext()) {
+            page.add(patients.next());
+        }
+        return page;
+    }
+
+    // Method: Streams the patients covered by a staff member
+    //--------------------------------------------------------
+    // Summary: Passes the names of the patients whose care team includes
+    // the member to the sink, in name order. The sink runs under the
+    // read lock and must not modify the database.
+    // Precondition: The sink must not be null.
+    // Postcondition: The sink has received the member's patients.
+    //--------------------------------------------------------
+
+    public void forEachStaffPatient(String memberName, Consumer<? super String> sink) {
+        long start = metrics.start();
+        lock.readLock().lock();
+        try {
+            BinarySearchTree<String> assignments = staffAssignments.get(memberName);
+            if (assignments != null) {
+                assignments.inOrderTraversal(sink);
+            }
+        } finally {
+            lock.readLock().unlock();
+            metrics.record(HospitalMetrics.Operation.STAFF_PATIENTS, start);
         }
+    }
+
+    // Method: Queries patients covered by a staff member
+    //--------------------------------------------------------
+    // Summary: Displays every patient whose care team includes the
+    // specified staff member, in name order, using the staff index.
+    // The overload taking an Appendable buffers the report and writes
+    // it to the caller's sink once the lock is released.
+    // Precondition: The database may contain care teams with the member.
+    // Postcondition: The list of patients is displayed.
+    //--------------------------------------------------------
 
-        BinarySearchTree<String> careTeam = careTeams.get(patientName);
+    public void showStaffPatients(String memberName) {
+        showStaffPatients(memberName, System.out);
+    }
 
-        // Find the exact string for the staff member using a prefix match
-        final String[] staffToRemove = {null};
-        careTeam.inOrderTraversal(new Consumer<String>() {
+    public void showStaffPatients(String memberName, Appendable out) {
+        ReportWriter report = new ReportWriter(out);
+        report.append(memberName).endLine();
+        forEachStaffPatient(memberName, new Consumer<String>() {
             @Override
-            public void accept(String member) {
-                if (member.startsWith(memberName + ",")) {
-                    staffToRemove[0] = member;
-                }
+            public void accept(String patientName) {
+                report.append(patientName).endLine();
             }
         });
-
-        if (staffToRemove[0] != null) {
-            careTeam.remove(staffToRemove[0]); // Remove the exact match
-            System.out.println("INFO: " + memberName + " has been removed from the patient " + patientName);
-        } else {
-            System.out.println("ERROR: Staff member " + memberName + " does not exist in " + patientName + "'s care team");
-        }
+        report.flush();
     }
 
 
     // Method: Displays all patients in the database
     //--------------------------------------------------------
-    // Summary: Prints all patients stored in the binary search tree
-    // in their natural order (by visit year and name).
+    // Summary: Prints all patients in visit-date order (by visit date
+    // and name), read straight from the visit-date index, or copied
+    // from the report cache if it is enabled and nothing has changed.
+    // The overload taking an Appendable buffers the report and writes
+    // it to the caller's sink once the lock is released.
     // Precondition: The database may be empty or contain patients.
     // Postcondition: The list of patients is displayed, or "---none---"
     // is shown if the database is empty.
     //--------------------------------------------------------
 
     public void showAllPatients() {
-        if (careTeams.isEmpty()) {
-            System.out.println("---none---");
-            return;
+        showAllPatients(System.out);
+    }
+
+    public void showAllPatients(Appendable out) {
+        writeReport(ReportCache.ALL_PATIENTS, HospitalMetrics.Operation.ALL_PATIENTS, out,
+                new Consumer<ReportWriter>() {
+                    @Override
+                    public void accept(ReportWriter report) {
+                        long start = metrics.start();
+                        lock.readLock().lock();
+                        try {
+                            if (patientTree.isEmpty()) {
+                                report.append("---none---").endLine();
+                            } else {
+                                visitDateIndex.inOrderTraversal(new Consumer<Patient>() {
+                                    @Override
+                                    public void accept(Patient patient) {
+                                        report.append(patient.name).append(", ").append(patient.getVisitYear())
+                                                .append(", ").append(patient.doctor.name).endLine();
+                                    }
+                                });
+                            }
+                        } finally {
+                            lock.readLock().unlock();
+                            metrics.record(HospitalMetrics.Operation.ALL_PATIENTS, start);
+                        }
+                    }
+                });
+    }
+
+    // Helper Method: Writes a report, from the cache when possible
+    //--------------------------------------------------------
+    // Summary: Without a cache, renders into the writer's buffer. With
+    // one, a cached report is copied and counted under the operation,
+    // without taking the lock: mutations drop the reports they change
+    // while holding the write lock, so a report still cached is current,
+    // or the write changing it has not finished yet. Otherwise the report
+    // is rendered into a string and cached. Rendering happens under the
+    // read lock, which is reentrant, so no mutation can slip in between
+    // reading the data and caching the text.
+    // Precondition: render writes the whole report and takes the read
+    // lock itself.
+    // Postcondition: The report is written to out, after the lock is
+    // released.
+    //--------------------------------------------------------
+
+    private void writeReport(String cacheKey, HospitalMetrics.Operation operation, Appendable out,
+                             Consumer<ReportWriter> render) {
+        String text = null;
+        long start = metrics.start();
+        ReportCache cache = reportCache;
+        if (cache != null) {
+            text = cache.get(cacheKey);
+            if (text != null) {
+                metrics.record(operation, start);
+            } else {
+                lock.readLock().lock();
+                try {
+                    StringBuilder rendered = new StringBuilder();
+                    ReportWriter report = new ReportWriter(rendered);
+                    render.accept(report);
+                    report.flush();
+                    text = rendered.toString();
+                    cache.put(cacheKey, text);
+                } finally {
+                    lock.readLock().unlock();
+                }
+            }
         }
+        ReportWriter report = new ReportWriter(out);
+        if (text != null) {
+            report.append(text);
+        } else {
+            render.accept(report);
+        }
+        report.flush();
+    }
 
-        // Step 1: Collect patients in a list
-        List<Patient> patients = new ArrayList<>();
-        patientTree.inOrderTraversal(patients::add);
+    // Method: Displays one page of all patients
+    //--------------------------------------------------------
+    // Summary: Prints the patients at positions offset to offset + limit
+    // - 1 of the showAllPatients listing, in the same format. Only the
+    // page is read, so every page costs O(log n + limit).
+    // Precondition: offset and limit are not negative.
+    // Postcondition: The page is displayed, or "---none---" is shown if
+    // the database is empty.
+    //--------------------------------------------------------
 
-        // Step 2: Sort the list by visitYear
-        patients.sort(Comparator.comparingInt(patient -> patient.visitYear));
+    public void showAllPatients(int offset, int limit) {
+        showAllPatients(offset, limit, System.out);
+    }
 
-        // Step 3: Display the sorted patients
-        for (Patient patient : patients) {
-            System.out.println(patient);
+    public void showAllPatients(int offset, int limit, Appendable out) {
+        ReportWriter report = new ReportWriter(out);
+        List<Patient> page;
+        long start = metrics.start();
+        lock.readLock().lock();
+        try {
+            page = patientTree.isEmpty() ? null : page(visitDateIndex, offset, limit);
+        } finally {
+            lock.readLock().unlock();
+            metrics.record(HospitalMetrics.Operation.PATIENT_PAGE, start);
         }
+        if (page == null) {
+            report.append("---none---").endLine();
+        } else {
+            for (Patient patient : page) {
+                report.append(patient.name).append(", ").append(patient.getVisitYear())
+                        .append(", ").append(patient.doctor.name).endLine();
+            }
+        }
+        report.flush();
     }
 
 
     // Method: Shows detailed information about a specific patient
     //--------------------------------------------------------
     // Summary: Displays all details of a specific patient, including
-    // their visit date, doctor, and care team.
+    // their latest visit date and doctor, and their care team. Like
+    // getPatient, the details are first read without the lock and only
+    // read again under the read lock if a write overlapped them.
+    // The overload taking an Appendable buffers the report and writes
+    // it to the caller's sink once the lock is released.
     // Precondition: The patient must exist in the database.
     // Postcondition: The patient's details are displayed, or "---none---"
     // if the patient does not exist.
     //--------------------------------------------------------
 
     public void showPatient(String patientName) {
-        if (!careTeams.containsKey(patientName)) {
-            System.out.println("---none---");
-            return;
+        showPatient(patientName, System.out);
+    }
+
+    public void showPatient(String patientName, Appendable out) {
+        ReportWriter report = new ReportWriter(out);
+        long start = metrics.start();
+        try {
+            long stamp = lock.tryOptimisticRead();
+            boolean written = false;
+            if (stamp != 0) {
+                try {
+                    writePatient(patientName, report, true);
+                    written = lock.validate(stamp);
+                } catch (RuntimeException e) {
+                    // Torn by a concurrent write; read again under the lock
+                }
+                if (!written) {
+                    report.discard();
+                }
+            }
+            if (!written) {
+                lock.readLock().lock();
+                try {
+                    writePatient(patientName, report, false);
+                } finally {
+                    lock.readLock().unlock();
+                }
+            }
+        } finally {
+            metrics.record(HospitalMetrics.Operation.GET_PATIENT, start);
         }
+        report.flush();
+    }
 
-        Patient patient = findPatient(patientName);
-        System.out.println(patient.name);
-        System.out.println(patient.visitDay + "/" + patient.visitMonth + "/" + patient.visitYear);
-        System.out.println(patient.getDoctorName());
+    // Helper Method: Writes a patient's details for showPatient
+    //--------------------------------------------------------
+    // Summary: Shared by the optimistic and the locked read. The
+    // optimistic read uses the trees' bounded lookups and walks, so links
+    // torn by a concurrent write end it with an exception instead of
+    // sending it round a cycle.
+    // Precondition: The caller holds the read lock, or reads optimistically
+    // and validates the stamp afterwards.
+    // Postcondition: The details are appended to the writer.
+    //--------------------------------------------------------
 
-        BinarySearchTree<String> careTeam = careTeams.get(patientName);
-        careTeam.inOrderTraversal(new Consumer<String>() {
-            @Override
-            public void accept(String member) {
-                System.out.println(member);
+    private void writePatient(String patientName, ReportWriter report, boolean optimistic) {
+        Patient patient = optimistic ? patientTree.getOptimistic(patientName, Patient::compareName)
+                : findPatient(patientName);
+        if (patient == null) {
+            report.append("---none---").endLine();
+        } else {
+            report.append(patient.name).endLine();
+            report.append(patient.getVisitDay()).append('/').append(patient.getVisitMonth())
+                    .append('/').append(patient.getVisitYear()).endLine();
+            report.append(patient.doctor.name).endLine();
+
+            BinarySearchTree<StaffMember> careTeam = careTeams.get(patientName);
+            if (careTeam != null) {
+                Consumer<StaffMember> line = new Consumer<StaffMember>() {
+                    @Override
+                    public void accept(StaffMember member) {
+                        report.append(member.name).append(", ").append(member.role).endLine();
+                    }
+                };
+                if (optimistic) {
+                    careTeam.inOrderTraversalOptimistic(line);
+                } else {
+                    careTeam.inOrderTraversal(line);
+                }
             }
-        });
+        }
     }
 
     // Helper Method: Finds a specific patient in the database
     //--------------------------------------------------------
-    // Summary: Locates a patient by their name in the binary search tree.
+    // Summary: Locates a patient by their name in the binary search tree
+    // with a single O(log n) descent.
     // Precondition: The binary search tree is initialized.
     // Postcondition: Returns the patient object if found, otherwise null.
     //--------------------------------------------------------
 
     private Patient findPatient(String patientName) {
-        final Patient[] found = new Patient[1];
-        patientTree.inOrderTraversal(new Consumer<Patient>() {
-            @Override
-            public void accept(Patient patient) {
-                if (patient.name.equals(patientName)) {
-                    found[0] = patient;
-                }
-            }
-        });
-        return found[0];
+        return patientTree.get(patientName, Patient::compareName);
     }
 
     // Method: Queries patients seen by a specific doctor
     //--------------------------------------------------------
-    // Summary: Displays all patients treated by the specified doctor.
+    // Summary: Displays all patients treated by the specified doctor,
+    // each once with their most recent visit to that doctor, read from
+    // the doctor index in O(log n + k), or copied from the report cache
+    // if none of the doctor's patients has changed.
+    // The overload taking an Appendable buffers the report and writes
+    // it to the caller's sink once the lock is released.
     // Precondition: The database may contain patients treated by the doctor.
     // Postcondition: The list of patients is displayed.
     //--------------------------------------------------------
 
     public void showDoctorPatients(String doctorName) {
-        System.out.println(doctorName);
-        patientTree.inOrderTraversal(new Consumer<Patient>() {
-            @Override
-            public void accept(Patient patient) {
-                if (patient.getDoctorName().equals(doctorName)) {
-                    System.out.println(patient.name + ", " + patient.visitDay + "/" + patient.visitMonth + "/" + patient.visitYear);
-                }
-            }
-        });
+        showDoctorPatients(doctorName, System.out);
+    }
+
+    public void showDoctorPatients(String doctorName, Appendable out) {
+        writeReport(ReportCache.doctorKey(doctorName), HospitalMetrics.Operation.DOCTOR_PATIENTS, out,
+                new Consumer<ReportWriter>() {
+                    @Override
+                    public void accept(ReportWriter report) {
+                        report.append(doctorName).endLine();
+                        forEachDoctorPatient(doctorName, new Consumer<Patient>() {
+                            @Override
+                            public void accept(Patient patient) {
+                                report.append(patient.name).append(", ").append(patient.getVisitDay()).append('/')
+                                        .append(patient.getVisitMonth()).append('/').append(patient.getVisitYear())
+                                        .endLine();
+                            }
+                        });
+                    }
+                });
     }
 
     // Method: Queries patients by year
     //--------------------------------------------------------
     // Summary: Displays all patients who visited in the specified year,
-    // ordered by their most recent visit (last entrance).
+    // ordered by their most recent visit (last entrance), patients seen
+    // on the same day in name order, one line per visit for patients
+    // readmitted within the year. The year is a descending range walk
+    // over the visit-date indices, so no sort and no patient's full
+    // history is needed. With the report cache enabled, the year is only
+    // walked again after a patient of that year has changed.
+    // The overload taking an Appendable buffers the report and writes
+    // it to the caller's sink once the lock is released.
     // Precondition: The database may contain patients for the given year.
     // Postcondition: The list of patients for the year is displayed, or
     // an empty list if no patients visited in that year.
     //--------------------------------------------------------
 
     public void showPatients(int visitYear) {
-        System.out.println(visitYear);
+        showPatients(visitYear, System.out);
+    }
 
-        // Step 1: Collect patients for the given year
-        List<Patient> patients = new ArrayList<>();
-        patientTree.inOrderTraversal(new Consumer<Patient>() {
-            @Override
-            public void accept(Patient patient) {
-                if (patient.visitYear == visitYear) {
-                    patients.add(patient); // Add patients to the list
-                }
-            }
-        });
+    public void showPatients(int visitYear, Appendable out) {
+        writeReport(ReportCache.yearKey(visitYear), HospitalMetrics.Operation.PATIENTS_IN_YEAR, out,
+                new Consumer<ReportWriter>() {
+                    @Override
+                    public void accept(ReportWriter report) {
+                        report.append(visitYear).endLine();
+                        forEachPatientInYear(visitYear, new Consumer<Patient>() {
+                            @Override
+                            public void accept(Patient patient) {
+                                report.append(patient.name).append(", ").append(patient.getVisitDay())
+                                        .append('/').append(patient.getVisitMonth()).endLine();
+                            }
+                        });
+                    }
+                });
+    }
+
+    // Helper Method: Walks the visits of one year
+    //--------------------------------------------------------
+    // Summary: The year spans every packed date sharing its high bits,
+    // so it is a single descending range walk. The walk meets the visits
+    // of one day in reverse name order, so each day's run is held back
+    // and passed on in name order once the next day starts.
+    // Precondition: The caller holds the lock.
+    // Postcondition: The action is applied to the year's visits in
+    // BY_VISIT_DATE_LATEST_FIRST order.
+    //--------------------------------------------------------
 
-        // Step 2: Sort patients in descending order by visit date
-        patients.sort(new Comparator<Patient>() {
+    private void traverseYear(int visitYear, Consumer<? super Patient> action) {
+        if (visitYear < 0 || visitYear > MAX_YEAR) {
+            return; // No visit can be stored in it
+        }
+        List<Patient> sameDay = new ArrayList<>();
+        int first = visitYear << 9;
+        traverseVisits(first, first | 0x1FF, false, new Consumer<Patient>() {
             @Override
-            public int compare(Patient p1, Patient p2) {
-                if (p1.visitMonth != p2.visitMonth) {
-                    return Integer.compare(p2.visitMonth, p1.visitMonth); // Sort by month (descending)
+            public void accept(Patient visit) {
+                if (!sameDay.isEmpty() && sameDay.get(0).visitDate != visit.visitDate) {
+                    passReversed(sameDay, action);
                 }
-                return Integer.compare(p2.visitDay, p1.visitDay); // Sort by day (descending)
+                sameDay.add(visit);
             }
         });
+        passReversed(sameDay, action);
+    }
 
-        // Step 3: Display the sorted patients
-        for (Patient patient : patients) {
-            System.out.println(patient.name + ", " + patient.visitDay + "/" + patient.visitMonth);
+    // Helper Method: Passes a run to the action backwards and empties it
+    private static void passReversed(List<Patient> visits, Consumer<? super Patient> action) {
+        for (int i = visits.size() - 1; i >= 0; i--) {
+            action.accept(visits.get(i));
         }
+        visits.clear();
     }
 
+    // Helper Method: Walks every visit between two packed dates
+    //--------------------------------------------------------
+    // Summary: Merges range walks over the latest and the past visits, so
+    // only visits in range are touched, in O(log n + k). Without any
+    // readmissions it is a plain walk over the visit-date index.
+    // Precondition: The caller holds the lock.
+    // Postcondition: The action is applied to the visits in range, in
+    // ascending or descending visit-date order.
+    //--------------------------------------------------------
 
+    private void traverseVisits(int from, int to, boolean ascending, Consumer<? super Patient> action) {
+        if (pastVisitIndex.isEmpty()) {
+            visitDateIndex.rangeTraversal(from, to, Patient::compareVisitDate, ascending, action);
+            return;
+        }
+        Iterator<Patient> latest = ascending ? visitDateIndex.iteratorFrom(from, Patient::compareVisitDate)
+                : visitDateIndex.descendingIteratorFrom(to, Patient::compareVisitDate);
+        Iterator<Patient> past = ascending ? pastVisitIndex.iteratorFrom(from, Patient::compareVisitDate)
+                : pastVisitIndex.descendingIteratorFrom(to, Patient::compareVisitDate);
+        int end = ascending ? to : from;
+        Comparator<Patient> order = ascending ? Patient.BY_VISIT_DATE : Patient.BY_VISIT_DATE_DESCENDING;
+        Patient nextLatest = nextInRange(latest, end, ascending);
+        Patient nextPast = nextInRange(past, end, ascending);
+        while (nextLatest != null || nextPast != null) {
+            if (nextPast == null || (nextLatest != null && order.compare(nextLatest, nextPast) < 0)) {
+                action.accept(nextLatest);
+                nextLatest = nextInRange(latest, end, ascending);
+            } else {
+                action.accept(nextPast);
+                nextPast = nextInRange(past, end, ascending);
+            }
+        }
+    }
 
+    // Helper Method: Returns the iterator's next visit up to a date, or null
+    private static Patient nextInRange(Iterator<Patient> visits, int end, boolean ascending) {
+        if (!visits.hasNext()) {
+            return null;
+        }
+        Patient visit = visits.next();
+        boolean inRange = ascending ? visit.visitDate <= end : visit.visitDate >= end;
+        return inRange ? visit : null;
+    }
 
+    // Method: Queries patients by visit date range
+    //--------------------------------------------------------
+    // Summary: Displays all visits dated between the two dates (both
+    // inclusive), oldest first.
+    // The overload taking an Appendable buffers the report and writes
+    // it to the caller's sink once the lock is released.
+    // Precondition: Both dates are valid, as for addPatient, and the from
+    // date is not after the to date.
+    // Postcondition: The list of patients in the range is displayed.
+    //--------------------------------------------------------
 
+    public void showPatientsBetween(int fromDay, int fromMonth, int fromYear, int toDay, int toMonth, int toYear) {
+        showPatientsBetween(fromDay, fromMonth, fromYear, toDay, toMonth, toYear, System.out);
+    }
 
-
+    public void showPatientsBetween(int fromDay, int fromMonth, int fromYear, int toDay, int toMonth, int toYear,
+                                    Appendable out) {
+        ReportWriter report = new ReportWriter(out);
+        report.append(fromDay).append('/').append(fromMonth).append('/').append(fromYear).append(" - ")
+                .append(toDay).append('/').append(toMonth).append('/').append(toYear).endLine();
+        forEachPatientBetween(fromDay, fromMonth, fromYear, toDay, toMonth, toYear, new Consumer<Patient>() {
+            @Override
+            public void accept(Patient patient) {
+                report.append(patient.name).append(", ").append(patient.getVisitDay()).append('/')
+                        .append(patient.getVisitMonth()).append('/').append(patient.getVisitYear()).endLine();
+            }
+        });
+        report.flush();
+    }
 }
@@ -0,0 +1,371 @@
+//-----------------------------------------------------
+// Title: Hospital Metrics Implementation
+// Author: Ege Yavuz
+// ID: 14872032366
+// Section: 1
+// Assignment: 3
+// Description: Counts and times the operations of a HospitalDatabase.
+// Every operation kind has a striped counter and a latency histogram
+// with four buckets per power of two, so recording never blocks,
+// never allocates and stays accurate to within 25%. While disabled,
+// recording costs one volatile read.
+//-----------------------------------------------------
+
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+public final class HospitalMetrics {
+
+    // The operations that are counted and timed
+    public enum Operation {
+        ADD_PATIENT,
+        REMOVE_PATIENT,
+        ADD_MEMBER,
+        REMOVE_MEMBER,
+        RETENTION_SWEEP,
+        APPLY_BATCH,
+        GET_PATIENT,
+        GET_CARE_TEAM,
+        FIND_PATIENTS,
+        NAME_SEARCH,
+        PATIENT_PAGE,
+        VISIT_HISTORY,
+        DOCTOR_PATIENTS,
+        PATIENTS_IN_YEAR,
+        PATIENTS_BETWEEN,
+        ALL_PATIENTS,
+        STAFF_PATIENTS
+    }
+
+    // Returned by start while disabled, so record can skip the operation
+    private static final long NOT_TIMED = Long.MIN_VALUE;
+
+    // Four buckets per power of two up to 2^62 ns
+    private static final int SUB_BUCKET_BITS = 2;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (62 - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+    // Inner class holding the counters of one operation
+    private static final class Recorder {
+        private final LongAdder count = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+        private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+        private final LongAdder[] buckets = new LongAdder[BUCKETS];
+
+        Recorder() {
+            for (int i = 0; i < BUCKETS; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        void record(long nanos) {
+            count.increment();
+            totalNanos.add(nanos);
+            maxNanos.accumulate(nanos);
+            buckets[bucketOf(nanos)].increment();
+        }
+
+        void reset() {
+            count.reset();
+            totalNanos.reset();
+            maxNanos.reset();
+            for (LongAdder bucket : buckets) {
+                bucket.reset();
+            }
+        }
+    }
+
+    private final Recorder[] recorders = new Recorder[Operation.values().length];
+    private volatile boolean enabled;
+
+    // Constructor: Initializes disabled metrics
+    //--------------------------------------------------------
+    // Summary: Creates a recorder for every operation, all empty.
+    // Precondition: None.
+    // Postcondition: Nothing is recorded until setEnabled(true).
+    //--------------------------------------------------------
+
+    HospitalMetrics() {
+        for (int i = 0; i < recorders.length; i++) {
+            recorders[i] = new Recorder();
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    // Method: Clears every counter and histogram
+    public void reset() {
+        for (Recorder recorder : recorders) {
+            recorder.reset();
+        }
+    }
+
+    // Method: Marks the start of an operation
+    //--------------------------------------------------------
+    // Summary: Reads the clock only while enabled.
+    // Precondition: None.
+    // Postcondition: Returns the value to pass to record.
+    //--------------------------------------------------------
+
+    long start() {
+        return enabled ? System.nanoTime() : NOT_TIMED;
+    }
+
+    // Method: Records a finished operation
+    //--------------------------------------------------------
+    // Summary: Counts the operation and files its latency, unless start
+    // was called while disabled.
+    // Precondition: start is the value start returned for the operation.
+    // Postcondition: The operation is reflected in the next snapshot.
+    //--------------------------------------------------------
+
+    void record(Operation operation, long start) {
+        if (start != NOT_TIMED) {
+            recorders[operation.ordinal()].record(Math.max(0, System.nanoTime() - start));
+        }
+    }
+
+    // Helper Method: Maps a latency to its histogram bucket
+    //--------------------------------------------------------
+    // Summary: Values below four get a bucket each; larger values are
+    // split by their highest set bit and the two bits after it.
+    // Precondition: nanos is not negative.
+    // Postcondition: Returns a bucket index below BUCKETS.
+    //--------------------------------------------------------
+
+    private static int bucketOf(long nanos) {
+        if (nanos < SUB_BUCKETS) {
+            return (int) nanos;
+        }
+        int octave = 63 - Long.numberOfLeadingZeros(nanos);
+        int sub = (int) (nanos >>> (octave - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (octave - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    // Helper Method: Returns the largest latency a bucket holds
+    private static long bucketLimit(int bucket) {
+        if (bucket + 1 < SUB_BUCKETS) {
+            return bucket;
+        }
+        int next = bucket + 1;
+        if (next >= BUCKETS) {
+            return Long.MAX_VALUE;
+        }
+        int octave = next / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long low = (long) (SUB_BUCKETS + next % SUB_BUCKETS) << (octave - SUB_BUCKET_BITS);
+        return low - 1;
+    }
+
+    // Method: Summarizes the recorded operations
+    //--------------------------------------------------------
+    // Summary: Reads every counter once. Operations still being recorded
+    // may or may not be included.
+    // Precondition: None.
+    // Postcondition: Returns one entry per operation kind.
+    //--------------------------------------------------------
+
+    List<OperationStats> operationStats() {
+        List<OperationStats> stats = new ArrayList<>(recorders.length);
+        long[] counts = new long[BUCKETS];
+        for (Operation operation : Operation.values()) {
+            Recorder recorder = recorders[operation.ordinal()];
+            long total = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] = recorder.buckets[i].sum();
+                total += counts[i];
+            }
+            long max = recorder.maxNanos.get();
+            stats.add(new OperationStats(operation.name(), recorder.count.sum(), recorder.totalNanos.sum(),
+                    percentile(counts, total, 0.50, max), percentile(counts, total, 0.99, max),
+                    percentile(counts, total, 0.999, max), max));
+        }
+        return stats;
+    }
+
+    // Helper Method: Reads a percentile off a histogram
+    //--------------------------------------------------------
+    // Summary: Finds the bucket holding the requested rank and returns
+    // its upper limit, capped by the largest latency seen.
+    // Precondition: total is the sum of counts.
+    // Postcondition: Returns the percentile, or 0 for an empty histogram.
+    //--------------------------------------------------------
+
+    private static long percentile(long[] counts, long total, double fraction, long max) {
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(fraction * total);
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(bucketLimit(i), max);
+            }
+        }
+        return max;
+    }
+
+    // Inner class holding the figures of one operation
+    //--------------------------------------------------------
+    // Summary: Immutable; latencies are in nanoseconds and include the
+    // time spent waiting for the database's lock.
+    //--------------------------------------------------------
+    public static final class OperationStats {
+        private final String operation;
+        private final long count;
+        private final long totalNanos;
+        private final long p50Nanos;
+        private final long p99Nanos;
+        private final long p999Nanos;
+        private final long maxNanos;
+
+        OperationStats(String operation, long count, long totalNanos, long p50Nanos, long p99Nanos,
+                       long p999Nanos, long maxNanos) {
+            this.operation = operation;
+            this.count = count;
+            this.totalNanos = totalNanos;
+            this.p50Nanos = p50Nanos;
+            this.p99Nanos = p99Nanos;
+            this.p999Nanos = p999Nanos;
+            this.maxNanos = maxNanos;
+        }
+
+        public String getOperation() {
+            return operation;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getMeanNanos() {
+            return (count == 0) ? 0 : totalNanos / count;
+        }
+
+        public long getP50Nanos() {
+            return p50Nanos;
+        }
+
+        public long getP99Nanos() {
+            return p99Nanos;
+        }
+
+        public long getP999Nanos() {
+            return p999Nanos;
+        }
+
+        public long getMaxNanos() {
+            return maxNanos;
+        }
+
+        @Override
+        public String toString() {
+            return operation + ": " + count + " ops, mean " + getMeanNanos() + " ns, p50 " + p50Nanos
+                    + " ns, p99 " + p99Nanos + " ns, p99.9 " + p999Nanos + " ns, max " + maxNanos + " ns";
+        }
+    }
+
+    // Inner class holding a point-in-time view of a database
+    //--------------------------------------------------------
+    // Summary: Immutable; pairs the operation figures with the sizes and
+    // shapes of the database's trees. Average comparisons is the mean
+    // number of comparisons a successful lookup in the patient tree makes,
+    // which is the mean depth of its nodes, counting the root as depth one.
+    //--------------------------------------------------------
+    public static final class Snapshot {
+        private final List<OperationStats> operations;
+        private final int patientCount;
+        private final int patientTreeHeight;
+        private final double patientTreeAverageComparisons;
+        private final int visitDateIndexHeight;
+        private final int doctorCount;
+        private final int largestCaseloadSize;
+        private final int careTeamCount;
+        private final int largestCareTeamSize;
+        private final int staffCount;
+
+        Snapshot(List<OperationStats> operations, int patientCount, int patientTreeHeight,
+                 double patientTreeAverageComparisons, int visitDateIndexHeight, int doctorCount,
+                 int largestCaseloadSize, int careTeamCount, int largestCareTeamSize, int staffCount) {
+            this.operations = Collections.unmodifiableList(operations);
+            this.patientCount = patientCount;
+            this.patientTreeHeight = patientTreeHeight;
+            this.patientTreeAverageComparisons = patientTreeAverageComparisons;
+            this.visitDateIndexHeight = visitDateIndexHeight;
+            this.doctorCount = doctorCount;
+            this.largestCaseloadSize = largestCaseloadSize;
+            this.careTeamCount = careTeamCount;
+            this.largestCareTeamSize = largestCareTeamSize;
+            this.staffCount = staffCount;
+        }
+
+        public List<OperationStats> getOperations() {
+            return operations;
+        }
+
+        public int getPatientCount() {
+            return patientCount;
+        }
+
+        public int getPatientTreeHeight() {
+            return patientTreeHeight;
+        }
+
+        public double getPatientTreeAverageComparisons() {
+            return patientTreeAverageComparisons;
+        }
+
+        public int getVisitDateIndexHeight() {
+            return visitDateIndexHeight;
+        }
+
+        public int getDoctorCount() {
+            return doctorCount;
+        }
+
+        public int getLargestCaseloadSize() {
+            return largestCaseloadSize;
+        }
+
+        public int getCareTeamCount() {
+            return careTeamCount;
+        }
+
+        public int getLargestCareTeamSize() {
+            return largestCareTeamSize;
+        }
+
+        public int getStaffCount() {
+            return staffCount;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder text = new StringBuilder();
+            text.append("patients: ").append(patientCount).append(", tree height ").append(patientTreeHeight)
+                    .append(String.format(", %.2f comparisons per lookup", patientTreeAverageComparisons))
+                    .append(System.lineSeparator());
+            text.append("visit-date index height: ").append(visitDateIndexHeight).append(System.lineSeparator());
+            text.append("doctors: ").append(doctorCount).append(", largest caseload ").append(largestCaseloadSize)
+                    .append(System.lineSeparator());
+            text.append("care teams: ").append(careTeamCount).append(", largest ").append(largestCareTeamSize)
+                    .append(", staff ").append(staffCount).append(System.lineSeparator());
+            for (OperationStats stats : operations) {
+                if (stats.count > 0) {
+                    text.append(stats).append(System.lineSeparator());
+                }
+            }
+            return text.toString();
+        }
+    }
+}
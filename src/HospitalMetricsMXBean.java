@@ -0,0 +1,26 @@
+//-----------------------------------------------------
+// Title: Hospital Metrics Management Interface
+// Author: Ege Yavuz
+// ID: 14872032366
+// Section: 1
+// Assignment: 3
+// Description: The JMX view of a HospitalDatabase's metrics. Register it
+// with HospitalDatabase.registerMBean and browse it with jconsole or any
+// other JMX client.
+//-----------------------------------------------------
+
+
+public interface HospitalMetricsMXBean {
+
+    // Whether operations are being counted and timed
+    boolean isEnabled();
+
+    void setEnabled(boolean enabled);
+
+    // Clears every counter and histogram
+    void reset();
+
+    // Operation counts and latencies together with the sizes and shapes
+    // of the database's trees, taken at the time of the call
+    HospitalMetrics.Snapshot getSnapshot();
+}
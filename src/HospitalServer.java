@@ -0,0 +1,240 @@
+//-----------------------------------------------------
+// Title: Hospital Server
+// Author: Ege Yavuz
+// ID: 14872032366
+// Section: 1
+// Assignment: 3
+// Description: Serves a HospitalDatabase to other processes over a line
+// protocol on a localhost TCP port. Clients send the commands understood
+// by CommandRunner, one per line, and receive for each command a line
+// holding the number of output lines that follow, then the output
+// itself; blank lines and comments get no answer. A client may
+// pipeline: send many commands before reading, and the answers come back
+// in order. Every connection is served by its own
+// virtual thread, so thousands of mostly idle clients cost little more
+// than their sockets.
+//
+// Usage: java HospitalServer [port [databaseDirectory]]
+// The port defaults to 7070. With a directory the database is opened
+// there, otherwise it is in memory. The patient listings are served
+// from a report cache, since clients tend to poll them. Needs JDK 21
+// or newer for virtual threads.
+//-----------------------------------------------------
+
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+
+public class HospitalServer implements Closeable {
+
+    private static final int DEFAULT_PORT = 7070;
+    // Connections the kernel may queue before they are accepted
+    private static final int BACKLOG = 4096;
+    private static final int BUFFER_SIZE = 8192;
+    // Characters of rendered reports kept for polling clients
+    private static final long REPORT_CACHE_CHARS = 64L << 20;
+
+    private final HospitalDatabase database;
+    private final ServerSocket serverSocket;
+    private final ThreadFactory connectionThreads = Thread.ofVirtual().name("hospital-connection-", 0).factory();
+    private final Set<Socket> connections = ConcurrentHashMap.newKeySet();
+    private volatile boolean closed;
+
+    // Constructor: Binds a server to a localhost port
+    //--------------------------------------------------------
+    // Summary: Listens on the loopback interface only, so the database
+    // is not reachable from other machines. Port 0 picks a free port.
+    // Precondition: The port is free.
+    // Postcondition: The server is bound; call serve or start to accept
+    // connections.
+    //--------------------------------------------------------
+
+    public HospitalServer(HospitalDatabase database, int port) throws IOException {
+        this.database = database;
+        this.serverSocket = new ServerSocket(port, BACKLOG, InetAddress.getLoopbackAddress());
+    }
+
+    // Method: Runs a server until it is killed
+    //--------------------------------------------------------
+    // Summary: Serves an in-memory database, or one opened on the
+    // directory, which is closed cleanly on shutdown. The report cache
+    // is enabled.
+    // Precondition: None.
+    // Postcondition: Does not return until the process is stopped.
+    //--------------------------------------------------------
+
+    public static void main(String[] args) throws IOException {
+        int port = (args.length > 0) ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+        HospitalDatabase database = (args.length > 1) ? HospitalDatabase.open(Paths.get(args[1])) : new HospitalDatabase();
+        database.enableReportCache(REPORT_CACHE_CHARS);
+        HospitalServer server = new HospitalServer(database, port);
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    server.close();
+                    database.close();
+                } catch (IOException e) {
+                    System.err.println("ERROR: Shutdown failed: " + e.getMessage());
+                }
+            }
+        }));
+        System.err.println("INFO: Serving on localhost port " + server.getPort());
+        server.serve();
+    }
+
+    // Method: Returns the port the server listens on
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    // Method: Accepts connections on a background thread
+    //--------------------------------------------------------
+    // Summary: Runs serve on a daemon thread and returns at once.
+    // Precondition: Neither serve nor start has been called.
+    // Postcondition: The server is accepting connections.
+    //--------------------------------------------------------
+
+    public void start() {
+        Thread acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    serve();
+                } catch (IOException e) {
+                    System.err.println("ERROR: Server stopped: " + e.getMessage());
+                }
+            }
+        }, "hospital-server");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    // Method: Accepts connections until the server is closed
+    //--------------------------------------------------------
+    // Summary: Hands every accepted connection to a new virtual thread.
+    // Precondition: Neither serve nor start has been called.
+    // Postcondition: Returns once close has been called.
+    //--------------------------------------------------------
+
+    public void serve() throws IOException {
+        while (!closed) {
+            Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                if (closed) {
+                    return;
+                }
+                throw e;
+            }
+            connections.add(socket);
+            if (closed) {
+                closeQuietly(socket); // Raced with close
+                return;
+            }
+            connectionThreads.newThread(new Runnable() {
+                @Override
+                public void run() {
+                    handle(socket);
+                }
+            }).start();
+        }
+    }
+
+    // Helper Method: Serves one connection
+    //--------------------------------------------------------
+    // Summary: Reads commands, executes each as soon as it is read and
+    // buffers the answers. The buffer is only flushed once no further
+    // command is waiting in the input, so a pipelined burst is answered
+    // with a few large writes instead of one per command.
+    // Precondition: Runs on the connection's own thread.
+    // Postcondition: The socket is closed.
+    //--------------------------------------------------------
+
+    private void handle(Socket socket) {
+        try {
+            socket.setTcpNoDelay(true);
+            BufferedReader in = new BufferedReader(
+                    new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8), BUFFER_SIZE);
+            Writer out = new BufferedWriter(
+                    new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), BUFFER_SIZE);
+            StringBuilder answer = new StringBuilder(256);
+            String line;
+            long lineNumber = 0;
+            while ((line = in.readLine()) != null) {
+                lineNumber++;
+                if (line.isBlank() || line.startsWith("#")) {
+                    continue;
+                }
+                answer.setLength(0);
+                CommandRunner.execute(database, CommandRunner.parseCommand(line, lineNumber), answer);
+                out.write(Integer.toString(countLines(answer)));
+                out.write('\n');
+                out.append(answer);
+                if (!in.ready()) {
+                    out.flush();
+                }
+            }
+            out.flush();
+        } catch (IOException e) {
+            // The client went away; nothing to answer
+        } catch (RuntimeException e) {
+            if (!closed) {
+                System.err.println("ERROR: Connection failed: " + e);
+            }
+        } finally {
+            connections.remove(socket);
+            closeQuietly(socket);
+        }
+    }
+
+    // Helper Method: Counts the lines of an answer
+    private static int countLines(CharSequence text) {
+        int lines = 0;
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) == '\n') {
+                lines++;
+            }
+        }
+        return lines;
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // Nothing left to release
+        }
+    }
+
+    // Method: Stops the server
+    //--------------------------------------------------------
+    // Summary: Stops accepting and closes every open connection, which
+    // ends their threads. Does not close the database.
+    // Precondition: None.
+    // Postcondition: The port is released.
+    //--------------------------------------------------------
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        serverSocket.close();
+        for (Socket socket : connections) {
+            closeQuietly(socket);
+        }
+    }
+}
@@ -0,0 +1,657 @@
+//-----------------------------------------------------
+// Title: Hospital Store Implementation
+// Author: Ege Yavuz
+// ID: 14872032366
+// Section: 1
+// Assignment: 3
+// Description: Persists a HospitalDatabase in a directory as a compact
+// binary snapshot plus a write-ahead log of the mutations made since the
+// snapshot. Log records are buffered, and every writer waits in sync()
+// until its records are fsynced; writers queued behind an fsync in
+// progress are written together with one fsync (group commit). A
+// background thread also flushes every few milliseconds and starts
+// checkpoints. Snapshots are read back through a memory-mapped buffer on
+// startup.
+//-----------------------------------------------------
+
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+class HospitalStore implements Closeable {
+
+    // File layout
+    private static final String SNAPSHOT_FILE = "snapshot.bin";
+    private static final String SNAPSHOT_TEMP_FILE = "snapshot.tmp";
+    private static final String LOG_PREFIX = "wal-";
+    private static final String LOG_SUFFIX = ".log";
+    private static final int SNAPSHOT_MAGIC = 0x48444253; // "HDBS"
+    private static final int SNAPSHOT_VERSION = 2; // Version 1 had one visit per patient
+
+    // Log record types
+    private static final byte ADD_PATIENT = 1;
+    private static final byte REMOVE_PATIENT = 2;
+    private static final byte ADD_MEMBER = 3;
+    private static final byte REMOVE_MEMBER = 4;
+
+    // Every log record starts with its payload length and checksum
+    private static final int RECORD_HEADER_BYTES = 8;
+
+    // Interface for applying replayed log records
+    //--------------------------------------------------------
+    // Summary: Receives the mutations found in the log, in the order they
+    // were originally made.
+    //--------------------------------------------------------
+    interface LogReplayer {
+        void addPatient(String patientName, String doctorName, int visitDate);
+
+        void removePatient(String patientName);
+
+        void addMember(String patientName, HospitalDatabase.StaffMember member);
+
+        void removeMember(String patientName, String memberName);
+    }
+
+    // Interface for receiving the contents of a snapshot
+    //--------------------------------------------------------
+    // Summary: Receives the doctor dictionary in id order, then each
+    // patient in name order, as each of their visits oldest first,
+    // followed by their care team members in name order. Visits refer to
+    // their doctor by dictionary id.
+    //--------------------------------------------------------
+    interface SnapshotReader {
+        void doctor(String doctorName);
+
+        void patient(String patientName, int doctorId, int visitDate);
+
+        void member(String patientName, HospitalDatabase.StaffMember member);
+    }
+
+    // Inner class to expose a byte stream's buffer without copying it
+    private static final class ByteBuilder extends ByteArrayOutputStream {
+        ByteBuilder(int size) {
+            super(size);
+        }
+
+        byte[] array() {
+            return buf;
+        }
+    }
+
+    private final Path directory;
+    private final long flushIntervalMillis;
+    private final long checkpointBytes;
+
+    // Log records waiting for the flusher; guarded by this
+    private ByteBuilder pending = new ByteBuilder(1 << 16);
+    private ByteBuilder spare = new ByteBuilder(1 << 16);
+    private final ByteBuilder recordBytes = new ByteBuilder(256);
+    private final DataOutputStream record = new DataOutputStream(recordBytes);
+    private final byte[] recordHeader = new byte[RECORD_HEADER_BYTES];
+    private final CRC32 crc = new CRC32();
+    private IOException failure;
+    private long replayedRecords;
+
+    // Current log file; guarded by flushLock
+    private final Object flushLock = new Object();
+    private FileChannel log;
+    private long logGeneration;
+    private long logBytes;
+
+    // Held while a snapshot is written, so only one is written at a time
+    private final ReentrantLock snapshotLock = new ReentrantLock();
+
+    private Thread flusher;
+    private Runnable checkpointTask;
+    private volatile boolean closed;
+
+    // Constructor: Opens a store directory
+    //--------------------------------------------------------
+    // Summary: Creates the directory if needed. Nothing is read or
+    // logged until readSnapshot, replayLog and startLogging are called.
+    // flushIntervalMillis bounds how long a mutation may sit in memory
+    // before it is fsynced; once the log grows past checkpointBytes the
+    // checkpoint task is run to write a new snapshot.
+    // Precondition: The directory must be writable and the flush interval
+    // positive; a zero interval would keep the flusher fsyncing nonstop.
+    // Postcondition: The store is ready to load.
+    //--------------------------------------------------------
+
+    HospitalStore(Path directory, long flushIntervalMillis, long checkpointBytes) throws IOException {
+        if (flushIntervalMillis <= 0) {
+            throw new IllegalArgumentException("Invalid flush interval: " + flushIntervalMillis);
+        }
+        this.directory = directory;
+        this.flushIntervalMillis = flushIntervalMillis;
+        this.checkpointBytes = checkpointBytes;
+        Files.createDirectories(directory);
+    }
+
+    // Method: Loads the latest snapshot
+    //--------------------------------------------------------
+    // Summary: Maps the snapshot file into memory and passes its contents
+    // to the reader. Doctor names are stored once in a dictionary and
+    // referenced by index from each visit. Version 1 snapshots, with a
+    // single visit per patient, are still read.
+    // Precondition: None.
+    // Postcondition: Returns the first log generation not covered by the
+    // snapshot, or -1 if there is no snapshot.
+    //--------------------------------------------------------
+
+    long readSnapshot(SnapshotReader reader) throws IOException {
+        Path file = directory.resolve(SNAPSHOT_FILE);
+        if (!Files.exists(file)) {
+            return -1;
+        }
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            int version = (buffer.getInt() == SNAPSHOT_MAGIC) ? buffer.getInt() : -1;
+            if (version != 1 && version != SNAPSHOT_VERSION) {
+                throw new IOException(file + " is not a hospital snapshot");
+            }
+            long generation = buffer.getLong();
+
+            byte[] scratch = new byte[256];
+            int doctorCount = buffer.getInt();
+            for (int i = 0; i < doctorCount; i++) {
+                reader.doctor(readString(buffer, scratch));
+            }
+
+            int patientCount = buffer.getInt();
+            for (int i = 0; i < patientCount; i++) {
+                String name = readString(buffer, scratch);
+                int visitCount = (version == 1) ? 1 : buffer.getInt();
+                for (int j = 0; j < visitCount; j++) {
+                    int doctorId = buffer.getInt();
+                    if (doctorId < 0 || doctorId >= doctorCount) {
+                        throw new IOException(file + " refers to unknown doctor " + doctorId);
+                    }
+                    reader.patient(name, doctorId, buffer.getInt());
+                }
+
+                int teamSize = buffer.getInt();
+                for (int j = 0; j < teamSize; j++) {
+                    String memberName = readString(buffer, scratch);
+                    String role = readString(buffer, scratch);
+                    reader.member(name, new HospitalDatabase.StaffMember(memberName, role));
+                }
+            }
+            return generation;
+        } catch (BufferUnderflowException e) {
+            throw new IOException(file + " is truncated", e);
+        }
+    }
+
+    // Method: Replays the log written since a snapshot
+    //--------------------------------------------------------
+    // Summary: Applies every intact record from the log files of the
+    // given generation onwards. A torn or corrupt record marks the end of
+    // what was durably written; it and everything after it are cut off.
+    // Precondition: fromGeneration came from readSnapshot, or is -1.
+    // Postcondition: Returns the number of records replayed. Logging will
+    // continue in the newest log file.
+    //--------------------------------------------------------
+
+    long replayLog(long fromGeneration, LogReplayer replayer) throws IOException {
+        TreeMap<Long, Path> logs = listLogs();
+        replayedRecords = 0;
+        logGeneration = Math.max(fromGeneration, 0);
+
+        for (Map.Entry<Long, Path> entry : logs.entrySet()) {
+            if (entry.getKey() < fromGeneration) {
+                continue;
+            }
+            logGeneration = entry.getKey();
+            Path file = entry.getValue();
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                int end = replayRecords(buffer, replayer);
+                if (end < channel.size()) {
+                    System.out.println("ERROR: Discarding " + (channel.size() - end) + " bytes of torn log in " + file);
+                    channel.truncate(end);
+                    channel.force(true);
+                }
+            }
+        }
+        return replayedRecords;
+    }
+
+    // Helper Method: Replays the records of one log file
+    //--------------------------------------------------------
+    // Summary: Reads records until the end of the buffer or the first
+    // record whose length or checksum does not hold up.
+    // Precondition: The buffer holds a whole log file.
+    // Postcondition: Returns the offset just past the last good record.
+    //--------------------------------------------------------
+
+    private int replayRecords(ByteBuffer buffer, LogReplayer replayer) {
+        byte[] scratch = new byte[256];
+        CRC32 check = new CRC32();
+        int end = 0;
+
+        while (buffer.remaining() >= RECORD_HEADER_BYTES) {
+            int length = buffer.getInt();
+            int checksum = buffer.getInt();
+            if (length <= 0 || length > buffer.remaining()) {
+                break;
+            }
+            ByteBuffer payload = buffer.slice(buffer.position(), length);
+            check.reset();
+            check.update(payload.duplicate());
+            if ((int) check.getValue() != checksum) {
+                break;
+            }
+
+            switch (payload.get()) {
+                case ADD_PATIENT: {
+                    String name = readString(payload, scratch);
+                    String doctorName = readString(payload, scratch);
+                    replayer.addPatient(name, doctorName, payload.getInt());
+                    break;
+                }
+                case REMOVE_PATIENT:
+                    replayer.removePatient(readString(payload, scratch));
+                    break;
+                case ADD_MEMBER: {
+                    String patientName = readString(payload, scratch);
+                    String memberName = readString(payload, scratch);
+                    String role = readString(payload, scratch);
+                    replayer.addMember(patientName, new HospitalDatabase.StaffMember(memberName, role));
+                    break;
+                }
+                case REMOVE_MEMBER: {
+                    String patientName = readString(payload, scratch);
+                    replayer.removeMember(patientName, readString(payload, scratch));
+                    break;
+                }
+                default:
+                    return end; // Unknown record: treat as corrupt
+            }
+            buffer.position(buffer.position() + length);
+            end = buffer.position();
+            replayedRecords++;
+        }
+        return end;
+    }
+
+    // Method: Starts appending to the log
+    //--------------------------------------------------------
+    // Summary: Opens the newest log file for appending and starts the
+    // background flusher. checkpointTask is run by the flusher whenever
+    // the log outgrows the checkpoint threshold.
+    // Precondition: replayLog has been called.
+    // Postcondition: log* calls are persisted in batches.
+    //--------------------------------------------------------
+
+    void startLogging(Runnable checkpointTask) throws IOException {
+        this.checkpointTask = checkpointTask;
+        synchronized (flushLock) {
+            log = openLog(logGeneration);
+            logBytes = log.size();
+        }
+
+        flusher = new Thread(this::runFlusher, "hospital-wal-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    // Methods: Append one mutation to the log
+    //--------------------------------------------------------
+    // Summary: Encode the mutation into the pending batch. They return
+    // without waiting for the disk, so the caller can release the write
+    // lock first and then wait in sync(), which writes and fsyncs the
+    // whole batch at once.
+    // Precondition: The caller holds the database's write lock, so
+    // records are logged in the order they were applied.
+    // Postcondition: The record will be durable after the next flush.
+    //--------------------------------------------------------
+
+    synchronized void logAddPatient(HospitalDatabase.Patient patient) {
+        try {
+            startRecord(ADD_PATIENT);
+            writeString(record, patient.getName());
+            writeString(record, patient.getDoctorName());
+            record.writeInt(patient.visitDate());
+            finishRecord();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    synchronized void logRemovePatient(String patientName) {
+        try {
+            startRecord(REMOVE_PATIENT);
+            writeString(record, patientName);
+            finishRecord();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    synchronized void logAddMember(String patientName, HospitalDatabase.StaffMember member) {
+        try {
+            startRecord(ADD_MEMBER);
+            writeString(record, patientName);
+            writeString(record, member.getName());
+            writeString(record, member.getRole());
+            finishRecord();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    synchronized void logRemoveMember(String patientName, String memberName) {
+        try {
+            startRecord(REMOVE_MEMBER);
+            writeString(record, patientName);
+            writeString(record, memberName);
+            finishRecord();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void startRecord(byte type) throws IOException {
+        if (failure != null) {
+            throw new IOException("Write-ahead log failed earlier", failure);
+        }
+        if (closed) {
+            throw new IOException("Store is closed");
+        }
+        recordBytes.reset();
+        record.writeByte(type);
+    }
+
+    private void finishRecord() {
+        crc.reset();
+        crc.update(recordBytes.array(), 0, recordBytes.size());
+        ByteBuffer.wrap(recordHeader).putInt(recordBytes.size()).putInt((int) crc.getValue());
+        pending.write(recordHeader, 0, RECORD_HEADER_BYTES);
+        pending.write(recordBytes.array(), 0, recordBytes.size());
+    }
+
+    // Method: Makes every logged mutation durable
+    //--------------------------------------------------------
+    // Summary: Writes the pending batch and fsyncs the log, without
+    // waiting for the flusher's next turn. A caller arriving while
+    // another fsync is in progress waits for it, then writes everything
+    // logged in the meantime with one more fsync; if someone else got
+    // there first, nothing is left and it returns at once.
+    // Precondition: None.
+    // Postcondition: Every mutation logged so far survives a crash.
+    //--------------------------------------------------------
+
+    void sync() throws IOException {
+        synchronized (flushLock) {
+            ByteBuilder batch;
+            synchronized (this) {
+                if (failure != null) {
+                    throw new IOException("Write-ahead log failed earlier", failure);
+                }
+                if (pending.size() == 0 || log == null) {
+                    return;
+                }
+                batch = pending;
+                pending = spare;
+                spare = batch;
+            }
+
+            try {
+                ByteBuffer bytes = ByteBuffer.wrap(batch.array(), 0, batch.size());
+                while (bytes.hasRemaining()) {
+                    log.write(bytes);
+                }
+                log.force(false);
+                logBytes += batch.size();
+            } catch (IOException e) {
+                synchronized (this) {
+                    failure = e;
+                }
+                throw e;
+            } finally {
+                batch.reset();
+            }
+        }
+    }
+
+    // Helper Method: Body of the background flusher thread
+    //--------------------------------------------------------
+    // Summary: Every flush interval, writes and fsyncs whatever has been
+    // logged since the last batch, then starts a checkpoint if the log
+    // has grown too large and no snapshot is being written already. The
+    // thread parks between batches and close unparks it; it is never
+    // interrupted, as an interrupt during a write would close the log.
+    // Precondition: Runs on the flusher thread only.
+    // Postcondition: Exits once the store is closed.
+    //--------------------------------------------------------
+
+    private void runFlusher() {
+        while (!closed) {
+            LockSupport.parkNanos(flushIntervalMillis * 1_000_000L);
+            if (closed) {
+                return; // close flushes what is left
+            }
+            try {
+                sync();
+                boolean due;
+                synchronized (flushLock) {
+                    due = logBytes >= checkpointBytes;
+                }
+                if (due && checkpointTask != null && !snapshotLock.isLocked()) {
+                    checkpointTask.run();
+                }
+            } catch (IOException | UncheckedIOException e) {
+                System.out.println("ERROR: Write-ahead log flush failed: " + e.getMessage());
+            }
+        }
+    }
+
+    // Method: Writes a snapshot and starts a new log generation
+    //--------------------------------------------------------
+    // Summary: Flushes the log, switches logging to a fresh file, writes
+    // the snapshot to a temporary file and atomically renames it into
+    // place, then deletes the log files it covers. A crash at any point
+    // leaves either the old snapshot with all its logs, or the new one.
+    // Snapshots are written one at a time: a second caller waits until
+    // the first has renamed its file into place.
+    // Precondition: The caller holds the database's read lock, so no
+    // mutation is logged while the snapshot is written.
+    // Postcondition: The snapshot reflects the database's contents.
+    //--------------------------------------------------------
+
+    void writeSnapshot(BinarySearchTree<HospitalDatabase.Patient> patients,
+                       Map<String, BinarySearchTree<HospitalDatabase.StaffMember>> careTeams,
+                       List<String> doctors) throws IOException {
+        snapshotLock.lock();
+        try {
+            writeSnapshotFile(patients, careTeams, doctors);
+        } finally {
+            snapshotLock.unlock();
+        }
+    }
+
+    // Helper Method: Body of writeSnapshot
+    //--------------------------------------------------------
+    // Summary: Flushes, switches the log generation, writes and renames
+    // the snapshot and deletes the covered logs.
+    // Precondition: The caller holds snapshotLock.
+    // Postcondition: The snapshot reflects the database's contents.
+    //--------------------------------------------------------
+
+    private void writeSnapshotFile(BinarySearchTree<HospitalDatabase.Patient> patients,
+                                   Map<String, BinarySearchTree<HospitalDatabase.StaffMember>> careTeams,
+                                   List<String> doctors) throws IOException {
+        sync();
+        long generation;
+        synchronized (flushLock) {
+            if (log != null) {
+                generation = logGeneration + 1;
+                FileChannel next = openLog(generation);
+                log.close();
+                log = next;
+                logGeneration = generation;
+                logBytes = 0;
+            } else {
+                generation = logGeneration;
+            }
+        }
+
+        Path temp = directory.resolve(SNAPSHOT_TEMP_FILE);
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16));
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(SNAPSHOT_VERSION);
+            out.writeLong(generation);
+
+            // The database's dictionary ids are written as they are
+            out.writeInt(doctors.size());
+            for (String doctor : doctors) {
+                writeString(out, doctor);
+            }
+
+            out.writeInt(patients.size());
+            patients.inOrderTraversal(new Consumer<HospitalDatabase.Patient>() {
+                @Override
+                public void accept(HospitalDatabase.Patient patient) {
+                    try {
+                        writeString(out, patient.getName());
+                        out.writeInt(patient.visitCount());
+                        for (int i = 0; i < patient.visitCount(); i++) {
+                            out.writeInt(patient.doctorId(i));
+                            out.writeInt(patient.visitDate(i));
+                        }
+
+                        List<HospitalDatabase.StaffMember> team = new ArrayList<>();
+                        BinarySearchTree<HospitalDatabase.StaffMember> careTeam = careTeams.get(patient.getName());
+                        if (careTeam != null) {
+                            careTeam.inOrderTraversal(team::add);
+                        }
+                        out.writeInt(team.size());
+                        for (HospitalDatabase.StaffMember member : team) {
+                            writeString(out, member.getName());
+                            writeString(out, member.getRole());
+                        }
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+            });
+            out.flush();
+            channel.force(true);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+
+        Files.move(temp, directory.resolve(SNAPSHOT_FILE), StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+        syncDirectory();
+
+        for (Map.Entry<Long, Path> entry : listLogs().entrySet()) {
+            if (entry.getKey() < generation) {
+                Files.deleteIfExists(entry.getValue());
+            }
+        }
+    }
+
+    // Method: Stops logging and releases the log file
+    //--------------------------------------------------------
+    // Summary: Stops the flusher, then flushes and fsyncs what is left.
+    // The flusher is woken rather than interrupted, and finishes the
+    // batch or checkpoint it is in the middle of before it exits.
+    // Precondition: No further mutations will be logged.
+    // Postcondition: Every logged mutation is durable.
+    //--------------------------------------------------------
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        if (flusher != null) {
+            LockSupport.unpark(flusher);
+            try {
+                flusher.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        sync();
+        synchronized (flushLock) {
+            if (log != null) {
+                log.close();
+                log = null;
+            }
+        }
+    }
+
+    // Helper Method: Lists the log files in generation order
+    private TreeMap<Long, Path> listLogs() throws IOException {
+        TreeMap<Long, Path> logs = new TreeMap<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, LOG_PREFIX + "*" + LOG_SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    logs.put(Long.parseLong(name.substring(LOG_PREFIX.length(), name.length() - LOG_SUFFIX.length())), file);
+                } catch (NumberFormatException e) {
+                    // Not one of ours
+                }
+            }
+        }
+        return logs;
+    }
+
+    // Helper Method: Opens a log file for appending
+    private FileChannel openLog(long generation) throws IOException {
+        FileChannel channel = FileChannel.open(directory.resolve(LOG_PREFIX + generation + LOG_SUFFIX),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        channel.position(channel.size());
+        return channel;
+    }
+
+    // Helper Method: Makes a rename in the directory durable
+    private void syncDirectory() {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // Not supported on every platform; the rename is still atomic
+        }
+    }
+
+    // Helper Method: Writes a length-prefixed UTF-8 string
+    private static void writeString(DataOutputStream out, String text) throws IOException {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    // Helper Method: Reads a length-prefixed UTF-8 string
+    private static String readString(ByteBuffer buffer, byte[] scratch) {
+        int length = buffer.getInt();
+        byte[] bytes = (length <= scratch.length) ? scratch : new byte[length];
+        buffer.get(bytes, 0, length);
+        return new String(bytes, 0, length, StandardCharsets.UTF_8);
+    }
+}
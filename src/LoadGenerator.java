@@ -0,0 +1,236 @@
+//-----------------------------------------------------
+// Title: Load Generator
+// Author: Ege Yavuz
+// ID: 14872032366
+// Section: 1
+// Assignment: 3
+// Description: Drives a running HospitalServer with many concurrent
+// clients and reports requests per second and latency percentiles.
+// The server is first loaded with patients over one pipelined
+// connection. Then every client, each on its own virtual thread, sends
+// bursts of pipelined commands and waits for all their answers: 90%
+// SHOW_PATIENT, 5% ADD_PATIENT readmitting an existing patient and 5%
+// ADD_MEMBER. A command's latency runs from sending its burst to
+// receiving its answer. The first fifth of the run is warmup and is not
+// counted.
+//
+// Usage: java LoadGenerator [port [clients [seconds [pipelineDepth [patients]]]]]
+// Defaults: port 7070, 1000 clients, 10 seconds, depth 1, 100000 patients.
+// Needs JDK 21 or newer for virtual threads.
+//-----------------------------------------------------
+
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+public class LoadGenerator {
+
+    private static final int BUFFER_SIZE = 8192;
+    private static final int DOCTORS = 100;
+
+    // Inner class holding one client's connection and results
+    //--------------------------------------------------------
+    // Summary: Only the client's own thread touches it until the run is
+    // over, so the latencies need no synchronization.
+    //--------------------------------------------------------
+    private static final class Client {
+        private final Socket socket;
+        private final BufferedReader in;
+        private final Writer out;
+        private final Random random;
+        private long[] latencies = new long[1024];
+        private int count;
+
+        Client(int port, long seed) throws IOException {
+            socket = new Socket(InetAddress.getLoopbackAddress(), port);
+            socket.setTcpNoDelay(true);
+            in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8),
+                    BUFFER_SIZE);
+            out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8),
+                    BUFFER_SIZE);
+            random = new Random(seed);
+        }
+
+        void record(long nanos) {
+            if (count == latencies.length) {
+                latencies = Arrays.copyOf(latencies, count * 2);
+            }
+            latencies[count++] = nanos;
+        }
+
+        // Reads one answer, returning false if it reports an error
+        boolean readAnswer() throws IOException {
+            String header = in.readLine();
+            if (header == null) {
+                throw new IOException("Server closed the connection");
+            }
+            boolean ok = true;
+            for (int lines = Integer.parseInt(header); lines > 0; lines--) {
+                String line = in.readLine();
+                if (line == null) {
+                    throw new IOException("Server closed the connection");
+                }
+                ok &= !line.startsWith("ERROR: Line");
+            }
+            return ok;
+        }
+    }
+
+    // Method: Runs the load test
+    //--------------------------------------------------------
+    // Summary: Parses the arguments, loads the server, connects every
+    // client, runs them together and prints the report.
+    // Precondition: A HospitalServer is listening on the port.
+    // Postcondition: The report is printed.
+    //--------------------------------------------------------
+
+    public static void main(String[] args) throws Exception {
+        int port = (args.length > 0) ? Integer.parseInt(args[0]) : 7070;
+        int clients = (args.length > 1) ? Integer.parseInt(args[1]) : 1000;
+        int seconds = (args.length > 2) ? Integer.parseInt(args[2]) : 10;
+        int depth = (args.length > 3) ? Integer.parseInt(args[3]) : 1;
+        int patients = (args.length > 4) ? Integer.parseInt(args[4]) : 100_000;
+
+        preload(port, patients);
+
+        List<Client> connected = new ArrayList<>(clients);
+        for (int i = 0; i < clients; i++) {
+            connected.add(new Client(port, i));
+        }
+
+        long start = System.nanoTime() + 100_000_000L; // Lets every thread reach the start line
+        long warmupEnd = start + seconds * 1_000_000_000L / 5;
+        long end = start + seconds * 1_000_000_000L;
+        LongAdder errors = new LongAdder();
+        CountDownLatch finished = new CountDownLatch(clients);
+        for (Client client : connected) {
+            Thread.ofVirtual().start(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        drive(client, depth, patients, start, warmupEnd, end, errors);
+                    } catch (IOException e) {
+                        errors.increment();
+                        System.err.println("ERROR: Client failed: " + e.getMessage());
+                    } finally {
+                        finished.countDown();
+                    }
+                }
+            });
+        }
+        finished.await();
+
+        long total = 0;
+        for (Client client : connected) {
+            total += client.count;
+            client.socket.close();
+        }
+        long[] all = new long[(int) total];
+        int next = 0;
+        for (Client client : connected) {
+            System.arraycopy(client.latencies, 0, all, next, client.count);
+            next += client.count;
+        }
+        Arrays.sort(all);
+        double measured = (end - warmupEnd) / 1e9;
+        System.out.printf("%d clients, pipeline depth %d, %d patients, %.1f s measured%n",
+                clients, depth, patients, measured);
+        System.out.printf("%.0f requests/s, errors %d%n", total / measured, errors.sum());
+        if (total > 0) {
+            System.out.printf("latency us: p50 %.1f, p99 %.1f, p99.9 %.1f, max %.1f%n",
+                    percentile(all, 0.50) / 1e3, percentile(all, 0.99) / 1e3,
+                    percentile(all, 0.999) / 1e3, all[all.length - 1] / 1e3);
+        }
+    }
+
+    // Helper Method: Adds the patients over one pipelined connection
+    private static void preload(int port, int patients) throws IOException {
+        Client loader = new Client(port, -1);
+        int sent = 0;
+        int answered = 0;
+        while (answered < patients) {
+            // Keeps a bounded number of commands in flight
+            while (sent < patients && sent - answered < 1000) {
+                loader.out.write(addPatient(sent, loader.random));
+                sent++;
+            }
+            loader.out.flush();
+            while (answered < sent) {
+                loader.readAnswer();
+                answered++;
+            }
+        }
+        loader.socket.close();
+    }
+
+    // Helper Method: Runs one client until the end of the test
+    //--------------------------------------------------------
+    // Summary: Sends bursts of depth commands and reads their answers,
+    // recording each command's latency once the warmup is over.
+    // Precondition: Runs on the client's own thread.
+    // Postcondition: The client's latencies are recorded.
+    //--------------------------------------------------------
+
+    private static void drive(Client client, int depth, int patients, long start, long warmupEnd, long end,
+                              LongAdder errors) throws IOException {
+        long[] answeredAt = new long[depth];
+        for (long now = System.nanoTime(); now < start; now = System.nanoTime()) {
+            LockSupport.parkNanos(start - now);
+        }
+        while (true) {
+            long sent = System.nanoTime();
+            if (sent >= end) {
+                return;
+            }
+            for (int i = 0; i < depth; i++) {
+                int dice = client.random.nextInt(100);
+                int patient = client.random.nextInt(patients);
+                if (dice < 90) {
+                    client.out.write("SHOW_PATIENT,Patient " + patient + "\n");
+                } else if (dice < 95) {
+                    client.out.write(addPatient(patient, client.random));
+                } else {
+                    client.out.write("ADD_MEMBER,Patient " + patient + ",Staff " + client.random.nextInt(1000)
+                            + ",Nurse\n");
+                }
+            }
+            client.out.flush();
+            for (int i = 0; i < depth; i++) {
+                if (!client.readAnswer()) {
+                    errors.increment();
+                }
+                answeredAt[i] = System.nanoTime();
+            }
+            if (sent >= warmupEnd) {
+                for (int i = 0; i < depth; i++) {
+                    client.record(answeredAt[i] - sent);
+                }
+            }
+        }
+    }
+
+    // Helper Method: Builds an ADD_PATIENT command for a patient number
+    private static String addPatient(int patient, Random random) {
+        int date = random.nextInt(28 * 12 * 25);
+        return "ADD_PATIENT,Patient " + patient + ",Doctor " + (patient % DOCTORS) + "," + (1 + date % 28) + ","
+                + (1 + date / 28 % 12) + "," + (2000 + date / (28 * 12)) + "\n";
+    }
+
+    private static long percentile(long[] sorted, double fraction) {
+        return sorted[Math.min(sorted.length - 1, (int) (sorted.length * fraction))];
+    }
+}
@@ -0,0 +1,530 @@
+//-----------------------------------------------------
+// Title: Recovery Test
+// Author: Ege Yavuz
+// ID: 14872032366
+// Section: 1
+// Assignment: 3
+// Description: Checks that a persistent HospitalDatabase comes back
+// after a restart or a crash exactly as a purely in-memory database fed
+// the same mutations. Each scenario works in a fresh temporary directory
+// and builds the files a crash at that point would leave behind:
+// - close and reopen, with and without snapshots in between;
+// - a log whose last record is torn, fails its checksum, or is followed
+//   by junk, which must be cut off while everything before it survives;
+// - a checkpoint that crashed after switching to a new log generation
+//   but before renaming its snapshot into place, and one that crashed
+//   after the rename but before deleting the logs the snapshot covers;
+// - a version 1 snapshot, with one visit per patient, and a truncated
+//   snapshot, which must be refused.
+// The store reports the records it cuts off as ERROR lines; they are
+// expected in the scenarios that damage the log.
+//
+// Usage: java RecoveryTest [mutations]
+// Defaults: 2000 mutations per batch of history. Exits with status 1 on
+// the first scenario that fails.
+//-----------------------------------------------------
+
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+public class RecoveryTest {
+
+    // The store's file layout
+    private static final String SNAPSHOT_FILE = "snapshot.bin";
+    private static final String SNAPSHOT_TEMP_FILE = "snapshot.tmp";
+    private static final String LOG_PREFIX = "wal-";
+    private static final String LOG_SUFFIX = ".log";
+    private static final int SNAPSHOT_MAGIC = 0x48444253;
+
+    private static final int PATIENTS = 300;
+    private static final int DOCTORS = 9;
+    private static final int MEMBERS = 20;
+    private static final int BATCH_SIZE = 10;
+    private static final long FLUSH_INTERVAL_MILLIS = 5;
+    private static final long NO_CHECKPOINT = Long.MAX_VALUE;
+
+    private final int mutations;
+    private final Random random = new Random(42);
+
+    private RecoveryTest(int mutations) {
+        this.mutations = mutations;
+    }
+
+    // Interface for one recovery scenario
+    private interface Scenario {
+        void run(Path directory) throws IOException;
+    }
+
+    // Method: Runs every scenario
+    public static void main(String[] args) throws IOException {
+        int mutations = (args.length > 0) ? Integer.parseInt(args[0]) : 2000;
+        if (mutations < BATCH_SIZE) {
+            throw new IllegalArgumentException("Need at least " + BATCH_SIZE + " mutations");
+        }
+
+        RecoveryTest test = new RecoveryTest(mutations);
+        List<String> names = new ArrayList<>();
+        List<Scenario> scenarios = new ArrayList<>();
+        names.add("close and reopen");
+        scenarios.add(test::closeAndReopen);
+        names.add("snapshots and log tail");
+        scenarios.add(test::snapshotsAndLogTail);
+        names.add("torn last record");
+        scenarios.add(directory -> test.damagedTail(directory, Damage.TORN));
+        names.add("corrupt last record");
+        scenarios.add(directory -> test.damagedTail(directory, Damage.CORRUPT));
+        names.add("junk after last record");
+        scenarios.add(directory -> test.damagedTail(directory, Damage.JUNK));
+        names.add("crash before snapshot rename");
+        scenarios.add(directory -> test.interruptedCheckpoint(directory, false));
+        names.add("crash after snapshot rename");
+        scenarios.add(directory -> test.interruptedCheckpoint(directory, true));
+        names.add("version 1 snapshot");
+        scenarios.add(test::versionOneSnapshot);
+        names.add("truncated snapshot");
+        scenarios.add(test::truncatedSnapshot);
+
+        for (int i = 0; i < scenarios.size(); i++) {
+            Path directory = Files.createTempDirectory("hospital-recovery");
+            String failure = null;
+            try {
+                scenarios.get(i).run(directory);
+            } catch (AssertionError | IOException | RuntimeException e) {
+                failure = e.toString();
+            } finally {
+                deleteDirectory(directory);
+            }
+            System.out.printf("%-30s %s%n", names.get(i) + ":", (failure == null) ? "OK" : "FAILED");
+            if (failure != null) {
+                System.out.println("ERROR: " + failure);
+                System.exit(1);
+            }
+        }
+    }
+
+    // Helper Method: Checks plain restarts
+    //--------------------------------------------------------
+    // Summary: Closes and reopens twice, mutating in between, without
+    // any snapshot, so everything comes back from the log.
+    // Precondition: The directory is empty.
+    // Postcondition: Throws AssertionError if a reopen differs.
+    //--------------------------------------------------------
+
+    private void closeAndReopen(Path directory) throws IOException {
+        HospitalDatabase expected = new HospitalDatabase();
+        for (int round = 0; round < 2; round++) {
+            List<HospitalDatabase.Mutation> history = mutations(mutations);
+            try (HospitalDatabase database = open(directory, NO_CHECKPOINT)) {
+                apply(database, history);
+            }
+            apply(expected, history);
+            checkReopened(directory, expected, "after round " + round);
+        }
+    }
+
+    // Helper Method: Checks restarts from a snapshot plus the log after it
+    //--------------------------------------------------------
+    // Summary: Mutates with a checkpoint threshold small enough that the
+    // flusher writes several snapshots, takes one more explicitly, then
+    // mutates again so the last part only exists in the log.
+    // Precondition: The directory is empty.
+    // Postcondition: Throws AssertionError if the reopen differs.
+    //--------------------------------------------------------
+
+    private void snapshotsAndLogTail(Path directory) throws IOException {
+        HospitalDatabase expected = new HospitalDatabase();
+        List<HospitalDatabase.Mutation> before = mutations(mutations);
+        List<HospitalDatabase.Mutation> after = mutations(mutations);
+        try (HospitalDatabase database = open(directory, 4096)) {
+            apply(database, before);
+            database.checkpoint();
+            apply(database, after);
+        }
+        apply(expected, before);
+        apply(expected, after);
+        check(Files.exists(directory.resolve(SNAPSHOT_FILE)), "no snapshot was written");
+        checkReopened(directory, expected, "");
+    }
+
+    // The ways damagedTail can damage the last record
+    private enum Damage { TORN, CORRUPT, JUNK }
+
+    // Helper Method: Checks recovery from a damaged end of the log
+    //--------------------------------------------------------
+    // Summary: Damages the last log record, as a crash during its write
+    // or a bad sector would, and expects everything before it back. Then
+    // mutates the recovered database and reopens it again, which only
+    // works if the damaged bytes were cut off rather than left between
+    // the old records and the new ones.
+    // Precondition: The directory is empty.
+    // Postcondition: Throws AssertionError if a reopen differs.
+    //--------------------------------------------------------
+
+    private void damagedTail(Path directory, Damage damage) throws IOException {
+        HospitalDatabase expected = new HospitalDatabase();
+        List<HospitalDatabase.Mutation> history = mutations(mutations);
+        HospitalDatabase.Mutation last = HospitalDatabase.Mutation.addPatient("Last", "Dr Last", 1, 2, 2003);
+        long intactBytes;
+        try (HospitalDatabase database = open(directory, NO_CHECKPOINT)) {
+            apply(database, history);
+            intactBytes = Files.size(newestLog(directory));
+            database.applyBatch(List.of(last), Writer.nullWriter());
+        }
+        apply(expected, history);
+
+        Path log = newestLog(directory);
+        long size = Files.size(log);
+        check(size > intactBytes, "the last record was not logged");
+        switch (damage) {
+            case TORN:
+                try (FileChannel channel = FileChannel.open(log, StandardOpenOption.WRITE)) {
+                    channel.truncate(size - 3);
+                }
+                break;
+            case CORRUPT:
+                byte[] bytes = Files.readAllBytes(log);
+                bytes[(int) intactBytes + 8 + 5] ^= 0x20; // Header, type and name length, then the name
+                Files.write(log, bytes);
+                break;
+            case JUNK:
+                apply(expected, List.of(last));
+                Files.write(log, new byte[] {0, 0, 0, 42, 1, 2, 3, 4, 5}, StandardOpenOption.APPEND);
+                break;
+        }
+        checkReopened(directory, expected, "after the damage");
+
+        List<HospitalDatabase.Mutation> more = mutations(BATCH_SIZE * 10);
+        try (HospitalDatabase database = open(directory, NO_CHECKPOINT)) {
+            apply(database, more);
+        }
+        apply(expected, more);
+        checkReopened(directory, expected, "after mutating the recovered database");
+    }
+
+    // Helper Method: Checks recovery from a checkpoint cut short
+    //--------------------------------------------------------
+    // Summary: A checkpoint flushes the log, switches logging to a new
+    // generation, writes snapshot.tmp, renames it over snapshot.bin and
+    // deletes the logs the new snapshot covers. The directory is copied
+    // before and after a checkpoint, and the copies are combined into
+    // the files a crash would leave: before the rename, the old snapshot
+    // with the old and the new log and a half-written snapshot.tmp;
+    // after it, the new snapshot with the old log not yet deleted, which
+    // must not be replayed again.
+    // Precondition: The directory is empty.
+    // Postcondition: Throws AssertionError if the recovered database
+    // differs.
+    //--------------------------------------------------------
+
+    private void interruptedCheckpoint(Path directory, boolean renamed) throws IOException {
+        HospitalDatabase expected = new HospitalDatabase();
+        List<HospitalDatabase.Mutation> first = mutations(mutations);
+        List<HospitalDatabase.Mutation> second = mutations(mutations);
+        List<HospitalDatabase.Mutation> third = mutations(mutations);
+        Path work = directory.resolve("work");
+        Path before = directory.resolve("before");
+        Path after = directory.resolve("after");
+        Path crashed = directory.resolve("crashed");
+
+        try (HospitalDatabase database = open(work, NO_CHECKPOINT)) {
+            apply(database, first);
+            database.checkpoint();
+            apply(database, second);
+        }
+        copyDirectory(work, before);
+        try (HospitalDatabase database = open(work, NO_CHECKPOINT)) {
+            database.checkpoint();
+            apply(database, third);
+        }
+        copyDirectory(work, after);
+        apply(expected, first);
+        apply(expected, second);
+        apply(expected, third);
+
+        List<Path> oldLogs = logs(before);
+        List<Path> newLogs = logs(after);
+        check(oldLogs.size() == 1 && newLogs.size() == 1 && !oldLogs.get(0).getFileName()
+                .equals(newLogs.get(0).getFileName()), "expected one log before and a newer one after");
+        if (renamed) {
+            copyDirectory(after, crashed);
+            Path stale = crashed.resolve(oldLogs.get(0).getFileName());
+            Files.copy(oldLogs.get(0), stale);
+            // Replaying the covered log again would change nothing, as the
+            // snapshot already holds its records, so one the snapshot lacks
+            // is added to it to show whether it is read at all
+            Files.write(stale, logOf(directory.resolve("ghost"),
+                    HospitalDatabase.Mutation.addPatient("Ghost", "Dr Ghost", 1, 1, 2000)), StandardOpenOption.APPEND);
+        } else {
+            copyDirectory(before, crashed);
+            Files.copy(newLogs.get(0), crashed.resolve(newLogs.get(0).getFileName()));
+            byte[] snapshot = Files.readAllBytes(after.resolve(SNAPSHOT_FILE));
+            Files.write(crashed.resolve(SNAPSHOT_TEMP_FILE), Arrays.copyOf(snapshot, snapshot.length / 2));
+        }
+        checkReopened(crashed, expected, "");
+    }
+
+    // Helper Method: Checks that version 1 snapshots are still read
+    //--------------------------------------------------------
+    // Summary: Writes a version 1 snapshot by hand, with one visit per
+    // patient and no visit counts, and expects the database it describes.
+    // Then mutates, checkpoints and reopens, so the contents also survive
+    // being written back as version 2.
+    // Precondition: The directory is empty.
+    // Postcondition: Throws AssertionError if a reopen differs.
+    //--------------------------------------------------------
+
+    private void versionOneSnapshot(Path directory) throws IOException {
+        HospitalDatabase expected = new HospitalDatabase();
+        List<HospitalDatabase.Mutation> seed = new ArrayList<>();
+        try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(directory.resolve(SNAPSHOT_FILE)))) {
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(1);
+            out.writeLong(0);
+            out.writeInt(DOCTORS);
+            for (int d = 0; d < DOCTORS; d++) {
+                writeString(out, doctorName(d));
+            }
+            out.writeInt(PATIENTS);
+            List<String> names = new ArrayList<>();
+            for (int p = 0; p < PATIENTS; p++) {
+                names.add(patientName(p));
+            }
+            names.sort(Comparator.naturalOrder());
+            for (String name : names) {
+                int doctor = random.nextInt(DOCTORS);
+                int day = 1 + random.nextInt(28);
+                int month = 1 + random.nextInt(12);
+                int year = 1990 + random.nextInt(30);
+                writeString(out, name);
+                out.writeInt(doctor);
+                out.writeInt((year << 9) | (month << 5) | day);
+                seed.add(HospitalDatabase.Mutation.addPatient(name, doctorName(doctor), day, month, year));
+
+                int teamSize = random.nextInt(4);
+                out.writeInt(teamSize);
+                for (int m = 0; m < teamSize; m++) { // "Staff 0" < "Staff 1" < ..., so in name order
+                    writeString(out, "Staff " + m);
+                    writeString(out, "Role " + m);
+                    seed.add(HospitalDatabase.Mutation.addMember(name, "Staff " + m, "Role " + m));
+                }
+            }
+        }
+        apply(expected, seed);
+        checkReopened(directory, expected, "from the version 1 snapshot");
+
+        List<HospitalDatabase.Mutation> more = mutations(mutations);
+        try (HospitalDatabase database = open(directory, NO_CHECKPOINT)) {
+            apply(database, more);
+            database.checkpoint();
+        }
+        apply(expected, more);
+        checkReopened(directory, expected, "after rewriting it as version 2");
+    }
+
+    // Helper Method: Checks that a truncated snapshot is refused
+    //--------------------------------------------------------
+    // Summary: A snapshot only ever appears whole, by rename, so a short
+    // one means damage; opening it must fail rather than load part of it.
+    // Precondition: The directory is empty.
+    // Postcondition: Throws AssertionError if the snapshot was accepted.
+    //--------------------------------------------------------
+
+    private void truncatedSnapshot(Path directory) throws IOException {
+        try (HospitalDatabase database = open(directory, NO_CHECKPOINT)) {
+            apply(database, mutations(mutations));
+            database.checkpoint();
+        }
+        Path snapshot = directory.resolve(SNAPSHOT_FILE);
+        try (FileChannel channel = FileChannel.open(snapshot, StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() / 2);
+        }
+        try (HospitalDatabase database = open(directory, NO_CHECKPOINT)) {
+            throw new AssertionError("a truncated snapshot was loaded with " + database.getPatientCount()
+                    + " patients");
+        } catch (IOException e) {
+            // Refused, as it should be
+        }
+    }
+
+    // Helper Method: Generates random mutations
+    //--------------------------------------------------------
+    // Summary: Mostly admissions and readmissions drawn from a small pool
+    // of patients, so many patients build up a visit history, mixed with
+    // removals and care team changes. Names use non-ASCII characters to
+    // cover the UTF-8 encoding.
+    // Precondition: count is not negative.
+    // Postcondition: Returns the mutations.
+    //--------------------------------------------------------
+
+    private List<HospitalDatabase.Mutation> mutations(int count) {
+        List<HospitalDatabase.Mutation> history = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            String patient = patientName(random.nextInt(PATIENTS));
+            int op = random.nextInt(10);
+            if (op < 5) {
+                history.add(HospitalDatabase.Mutation.addPatient(patient, doctorName(random.nextInt(DOCTORS)),
+                        1 + random.nextInt(28), 1 + random.nextInt(12), 1990 + random.nextInt(30)));
+            } else if (op < 6) {
+                history.add(HospitalDatabase.Mutation.removePatient(patient));
+            } else if (op < 9) {
+                history.add(HospitalDatabase.Mutation.addMember(patient, "Staff " + random.nextInt(MEMBERS),
+                        "Role " + random.nextInt(3)));
+            } else {
+                history.add(HospitalDatabase.Mutation.removeMember(patient, "Staff " + random.nextInt(MEMBERS)));
+            }
+        }
+        return history;
+    }
+
+    // Helper Method: Returns the log record of one mutation
+    private static byte[] logOf(Path directory, HospitalDatabase.Mutation mutation) throws IOException {
+        try (HospitalDatabase database = open(directory, NO_CHECKPOINT)) {
+            database.applyBatch(List.of(mutation), Writer.nullWriter());
+        }
+        return Files.readAllBytes(newestLog(directory));
+    }
+
+    // Helper Method: Applies mutations in small batches
+    private static void apply(HospitalDatabase database, List<HospitalDatabase.Mutation> history) {
+        for (int i = 0; i < history.size(); i += BATCH_SIZE) {
+            database.applyBatch(history.subList(i, Math.min(i + BATCH_SIZE, history.size())), Writer.nullWriter());
+        }
+    }
+
+    // Helper Method: Reopens a directory and compares it with the expected database
+    private static void checkReopened(Path directory, HospitalDatabase expected, String when) throws IOException {
+        try (HospitalDatabase database = open(directory, NO_CHECKPOINT)) {
+            String actual = describe(database);
+            String wanted = describe(expected);
+            if (!actual.equals(wanted)) {
+                throw new AssertionError("reopened database differs" + (when.isEmpty() ? "" : " " + when)
+                        + " at: " + firstDifference(actual, wanted));
+            }
+        }
+    }
+
+    // Helper Method: Renders everything a database holds
+    //--------------------------------------------------------
+    // Summary: Every patient in name order with each of their visits and
+    // their care team, followed by showAllPatients, which reads the
+    // visit-date index.
+    // Precondition: None.
+    // Postcondition: Returns the text; equal databases give equal text.
+    //--------------------------------------------------------
+
+    private static String describe(HospitalDatabase database) {
+        StringBuilder text = new StringBuilder();
+        for (HospitalDatabase.Patient patient : database.findPatients(patient -> true)) {
+            text.append(patient.getName());
+            for (HospitalDatabase.Patient visit : database.getVisits(patient.getName())) {
+                text.append(' ').append(visit.getVisitDay()).append('/').append(visit.getVisitMonth()).append('/')
+                        .append(visit.getVisitYear()).append(' ').append(visit.getDoctorName());
+            }
+            for (HospitalDatabase.StaffMember member : database.getCareTeam(patient.getName())) {
+                text.append(" | ").append(member.getName()).append(", ").append(member.getRole());
+            }
+            text.append('\n');
+        }
+        database.showAllPatients(text);
+        return text.toString();
+    }
+
+    // Helper Method: Quotes the line where two descriptions first differ
+    private static String firstDifference(String actual, String wanted) {
+        String[] actualLines = actual.split("\n", -1);
+        String[] wantedLines = wanted.split("\n", -1);
+        for (int i = 0; i < Math.max(actualLines.length, wantedLines.length); i++) {
+            String got = (i < actualLines.length) ? actualLines[i] : "<end>";
+            String want = (i < wantedLines.length) ? wantedLines[i] : "<end>";
+            if (!got.equals(want)) {
+                return "\"" + got + "\", expected \"" + want + "\"";
+            }
+        }
+        return "<nowhere>";
+    }
+
+    private static HospitalDatabase open(Path directory, long checkpointBytes) throws IOException {
+        return HospitalDatabase.open(directory, FLUSH_INTERVAL_MILLIS, checkpointBytes);
+    }
+
+    private static String patientName(int i) {
+        return "Patiënt " + i;
+    }
+
+    private static String doctorName(int i) {
+        return "Dr Müller " + i;
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+
+    // Helper Method: Lists a directory's log files
+    private static List<Path> logs(Path directory) throws IOException {
+        List<Path> logs = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, LOG_PREFIX + "*" + LOG_SUFFIX)) {
+            for (Path file : files) {
+                logs.add(file);
+            }
+        }
+        logs.sort(Comparator.comparingLong(RecoveryTest::generationOf));
+        return logs;
+    }
+
+    // Helper Method: Finds the log file mutations are appended to
+    private static Path newestLog(Path directory) throws IOException {
+        List<Path> logs = logs(directory);
+        check(!logs.isEmpty(), "no log in " + directory);
+        return logs.get(logs.size() - 1);
+    }
+
+    private static long generationOf(Path log) {
+        String name = log.getFileName().toString();
+        return Long.parseLong(name.substring(LOG_PREFIX.length(), name.length() - LOG_SUFFIX.length()));
+    }
+
+    // Helper Method: Writes a length-prefixed UTF-8 string, as the store does
+    private static void writeString(DataOutputStream out, String text) throws IOException {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static void copyDirectory(Path from, Path to) throws IOException {
+        Files.createDirectories(to);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(from)) {
+            for (Path file : files) {
+                Files.copy(file, to.resolve(file.getFileName()));
+            }
+        }
+    }
+
+    private static void deleteDirectory(Path directory) throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> {
+                try {
+                    Files.delete(file);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        }
+    }
+}
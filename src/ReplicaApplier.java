@@ -0,0 +1,139 @@
+//-----------------------------------------------------
+// Title: Replica Applier
+// Author: Ege Yavuz
+// ID: 14872032366
+// Section: 1
+// Assignment: 3
+// Description: Keeps a read-only copy of a HospitalDatabase current by
+// applying its change feed to a second database. Each batch of events
+// is applied as one HospitalDatabase.applyBatch call, so readers of the
+// replica see whole batches. The applier also measures replication lag:
+// the time from publishing an event on the primary to applying it on
+// the replica.
+//
+// Usage:
+//     ReplicaApplier applier = new ReplicaApplier(new HospitalDatabase());
+//     ChangeFeed.Subscription subscription = primary.subscribeChanges(applier);
+//     ... query applier.getReplica() ...
+//     subscription.close();
+//-----------------------------------------------------
+
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+public class ReplicaApplier implements ChangeFeed.Handler {
+
+    private final HospitalDatabase replica;
+    private final List<HospitalDatabase.Mutation> mutations = new ArrayList<>();
+    private final Writer discard = Writer.nullWriter(); // The replica's messages are of no interest
+
+    // Written only by the thread applying events, read by anyone
+    private volatile long appliedSequence = -1;
+    private volatile long eventsApplied;
+    private volatile long totalLagNanos;
+    private volatile long maxLagNanos;
+
+    // Constructor: Initializes an applier
+    //--------------------------------------------------------
+    // Summary: Events will be applied to the replica, which should not be
+    // modified by anyone else.
+    // Precondition: replica is not null.
+    // Postcondition: Ready to be passed to subscribeChanges.
+    //--------------------------------------------------------
+
+    public ReplicaApplier(HospitalDatabase replica) {
+        this.replica = replica;
+    }
+
+    // Method: Returns the replica, for queries
+    public HospitalDatabase getReplica() {
+        return replica;
+    }
+
+    // Method: Applies a batch of events to the replica
+    //--------------------------------------------------------
+    // Summary: Turns the events into mutations and applies them with one
+    // applyBatch call. A RESET event clears the replica first, after
+    // applying the mutations before it.
+    // Precondition: Events arrive in sequence order.
+    // Postcondition: The replica reflects every event in the batch.
+    //--------------------------------------------------------
+
+    @Override
+    public void onEvents(List<ChangeFeed.Event> batch) {
+        for (ChangeFeed.Event event : batch) {
+            switch (event.getType()) {
+                case ADD_PATIENT:
+                    HospitalDatabase.Patient patient = event.getPatient();
+                    mutations.add(HospitalDatabase.Mutation.addPatient(patient.getName(), patient.getDoctorName(),
+                            patient.getVisitDay(), patient.getVisitMonth(), patient.getVisitYear()));
+                    break;
+                case REMOVE_PATIENT:
+                    mutations.add(HospitalDatabase.Mutation.removePatient(event.getPatientName()));
+                    break;
+                case ADD_MEMBER:
+                    HospitalDatabase.StaffMember member = event.getMember();
+                    mutations.add(HospitalDatabase.Mutation.addMember(event.getPatientName(), member.getName(),
+                            member.getRole()));
+                    break;
+                case REMOVE_MEMBER:
+                    mutations.add(HospitalDatabase.Mutation.removeMember(event.getPatientName(),
+                            event.getMemberName()));
+                    break;
+                case RESET:
+                    applyMutations();
+                    try {
+                        replica.clear();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    break;
+            }
+        }
+        applyMutations();
+
+        if (!batch.isEmpty()) {
+            long now = System.nanoTime();
+            long lag = 0;
+            for (ChangeFeed.Event event : batch) {
+                lag += now - event.getPublishNanos();
+            }
+            totalLagNanos += lag;
+            maxLagNanos = Math.max(maxLagNanos, now - batch.get(0).getPublishNanos());
+            eventsApplied += batch.size();
+            appliedSequence = batch.get(batch.size() - 1).getSequence();
+        }
+    }
+
+    // Helper Method: Applies the collected mutations to the replica
+    private void applyMutations() {
+        if (!mutations.isEmpty()) {
+            replica.applyBatch(mutations, discard);
+            mutations.clear();
+        }
+    }
+
+    // Method: Returns the sequence of the last event applied, or -1
+    public long getAppliedSequence() {
+        return appliedSequence;
+    }
+
+    public long getEventsApplied() {
+        return eventsApplied;
+    }
+
+    // Method: Returns the mean time from publishing to applying an event
+    public long getMeanLagNanos() {
+        long events = eventsApplied;
+        return (events == 0) ? 0 : totalLagNanos / events;
+    }
+
+    // Method: Returns the longest time from publishing to applying an event
+    public long getMaxLagNanos() {
+        return maxLagNanos;
+    }
+}
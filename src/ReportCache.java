@@ -0,0 +1,209 @@
+//-----------------------------------------------------
+// Title: Report Cache
+// Author: Ege Yavuz
+// ID: 14872032366
+// Section: 1
+// Assignment: 3
+// Description: Holds the rendered text of recent HospitalDatabase
+// reports so a report that is asked for again, with nothing changed in
+// between, is copied instead of recomputed. Entries are keyed by report
+// and parameter and evicted least recently used first once their total
+// length passes a budget. The database fills the cache under its read
+// lock and invalidates entries under its write lock, so a cached report
+// is never older than the last completed mutation and hits can be
+// served without taking the database lock. Recording a visit only
+// drops the all-patients report, the report of the visit's year and
+// the listing of the visit's doctor, and removing a patient drops these
+// for each of their visits.
+//-----------------------------------------------------
+
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public final class ReportCache {
+
+    // Key of the showAllPatients report
+    static final String ALL_PATIENTS = "ALL";
+
+    private final long maxChars;
+    // Access order, so iteration starts at the least recently used entry
+    private final LinkedHashMap<String, String> reports = new LinkedHashMap<>(64, 0.75f, true);
+    private long cachedChars;
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long invalidations;
+
+    // Constructor: Creates an empty cache
+    //--------------------------------------------------------
+    // Summary: maxChars bounds the total length of the cached reports;
+    // a report longer than that is never cached.
+    // Precondition: maxChars is positive.
+    // Postcondition: The cache is empty.
+    //--------------------------------------------------------
+
+    ReportCache(long maxChars) {
+        if (maxChars <= 0) {
+            throw new IllegalArgumentException("Invalid cache size: " + maxChars);
+        }
+        this.maxChars = maxChars;
+    }
+
+    // Helper Method: Returns the key of a doctor's patient listing
+    static String doctorKey(String doctorName) {
+        return "DOCTOR " + doctorName;
+    }
+
+    // Helper Method: Returns the key of a year's patient report
+    static String yearKey(int visitYear) {
+        return "YEAR " + visitYear;
+    }
+
+    // Helper Method: Looks up a report, counting a hit or a miss; needs no database lock
+    synchronized String get(String key) {
+        String report = reports.get(key);
+        if (report != null) {
+            hits++;
+        } else {
+            misses++;
+        }
+        return report;
+    }
+
+    // Helper Method: Stores a report
+    //--------------------------------------------------------
+    // Summary: Replaces any report under the key, then evicts the least
+    // recently used reports until the total fits the budget.
+    // Precondition: The caller holds the database's read lock, so the
+    // report cannot be stale.
+    // Postcondition: The report is cached unless it exceeds the budget.
+    //--------------------------------------------------------
+
+    synchronized void put(String key, String report) {
+        if (report.length() > maxChars) {
+            return;
+        }
+        String previous = reports.put(key, report);
+        if (previous != null) {
+            cachedChars -= previous.length();
+        }
+        cachedChars += report.length();
+        Iterator<Map.Entry<String, String>> eldest = reports.entrySet().iterator();
+        while (cachedChars > maxChars) {
+            cachedChars -= eldest.next().getValue().length();
+            eldest.remove();
+            evictions++;
+        }
+    }
+
+    // Helper Method: Drops the reports that list a visit
+    //--------------------------------------------------------
+    // Summary: Called for every visit entering or leaving the indices.
+    // Precondition: The caller holds the database's write lock.
+    // Postcondition: No cached report can show the patient's old state.
+    //--------------------------------------------------------
+
+    synchronized void invalidateVisit(String doctorName, int visitYear) {
+        if (reports.isEmpty()) {
+            return;
+        }
+        invalidate(ALL_PATIENTS);
+        invalidate(yearKey(visitYear));
+        invalidate(doctorKey(doctorName));
+    }
+
+    private void invalidate(String key) {
+        String report = reports.remove(key);
+        if (report != null) {
+            cachedChars -= report.length();
+            invalidations++;
+        }
+    }
+
+    // Helper Method: Drops every report, e.g. after a bulk load
+    synchronized void clear() {
+        invalidations += reports.size();
+        reports.clear();
+        cachedChars = 0;
+    }
+
+    // Method: Returns the cache statistics
+    public synchronized Stats getStats() {
+        return new Stats(hits, misses, evictions, invalidations, reports.size(), cachedChars, maxChars);
+    }
+
+    // Method: Zeroes the hit, miss, eviction and invalidation counts
+    public synchronized void resetStats() {
+        hits = 0;
+        misses = 0;
+        evictions = 0;
+        invalidations = 0;
+    }
+
+    // Inner class holding a consistent copy of the statistics
+    public static final class Stats {
+        private final long hits;
+        private final long misses;
+        private final long evictions;
+        private final long invalidations;
+        private final int entries;
+        private final long cachedChars;
+        private final long maxChars;
+
+        Stats(long hits, long misses, long evictions, long invalidations, int entries, long cachedChars,
+              long maxChars) {
+            this.hits = hits;
+            this.misses = misses;
+            this.evictions = evictions;
+            this.invalidations = invalidations;
+            this.entries = entries;
+            this.cachedChars = cachedChars;
+            this.maxChars = maxChars;
+        }
+
+        public long getHits() {
+            return hits;
+        }
+
+        public long getMisses() {
+            return misses;
+        }
+
+        // Fraction of lookups answered from the cache, 0 before any lookup
+        public double getHitRatio() {
+            long lookups = hits + misses;
+            return (lookups == 0) ? 0 : (double) hits / lookups;
+        }
+
+        // Reports dropped to stay within the budget
+        public long getEvictions() {
+            return evictions;
+        }
+
+        // Reports dropped because a mutation changed them
+        public long getInvalidations() {
+            return invalidations;
+        }
+
+        public int getEntries() {
+            return entries;
+        }
+
+        public long getCachedChars() {
+            return cachedChars;
+        }
+
+        public long getMaxChars() {
+            return maxChars;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("hits %d, misses %d (%.1f%% hit), evictions %d, invalidations %d, "
+                            + "%d reports, %d of %d chars", hits, misses, 100 * getHitRatio(), evictions,
+                    invalidations, entries, cachedChars, maxChars);
+        }
+    }
+}
@@ -0,0 +1,483 @@
+//-----------------------------------------------------
+// Title: Sharded Hospital Database
+// Author: Ege Yavuz
+// ID: 14872032366
+// Section: 1
+// Assignment: 3
+// Description: Partitions patients by the hash of their name across a
+// number of independent HospitalDatabase shards, so that writes to
+// different shards proceed in parallel. Each shard is owned by one
+// worker thread that takes work from its mailbox in order; nothing else
+// touches the shard. A patient's care team lives with the patient, so
+// every operation on one patient goes to a single shard and is applied
+// in the order it was submitted. Queries over all patients are sent to
+// every shard and the sorted parts are merged.
+//-----------------------------------------------------
+
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+public class ShardedHospitalDatabase implements Closeable {
+
+    // Tasks a mailbox holds before submitters have to wait
+    private static final int MAILBOX_CAPACITY = 8192;
+    // Most tasks a worker takes from its mailbox at a time
+    private static final int MAX_BATCH_SIZE = 1024;
+    private static final String NEWLINE = System.lineSeparator();
+
+    // Inner class to represent a piece of work for a shard
+    //--------------------------------------------------------
+    // Summary: Either a mutation, whose future completes with the message
+    // the database reports for it, or any other work on the shard. A task
+    // with neither stops the worker.
+    //--------------------------------------------------------
+    private static final class Task {
+        private final HospitalDatabase.Mutation mutation;
+        private final CompletableFuture<String> result;
+        private final Consumer<HospitalDatabase> work;
+
+        Task(HospitalDatabase.Mutation mutation, CompletableFuture<String> result, Consumer<HospitalDatabase> work) {
+            this.mutation = mutation;
+            this.result = result;
+            this.work = work;
+        }
+    }
+
+    // Inner class to represent a shard and its worker
+    //--------------------------------------------------------
+    // Summary: The worker drains the mailbox in batches. Runs of
+    // mutations in a batch are applied with a single
+    // HospitalDatabase.applyBatch call.
+    //--------------------------------------------------------
+    private static final class Shard implements Runnable {
+        private final HospitalDatabase database = new HospitalDatabase();
+        private final BlockingQueue<Task> mailbox = new ArrayBlockingQueue<>(MAILBOX_CAPACITY);
+        private final List<Task> batch = new ArrayList<>(MAX_BATCH_SIZE);
+        private final List<HospitalDatabase.Mutation> mutations = new ArrayList<>(MAX_BATCH_SIZE);
+        private final List<CompletableFuture<String>> results = new ArrayList<>(MAX_BATCH_SIZE);
+        private final StringBuilder messages = new StringBuilder();
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    batch.add(mailbox.take());
+                    mailbox.drainTo(batch, MAX_BATCH_SIZE - 1);
+                    for (Task task : batch) {
+                        if (task.mutation != null) {
+                            mutations.add(task.mutation);
+                            results.add(task.result);
+                            continue;
+                        }
+                        applyMutations();
+                        if (task.work == null) {
+                            return;
+                        }
+                        task.work.accept(database);
+                    }
+                    applyMutations();
+                    batch.clear();
+                }
+            } catch (InterruptedException e) {
+                // Stopped without draining
+            }
+        }
+
+        // Helper Method: Applies the collected mutations as one batch
+        //--------------------------------------------------------
+        // Summary: Every mutation reports exactly one line, so the
+        // batch's output is split back into one message per mutation.
+        // Precondition: Runs on the worker thread.
+        // Postcondition: The mutations' futures are completed.
+        //--------------------------------------------------------
+
+        private void applyMutations() {
+            if (mutations.isEmpty()) {
+                return;
+            }
+            try {
+                messages.setLength(0);
+                database.applyBatch(mutations, messages);
+                int from = 0;
+                for (CompletableFuture<String> result : results) {
+                    int to = messages.indexOf(NEWLINE, from);
+                    result.complete(messages.substring(from, to));
+                    from = to + NEWLINE.length();
+                }
+            } catch (RuntimeException e) {
+                for (CompletableFuture<String> result : results) {
+                    result.completeExceptionally(e);
+                }
+            }
+            mutations.clear();
+            results.clear();
+        }
+    }
+
+    // Inner class to walk one shard's part of a merged query
+    private static final class Cursor<E> {
+        private final List<E> part;
+        private int next;
+
+        Cursor(List<E> part) {
+            this.part = part;
+        }
+
+        E head() {
+            return part.get(next);
+        }
+    }
+
+    private final Shard[] shards;
+    private final Thread[] workers;
+    private volatile boolean closed;
+
+    // Constructor: Starts a sharded database
+    //--------------------------------------------------------
+    // Summary: Creates the shards, each an empty in-memory
+    // HospitalDatabase, and starts one worker thread per shard. One shard
+    // per core lets writes scale with the number of cores.
+    // Precondition: shardCount is positive.
+    // Postcondition: The database is empty and ready for use; close it
+    // to stop the workers.
+    //--------------------------------------------------------
+
+    public ShardedHospitalDatabase(int shardCount) {
+        if (shardCount <= 0) {
+            throw new IllegalArgumentException("Invalid shard count: " + shardCount);
+        }
+        shards = new Shard[shardCount];
+        workers = new Thread[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = new Shard();
+            workers[i] = new Thread(shards[i], "hospital-shard-" + i);
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+    }
+
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    // Helper Method: Picks the shard owning a patient
+    //--------------------------------------------------------
+    // Summary: Folds the high bits of the name's hash into the low ones
+    // before reducing it, as HashMap does.
+    // Precondition: None.
+    // Postcondition: Returns the same shard for the same name.
+    //--------------------------------------------------------
+
+    private Shard shardOf(String patientName) {
+        int hash = patientName.hashCode();
+        return shards[Math.floorMod(hash ^ (hash >>> 16), shards.length)];
+    }
+
+    // Helper Method: Queues a task in a shard's mailbox
+    //--------------------------------------------------------
+    // Summary: Waits while the mailbox is full, which keeps fast
+    // submitters from running ahead of the workers without bound.
+    // Precondition: None.
+    // Postcondition: The task will run after everything queued before it.
+    //--------------------------------------------------------
+
+    private void send(Shard shard, Task task) {
+        if (closed) {
+            throw new IllegalStateException("Database is closed");
+        }
+        try {
+            shard.mailbox.put(task);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while queueing work", e);
+        }
+    }
+
+    // Helper Method: Runs a function on a shard's worker
+    private <R> CompletableFuture<R> call(Shard shard, Function<HospitalDatabase, R> function) {
+        CompletableFuture<R> result = new CompletableFuture<>();
+        send(shard, new Task(null, null, database -> {
+            try {
+                result.complete(function.apply(database));
+            } catch (RuntimeException e) {
+                result.completeExceptionally(e);
+            }
+        }));
+        return result;
+    }
+
+    // Helper Method: Queues a mutation with the patient's shard
+    private CompletableFuture<String> mutate(String patientName, HospitalDatabase.Mutation mutation) {
+        CompletableFuture<String> result = new CompletableFuture<>();
+        send(shardOf(patientName), new Task(mutation, result, null));
+        return result;
+    }
+
+    // Method: Adds a new patient to the database
+    //--------------------------------------------------------
+    // Summary: Queues the addPatient with the patient's shard and returns
+    // at once. Later operations on the same patient see it.
+    // Precondition: The visit date is valid, as for
+    // HospitalDatabase.addPatient; otherwise IllegalArgumentException is
+    // thrown and nothing is queued.
+    // Postcondition: Returns a future completing with the message
+    // HospitalDatabase.addPatient would print.
+    //--------------------------------------------------------
+
+    public CompletableFuture<String> addPatient(String patientName, String doctorName, int visitDay, int visitMonth,
+                                                int visitYear) {
+        return mutate(patientName, HospitalDatabase.Mutation.addPatient(patientName, doctorName, visitDay, visitMonth,
+                visitYear));
+    }
+
+    // Method: Removes a patient and their care team, like addPatient
+    public CompletableFuture<String> removePatient(String patientName) {
+        return mutate(patientName, HospitalDatabase.Mutation.removePatient(patientName));
+    }
+
+    // Method: Adds a care team member, like addPatient
+    public CompletableFuture<String> addMember(String patientName, String memberName, String memberRole) {
+        return mutate(patientName, HospitalDatabase.Mutation.addMember(patientName, memberName, memberRole));
+    }
+
+    // Method: Removes a care team member, like addPatient
+    public CompletableFuture<String> removeMember(String patientName, String memberName) {
+        return mutate(patientName, HospitalDatabase.Mutation.removeMember(patientName, memberName));
+    }
+
+    // Method: Waits until all submitted work is done
+    //--------------------------------------------------------
+    // Summary: Queues a marker with every shard and waits for all of them.
+    // Precondition: None.
+    // Postcondition: Every operation submitted before the call is applied.
+    //--------------------------------------------------------
+
+    public void awaitQuiescence() {
+        List<CompletableFuture<Void>> markers = new ArrayList<>(shards.length);
+        for (Shard shard : shards) {
+            markers.add(call(shard, database -> null));
+        }
+        for (CompletableFuture<Void> marker : markers) {
+            marker.join();
+        }
+    }
+
+    // Method: Looks up a patient by name
+    //--------------------------------------------------------
+    // Summary: Asks the patient's shard, after the operations already
+    // queued there.
+    // Precondition: None.
+    // Postcondition: Returns the patient, or null if they do not exist.
+    //--------------------------------------------------------
+
+    public HospitalDatabase.Patient getPatient(String patientName) {
+        return join(call(shardOf(patientName), database -> database.getPatient(patientName)));
+    }
+
+    // Method: Returns the number of patients in all shards
+    public int getPatientCount() {
+        int count = 0;
+        for (List<Integer> part : gather(database -> List.of(database.getPatientCount()))) {
+            count += part.get(0);
+        }
+        return count;
+    }
+
+    // Method: Shows detailed information about a specific patient
+    //--------------------------------------------------------
+    // Summary: Prints what HospitalDatabase.showPatient prints, rendered
+    // by the patient's shard.
+    // Precondition: None.
+    // Postcondition: The patient's details are written to out.
+    //--------------------------------------------------------
+
+    public void showPatient(String patientName, Appendable out) {
+        write(out, join(call(shardOf(patientName), database -> {
+            StringBuilder text = new StringBuilder();
+            database.showPatient(patientName, text);
+            return text;
+        })));
+    }
+
+    // Method: Queries patients seen by a specific doctor
+    //--------------------------------------------------------
+    // Summary: Every shard lists its part of the doctor's caseload in
+    // name order, and the parts are merged.
+    // Precondition: None.
+    // Postcondition: Prints what HospitalDatabase.showDoctorPatients prints.
+    //--------------------------------------------------------
+
+    public void showDoctorPatients(String doctorName, Appendable out) {
+        List<HospitalDatabase.Patient> patients = merge(gather(database -> {
+            List<HospitalDatabase.Patient> part = new ArrayList<>();
+            database.forEachDoctorPatient(doctorName, part::add);
+            return part;
+        }), Comparator.<HospitalDatabase.Patient>naturalOrder());
+
+        StringBuilder text = new StringBuilder();
+        text.append(doctorName).append(NEWLINE);
+        for (HospitalDatabase.Patient patient : patients) {
+            text.append(patient.getName()).append(", ").append(patient.getVisitDay()).append('/')
+                    .append(patient.getVisitMonth()).append('/').append(patient.getVisitYear()).append(NEWLINE);
+        }
+        write(out, text);
+    }
+
+    // Method: Queries patients by year
+    //--------------------------------------------------------
+    // Summary: Every shard lists its patients of the year latest visit
+    // first, and the parts are merged.
+    // Precondition: None.
+    // Postcondition: Prints what HospitalDatabase.showPatients prints.
+    //--------------------------------------------------------
+
+    public void showPatients(int visitYear, Appendable out) {
+        List<HospitalDatabase.Patient> patients = merge(gather(database -> {
+            List<HospitalDatabase.Patient> part = new ArrayList<>();
+            database.forEachPatientInYear(visitYear, part::add);
+            return part;
+        }), HospitalDatabase.Patient.BY_VISIT_DATE_LATEST_FIRST);
+
+        StringBuilder text = new StringBuilder();
+        text.append(visitYear).append(NEWLINE);
+        for (HospitalDatabase.Patient patient : patients) {
+            text.append(patient.getName()).append(", ").append(patient.getVisitDay()).append('/')
+                    .append(patient.getVisitMonth()).append(NEWLINE);
+        }
+        write(out, text);
+    }
+
+    // Method: Displays all patients in the database
+    //--------------------------------------------------------
+    // Summary: Every shard lists its patients in visit-date order, and
+    // the parts are merged.
+    // Precondition: None.
+    // Postcondition: Prints what HospitalDatabase.showAllPatients prints.
+    //--------------------------------------------------------
+
+    public void showAllPatients(Appendable out) {
+        List<HospitalDatabase.Patient> patients = merge(gather(database -> {
+            List<HospitalDatabase.Patient> part = new ArrayList<>();
+            database.forEachPatient(part::add);
+            return part;
+        }), HospitalDatabase.Patient.BY_VISIT_DATE);
+
+        StringBuilder text = new StringBuilder();
+        if (patients.isEmpty()) {
+            text.append("---none---").append(NEWLINE);
+        }
+        for (HospitalDatabase.Patient patient : patients) {
+            text.append(patient.getName()).append(", ").append(patient.getVisitYear()).append(", ")
+                    .append(patient.getDoctorName()).append(NEWLINE);
+        }
+        write(out, text);
+    }
+
+    // Helper Method: Runs a query on every shard
+    //--------------------------------------------------------
+    // Summary: Queues the query with all shards first, so they run in
+    // parallel, then collects the parts.
+    // Precondition: None.
+    // Postcondition: Returns one part per shard, in shard order.
+    //--------------------------------------------------------
+
+    private <E> List<List<E>> gather(Function<HospitalDatabase, List<E>> query) {
+        List<CompletableFuture<List<E>>> futures = new ArrayList<>(shards.length);
+        for (Shard shard : shards) {
+            futures.add(call(shard, query));
+        }
+        List<List<E>> parts = new ArrayList<>(shards.length);
+        for (CompletableFuture<List<E>> future : futures) {
+            parts.add(join(future));
+        }
+        return parts;
+    }
+
+    // Helper Method: Merges sorted parts into one sorted list
+    //--------------------------------------------------------
+    // Summary: A k-way merge through a heap of part cursors, costing
+    // O(n log k) for n elements in k parts.
+    // Precondition: Every part is sorted by the order.
+    // Postcondition: Returns all elements sorted by the order.
+    //--------------------------------------------------------
+
+    private static <E> List<E> merge(List<List<E>> parts, Comparator<? super E> order) {
+        int total = 0;
+        PriorityQueue<Cursor<E>> heads = new PriorityQueue<>(Math.max(1, parts.size()),
+                (c1, c2) -> order.compare(c1.head(), c2.head()));
+        for (List<E> part : parts) {
+            total += part.size();
+            if (!part.isEmpty()) {
+                heads.add(new Cursor<>(part));
+            }
+        }
+        List<E> merged = new ArrayList<>(total);
+        while (!heads.isEmpty()) {
+            Cursor<E> cursor = heads.poll();
+            merged.add(cursor.head());
+            if (++cursor.next < cursor.part.size()) {
+                heads.add(cursor);
+            }
+        }
+        return merged;
+    }
+
+    // Helper Method: Waits for a shard's answer
+    private static <R> R join(CompletableFuture<R> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    private static void write(Appendable out, CharSequence text) {
+        try {
+            out.append(text);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Method: Stops the workers
+    //--------------------------------------------------------
+    // Summary: Lets every worker finish the work already queued, then
+    // stops it.
+    // Precondition: No other thread is still submitting work.
+    // Postcondition: Every submitted operation has completed.
+    //--------------------------------------------------------
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        for (Shard shard : shards) {
+            send(shard, new Task(null, null, null));
+        }
+        closed = true;
+        for (Thread worker : workers) {
+            try {
+                worker.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+}
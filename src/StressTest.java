@@ -0,0 +1,343 @@
+//-----------------------------------------------------
+// Title: Stress Test
+// Author: Ege Yavuz
+// ID: 14872032366
+// Section: 1
+// Assignment: 3
+// Description: Runs concurrent writers and readers against one
+// HospitalDatabase and checks that every read shows a state that whole
+// writes could have produced. Each writer owns its own patients and
+// changes them through applyBatch, in batches that keep invariants a
+// torn read would break:
+// - A tracked patient's visit date encodes a generation number, and the
+//   same batch sets their doctor and the role of their "Nurse" member
+//   to match it. Their care team also has 100 fixed members, so lock-free
+//   reads of it cross several validation points.
+// - Pair patients "<prefix>-a" and "<prefix>-b" are always added,
+//   readmitted and removed together, so every listing shows both or
+//   neither, with the same dates.
+// Readers check showPatient and getPatient against the first invariant,
+// and that a patient's generation never goes backwards; they check
+// showAllPatients, showPatients(year) and showDoctorPatients against the
+// second. At the end the database must match what the writers did. The
+// test runs once without and once with the report cache, whose hits are
+// served without the lock.
+//
+// Usage: java StressTest [writers [readers [seconds]]]
+// Defaults: 4 writers, 4 readers, 5 seconds per run. Exits with status 1
+// on the first inconsistency.
+//-----------------------------------------------------
+
+
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+public class StressTest {
+
+    private static final int TRACKED_PER_WRITER = 100;
+    private static final int PAIRS_PER_WRITER = 100;
+    private static final int FIXED_MEMBERS = 100;
+    private static final int DOCTORS = 7;
+    private static final String PAIR_DOCTOR = "Dr Pair";
+    private static final long REPORT_CACHE_CHARS = 16L << 20;
+
+    private final HospitalDatabase database = new HospitalDatabase();
+    private final int writers;
+    private final AtomicReference<String> failure = new AtomicReference<>();
+    private final LongAdder writes = new LongAdder();
+    private final LongAdder reads = new LongAdder();
+    private volatile boolean stopped;
+
+    // Written by each writer for its own patients, read after it has stopped
+    private final int[][] generations;
+    private final boolean[][] present;
+
+    // Constructor: Prepares a run
+    //--------------------------------------------------------
+    // Summary: Creates an empty database, with the report cache if asked.
+    // Precondition: writers is positive.
+    // Postcondition: The run is ready to start.
+    //--------------------------------------------------------
+
+    private StressTest(int writers, boolean cached) {
+        this.writers = writers;
+        this.generations = new int[writers][TRACKED_PER_WRITER];
+        this.present = new boolean[writers][TRACKED_PER_WRITER];
+        if (cached) {
+            database.enableReportCache(REPORT_CACHE_CHARS);
+        }
+    }
+
+    // Method: Runs the test without and with the report cache
+    public static void main(String[] args) throws InterruptedException {
+        int writers = (args.length > 0) ? Integer.parseInt(args[0]) : 4;
+        int readers = (args.length > 1) ? Integer.parseInt(args[1]) : 4;
+        int seconds = (args.length > 2) ? Integer.parseInt(args[2]) : 5;
+        if (writers <= 0 || readers <= 0 || seconds <= 0) {
+            throw new IllegalArgumentException("Need at least one writer, one reader and one second");
+        }
+
+        for (boolean cached : new boolean[] {false, true}) {
+            StressTest test = new StressTest(writers, cached);
+            String result = test.run(readers, seconds * 1000L);
+            System.out.printf("%-14s %d writers, %d readers: %,d batches, %,d reads: %s%n",
+                    cached ? "report cache:" : "no cache:", writers, readers, test.writes.sum(),
+                    test.reads.sum(), (result == null) ? "OK" : "FAILED");
+            if (result != null) {
+                System.out.println("ERROR: " + result);
+                System.exit(1);
+            }
+        }
+    }
+
+    // Method: Runs the writers and readers, then checks the final state
+    //--------------------------------------------------------
+    // Summary: Stops early at the first inconsistency a reader finds.
+    // Precondition: Called once per instance.
+    // Postcondition: Returns null if everything was consistent,
+    // otherwise a description of the first inconsistency.
+    //--------------------------------------------------------
+
+    private String run(int readers, long millis) throws InterruptedException {
+        List<Thread> threads = new ArrayList<>();
+        for (int w = 0; w < writers; w++) {
+            int writer = w;
+            threads.add(new Thread(() -> guard(() -> write(writer)), "stress-writer-" + w));
+        }
+        for (int r = 0; r < readers; r++) {
+            long seed = r;
+            threads.add(new Thread(() -> guard(() -> read(seed)), "stress-reader-" + r));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        long deadline = System.currentTimeMillis() + millis;
+        while (failure.get() == null && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        stopped = true;
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (failure.get() == null) {
+            guard(this::checkFinalState);
+        }
+        return failure.get();
+    }
+
+    // Helper Method: Runs a thread body, recording anything it throws
+    private void guard(Runnable body) {
+        try {
+            body.run();
+        } catch (RuntimeException | AssertionError e) {
+            failure.compareAndSet(null, Thread.currentThread().getName() + ": " + e);
+        }
+    }
+
+    // Helper Method: Records an inconsistency unless the check holds
+    private void check(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+
+    // Helper Method: Body of a writer thread
+    //--------------------------------------------------------
+    // Summary: Readmits tracked patients, now and then removes one, and
+    // adds or removes pairs, every change as one batch.
+    // Precondition: No other writer uses the same index.
+    // Postcondition: generations and present describe the writer's
+    // tracked patients.
+    //--------------------------------------------------------
+
+    private void write(int writer) {
+        Random random = new Random(1000 + writer);
+        Writer discard = Writer.nullWriter();
+        int[] pairGenerations = new int[PAIRS_PER_WRITER];
+        boolean[] pairPresent = new boolean[PAIRS_PER_WRITER];
+        List<HospitalDatabase.Mutation> batch = new ArrayList<>();
+
+        while (!stopped && failure.get() == null) {
+            batch.clear();
+            int op = random.nextInt(20);
+            if (op < 12) {
+                int i = random.nextInt(TRACKED_PER_WRITER);
+                String name = trackedName(writer, i);
+                int generation = ++generations[writer][i];
+                batch.add(addPatient(name, "Dr " + (generation % DOCTORS), generation));
+                if (present[writer][i]) {
+                    batch.add(HospitalDatabase.Mutation.removeMember(name, "Nurse"));
+                } else {
+                    for (int m = 0; m < FIXED_MEMBERS; m++) {
+                        batch.add(HospitalDatabase.Mutation.addMember(name, "Staff " + m, "Staff"));
+                    }
+                }
+                batch.add(HospitalDatabase.Mutation.addMember(name, "Nurse", "G" + generation));
+                present[writer][i] = true;
+            } else if (op < 13) {
+                int i = random.nextInt(TRACKED_PER_WRITER);
+                batch.add(HospitalDatabase.Mutation.removePatient(trackedName(writer, i)));
+                present[writer][i] = false;
+            } else {
+                int i = random.nextInt(PAIRS_PER_WRITER);
+                String prefix = "W" + writer + "-P" + i;
+                if (pairPresent[i] && random.nextInt(4) == 0) {
+                    batch.add(HospitalDatabase.Mutation.removePatient(prefix + "-a"));
+                    batch.add(HospitalDatabase.Mutation.removePatient(prefix + "-b"));
+                    pairPresent[i] = false;
+                } else {
+                    int generation = ++pairGenerations[i];
+                    batch.add(addPatient(prefix + "-a", PAIR_DOCTOR, generation));
+                    batch.add(addPatient(prefix + "-b", PAIR_DOCTOR, generation));
+                    pairPresent[i] = true;
+                }
+            }
+            database.applyBatch(batch, discard);
+            writes.increment();
+        }
+    }
+
+    // Helper Method: Body of a reader thread
+    //--------------------------------------------------------
+    // Summary: Mostly looks up tracked patients, sometimes reads a whole
+    // listing, and checks what it sees.
+    // Precondition: None.
+    // Postcondition: Throws AssertionError at the first inconsistency.
+    //--------------------------------------------------------
+
+    private void read(long seed) {
+        Random random = new Random(seed);
+        int[][] seen = new int[writers][TRACKED_PER_WRITER];
+        StringBuilder out = new StringBuilder();
+
+        while (!stopped && failure.get() == null) {
+            int writer = random.nextInt(writers);
+            int i = random.nextInt(TRACKED_PER_WRITER);
+            String name = trackedName(writer, i);
+            int op = random.nextInt(100);
+            out.setLength(0);
+            if (op < 60) {
+                database.showPatient(name, out);
+                seen[writer][i] = checkShowPatient(name, out.toString(), seen[writer][i]);
+            } else if (op < 90) {
+                HospitalDatabase.Patient patient = database.getPatient(name);
+                if (patient != null) {
+                    int generation = generation(patient.getVisitDay(), patient.getVisitMonth(),
+                            patient.getVisitYear());
+                    check(patient.getDoctorName().equals("Dr " + (generation % DOCTORS)),
+                            name + " has doctor " + patient.getDoctorName() + " at generation " + generation);
+                    check(generation >= seen[writer][i], name + " went back from generation "
+                            + seen[writer][i] + " to " + generation);
+                    seen[writer][i] = generation;
+                }
+            } else if (op < 94) {
+                database.showAllPatients(out);
+                checkPairs(out.toString(), "showAllPatients");
+            } else if (op < 97) {
+                int year = 2000 + random.nextInt(2);
+                database.showPatients(year, out);
+                checkPairs(out.toString(), "showPatients(" + year + ")");
+            } else {
+                database.showDoctorPatients(PAIR_DOCTOR, out);
+                checkPairs(out.toString(), "showDoctorPatients");
+            }
+            reads.increment();
+        }
+    }
+
+    // Helper Method: Checks one showPatient answer for a tracked patient
+    //--------------------------------------------------------
+    // Summary: The date, doctor and Nurse role must agree on one
+    // generation, no older than the one seen before, and the care team
+    // must be complete.
+    // Precondition: text is the whole answer.
+    // Postcondition: Returns the generation seen, or the previous one if
+    // the patient is absent.
+    //--------------------------------------------------------
+
+    private int checkShowPatient(String name, String text, int previous) {
+        String[] lines = text.split(System.lineSeparator());
+        if (lines.length == 1 && lines[0].equals("---none---")) {
+            return previous;
+        }
+        check(lines.length == FIXED_MEMBERS + 4, name + " shown with " + lines.length + " lines");
+        check(lines[0].equals(name), "asked for " + name + ", got " + lines[0]);
+        String[] date = lines[1].split("/");
+        int generation = generation(Integer.parseInt(date[0]), Integer.parseInt(date[1]), Integer.parseInt(date[2]));
+        check(lines[2].equals("Dr " + (generation % DOCTORS)),
+                name + " has doctor " + lines[2] + " at generation " + generation);
+        check(lines[3].equals("Nurse, G" + generation), name + " has " + lines[3] + " at generation " + generation);
+        for (int m = 4; m < lines.length; m++) {
+            check(lines[m].startsWith("Staff "), name + " has unexpected member " + lines[m]);
+        }
+        check(generation >= previous, name + " went back from generation " + previous + " to " + generation);
+        return generation;
+    }
+
+    // Helper Method: Checks that a listing shows pair patients in pairs
+    //--------------------------------------------------------
+    // Summary: Every "<prefix>-a" line must have a "<prefix>-b" line with
+    // the same details, and the other way round.
+    // Precondition: text is a whole listing, one patient per line.
+    // Postcondition: Throws AssertionError if a pair is split.
+    //--------------------------------------------------------
+
+    private void checkPairs(String text, String listing) {
+        Map<String, Integer> balance = new HashMap<>();
+        for (String line : text.split(System.lineSeparator())) {
+            int comma = line.indexOf(',');
+            if (comma < 3 || line.charAt(comma - 2) != '-') {
+                continue; // Header, or not a pair patient
+            }
+            String key = line.substring(0, comma - 2) + line.substring(comma);
+            char side = line.charAt(comma - 1);
+            if (side == 'a' || side == 'b') {
+                balance.merge(key, (side == 'a') ? 1 : -1, Integer::sum);
+            }
+        }
+        for (Map.Entry<String, Integer> entry : balance.entrySet()) {
+            check(entry.getValue() == 0, listing + " split the pair " + entry.getKey());
+        }
+    }
+
+    // Helper Method: Compares the database with what the writers did
+    private void checkFinalState() {
+        for (int w = 0; w < writers; w++) {
+            for (int i = 0; i < TRACKED_PER_WRITER; i++) {
+                String name = trackedName(w, i);
+                HospitalDatabase.Patient patient = database.getPatient(name);
+                check((patient != null) == present[w][i], name + " should " + (present[w][i] ? "" : "not ") + "exist");
+                if (patient != null) {
+                    int generation = generation(patient.getVisitDay(), patient.getVisitMonth(),
+                            patient.getVisitYear());
+                    check(generation == generations[w][i],
+                            name + " ended at generation " + generation + ", not " + generations[w][i]);
+                    StringBuilder out = new StringBuilder();
+                    database.showPatient(name, out);
+                    checkShowPatient(name, out.toString(), generation);
+                }
+            }
+        }
+    }
+
+    private static String trackedName(int writer, int i) {
+        return "W" + writer + "-T" + i;
+    }
+
+    // Helper Method: Builds the visit of a generation
+    private static HospitalDatabase.Mutation addPatient(String name, String doctor, int generation) {
+        return HospitalDatabase.Mutation.addPatient(name, doctor, 1 + generation % 28, 1 + (generation / 28) % 12,
+                2000 + generation / 336);
+    }
+
+    // Helper Method: Recovers the generation from a visit date
+    private static int generation(int day, int month, int year) {
+        return (year - 2000) * 336 + (month - 1) * 28 + (day - 1);
+    }
+}